@@ -0,0 +1,67 @@
+package edu.harvard.hms.dbmi.avillach.auth.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Bounded caches for the <code>@Cacheable</code> services.
+ * <p>
+ * Each cache holds at most <code>cache.&lt;name&gt;.max.size</code> entries. The <code>sessions</code> cache expires a
+ * session <code>application.max.session.length</code> after it started, the other caches drop an entry that has not
+ * been read for <code>cache.&lt;name&gt;.expire.after.access.seconds</code>, so the heap grows with the active users
+ * only. Every cache records its hit, miss and eviction counts.
+ */
+@Configuration
+public class CacheConfig {
+
+    public static final String SESSIONS_CACHE = "sessions";
+
+    /**
+     * Caches of the access rules and templates of a user, keyed by subject
+     */
+    public static final List<String> USER_CACHES = List.of("mergedRulesCache", "preProcessedAccessRules", "mergedTemplateCache");
+
+    private static final long DEFAULT_MAX_SIZE = 10_000;
+    private static final long DEFAULT_EXPIRE_AFTER_ACCESS_SECONDS = 60 * 60;
+    private static final long DEFAULT_SESSION_MAX_DURATION = 8 * 60 * 60 * 1000;
+
+    @Bean
+    public CacheManager cacheManager(Environment environment,
+                                     @Value("${application.max.session.length}") long sessionMaxDuration) {
+        CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+        // caches without a configuration of their own
+        cacheManager.setCaffeine(Caffeine.newBuilder()
+                .maximumSize(DEFAULT_MAX_SIZE)
+                .expireAfterAccess(Duration.ofSeconds(DEFAULT_EXPIRE_AFTER_ACCESS_SECONDS))
+                .recordStats());
+
+        cacheManager.registerCustomCache(SESSIONS_CACHE, Caffeine.newBuilder()
+                .maximumSize(getMaxSize(environment, SESSIONS_CACHE))
+                .expireAfterWrite(Duration.ofMillis(sessionMaxDuration > 0 ? sessionMaxDuration : DEFAULT_SESSION_MAX_DURATION))
+                .recordStats()
+                .build());
+
+        for (String cacheName : USER_CACHES) {
+            long expireAfterAccessSeconds = environment.getProperty("cache." + cacheName + ".expire.after.access.seconds",
+                    Long.class, DEFAULT_EXPIRE_AFTER_ACCESS_SECONDS);
+            cacheManager.registerCustomCache(cacheName, Caffeine.newBuilder()
+                    .maximumSize(getMaxSize(environment, cacheName))
+                    .expireAfterAccess(Duration.ofSeconds(expireAfterAccessSeconds))
+                    .recordStats()
+                    .build());
+        }
+        return cacheManager;
+    }
+
+    private static long getMaxSize(Environment environment, String cacheName) {
+        return environment.getProperty("cache." + cacheName + ".max.size", Long.class, DEFAULT_MAX_SIZE);
+    }
+}
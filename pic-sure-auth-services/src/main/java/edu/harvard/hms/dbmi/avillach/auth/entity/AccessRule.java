@@ -1,5 +1,6 @@
 package edu.harvard.hms.dbmi.avillach.auth.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.FetchType;
@@ -164,6 +165,15 @@ public class AccessRule extends BaseEntity {
             inverseJoinColumns = {@JoinColumn(name = "subRule_id", nullable = false)})
     private Set<AccessRule> subAccessRule;
 
+    /**
+     * The sub-accessRules merged by definition, computed once when the rule set is prepared for authorization
+     * so that the evaluation never merges rules. Like the merged values, it is neither saved to the database
+     * nor seen by a user.
+     */
+    @Transient
+    @JsonIgnore
+    private Set<AccessRule> mergedSubAccessRules;
+
     /**
      * NOTICE: please don't change this back to boolean
      * we need to support a null input,
@@ -240,6 +250,15 @@ public class AccessRule extends BaseEntity {
 
     public void setSubAccessRule(Set<AccessRule> subAccessRule) {
         this.subAccessRule = subAccessRule;
+        this.mergedSubAccessRules = null;
+    }
+
+    public Set<AccessRule> getMergedSubAccessRules() {
+        return mergedSubAccessRules;
+    }
+
+    public void setMergedSubAccessRules(Set<AccessRule> mergedSubAccessRules) {
+        this.mergedSubAccessRules = mergedSubAccessRules;
     }
 
     public Boolean getCheckMapNode() {
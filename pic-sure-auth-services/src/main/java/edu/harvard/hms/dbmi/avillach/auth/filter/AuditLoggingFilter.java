@@ -119,10 +119,11 @@ public class AuditLoggingFilter extends OncePerRequestFilter {
             Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
             if (authentication != null && authentication.getPrincipal() != null) {
                 Object principal = authentication.getPrincipal();
-                if (principal instanceof CustomUserDetails userDetails) {
-                    metadata.put("user_id", userDetails.getUser().getUuid().toString());
-                    if (userDetails.getUser().getEmail() != null) {
-                        metadata.put("user_email", userDetails.getUser().getEmail());
+                if (principal instanceof CustomUserDetails userDetails && userDetails.getSnapshot() != null) {
+                    // read from the snapshot, so the user entity is not loaded only for the audit event
+                    metadata.put("user_id", userDetails.getSnapshot().userId().toString());
+                    if (userDetails.getSnapshot().email() != null) {
+                        metadata.put("user_email", userDetails.getSnapshot().email());
                     }
                 } else if (principal instanceof CustomApplicationDetails appDetails) {
                     if (appDetails.getApplication() != null) {
@@ -1,9 +1,7 @@
 package edu.harvard.hms.dbmi.avillach.auth.filter;
 
-import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
-import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
-import edu.harvard.hms.dbmi.avillach.auth.entity.Role;
 import edu.harvard.hms.dbmi.avillach.auth.exceptions.NotAuthorizedException;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
 import edu.harvard.hms.dbmi.avillach.auth.model.CustomApplicationDetails;
 import edu.harvard.hms.dbmi.avillach.auth.model.CustomUserDetails;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.CustomUserDetailService;
@@ -28,12 +26,9 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 
 /**
@@ -117,7 +112,8 @@ public class JWTFilter extends OncePerRequestFilter {
 
                 // Check if the user is attempting to access the correct introspection endpoint. If not reject the request,
                 // log an error indicating the user's token may be being used by a malicious actor.
-                if (!request.getRequestURI().endsWith("token/inspect") && !request.getRequestURI().endsWith("open/validate")) {
+                if (!request.getRequestURI().endsWith("token/inspect") && !request.getRequestURI().endsWith("token/inspect/batch")
+                    && !request.getRequestURI().endsWith("open/validate")) {
                     logger.error("{} attempted to perform request {} token may be compromised.", userId, request.getRequestURI());
                     sendAuthFailure(request, "compromised_token", "App token on wrong endpoint");
                     response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "User is deactivated");
@@ -138,9 +134,7 @@ public class JWTFilter extends OncePerRequestFilter {
                     return;
                 }
 
-                Application application = customApplicationDetails.getApplication();
-
-                if (!application.getToken().equals(token)) {
+                if (!customApplicationDetails.matchesToken(token)) {
                     logger.error(
                         "filter() incoming application token - {} - is not the same as record, might because the token has been refreshed. Subject: {}",
                         token, userId
@@ -196,21 +190,21 @@ public class JWTFilter extends OncePerRequestFilter {
             throw new IllegalArgumentException("Cannot validate user claims, based on information stored in the JWT token.");
         }
 
-        logger.debug("User with email: {} is found.", authenticatedUser.getUser().getEmail());
+        // The checks only use the authorization snapshot, the user entity is not loaded for them
+        AuthorizationSnapshot snapshot = authenticatedUser.getSnapshot();
+        logger.debug("User with email: {} is found.", snapshot.email());
 
-        if (!authenticatedUser.getUser().isActive()) {
-            logger.warn("User with ID: {} is deactivated.", authenticatedUser.getUser().getUuid());
+        if (!snapshot.active()) {
+            logger.warn("User with ID: {} is deactivated.", snapshot.userId());
             sendAuthFailure(request, "user_deactivated", "User is deactivated");
             throw new NotAuthorizedException("User is deactivated");
         }
 
-        logger.debug("User with ID: {} is active.", authenticatedUser.getUser().getUuid());
+        logger.debug("User with ID: {} is active.", snapshot.userId());
         logger.debug("Checking if user has accepted the latest terms of service.");
 
-        if (
-            !request.getRequestURI().endsWith("/tos/accept") && !tosService.hasUserAcceptedLatest(authenticatedUser.getUser().getSubject())
-        ) {
-            logger.info("User with ID: {} has not accepted the latest terms of service.", authenticatedUser.getUser().getUuid());
+        if (!request.getRequestURI().endsWith("/tos/accept") && !tosService.hasAcceptedLatest(snapshot)) {
+            logger.info("User with ID: {} has not accepted the latest terms of service.", snapshot.userId());
             sendAuthFailure(request, "tos_not_accepted", "User must accept terms of service");
             // If user has not accepted terms of service and is attempted to get information other than the terms of service, don't
             // authenticate
@@ -223,10 +217,7 @@ public class JWTFilter extends OncePerRequestFilter {
             }
         }
 
-        Set<Role> userRoles = authenticatedUser.getUser().getRoles();
-        if (
-            userRoles == null || userRoles.isEmpty() || userRoles.stream().allMatch(role -> CollectionUtils.isEmpty(role.getPrivileges()))
-        ) {
+        if (!snapshot.hasPrivileges()) {
             logger.error("User doesn't have any roles or privileges.");
             sendAuthFailure(request, "no_roles_or_privileges", "User has no roles or privileges");
             try {
@@ -238,10 +229,7 @@ public class JWTFilter extends OncePerRequestFilter {
             }
         }
 
-        logger.debug(
-            "User with email {} has privileges {}.", authenticatedUser.getUser().getEmail(),
-            authenticatedUser.getUser().getTotalPrivilege().stream().map(Privilege::getName).collect(Collectors.joining(","))
-        );
+        logger.debug("User with email {} has privileges {}.", snapshot.email(), String.join(",", snapshot.privilegeNames()));
         UsernamePasswordAuthenticationToken authentication =
             new UsernamePasswordAuthenticationToken(authenticatedUser, null, authenticatedUser.getAuthorities());
         authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
@@ -43,6 +43,34 @@ public class AccessRuleEvaluationNode {
         return sb.toString();
     }
 
+    /**
+     * Single line trace that follows the failure from this node down to the rule that decided it,
+     * e.g. <code>AR_A ✗ (Gates evaluation failed) > GATE_B ✗ (Path not found: $.query)</code>
+     */
+    public String generateCompactString() {
+        StringBuilder sb = new StringBuilder();
+        AccessRuleEvaluationNode node = this;
+        while (node != null) {
+            if (!sb.isEmpty()) {
+                sb.append(" > ");
+            }
+            sb.append(node.nodeName).append(node.result ? " ✓" : " ✗");
+            if (node.failureReason != null) {
+                sb.append(" (").append(node.failureReason).append(")");
+            }
+
+            // evaluation stops at the child that decided the result, so it is the last failed one
+            AccessRuleEvaluationNode failedChild = null;
+            for (AccessRuleEvaluationNode child : node.children) {
+                if (!child.result) {
+                    failedChild = child;
+                }
+            }
+            node = node.result ? null : failedChild;
+        }
+        return sb.toString();
+    }
+
     private void generateTreeString(StringBuilder sb, String prefix, boolean isTail) {
         String nodeType = isGate ? "GATE" : (isSubRule ? "SUB_RULE" : "RULE");
         String relationshipType = isOrRelationship ? "OR" : "AND";
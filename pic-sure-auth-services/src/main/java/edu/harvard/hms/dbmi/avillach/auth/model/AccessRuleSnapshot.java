@@ -0,0 +1,283 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Immutable copy of an {@link AccessRule}, detached from the persistence context, used to evaluate and cache the
+ * access rules of the users.
+ * <p>
+ * The copy does not hold any Hibernate collection or proxy: its gates, sub-rules and merged sub-rules are snapshots
+ * too, stored in compact read-only sets backed by an array, and its strings are interned, so the rules of thousands
+ * of users share the same strings. The merged sub-rules are computed when the snapshot is built, the evaluation
+ * never merges rules. The {@link CompiledAccessRule evaluation plan} of the rule is compiled once, when the snapshot
+ * is complete. Every setter throws {@link UnsupportedOperationException} once the snapshot is complete.
+ * <p>
+ * Although it extends the entity, a snapshot must never be passed to JPA: it is not managed and saving it would
+ * overwrite the rule with a copy that may be outdated. {@link
+ * edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService AccessRuleService} rejects snapshots with an
+ * {@link IllegalArgumentException}, the entity the snapshot was made from is the one to update.
+ */
+public final class AccessRuleSnapshot extends AccessRule {
+
+    private boolean complete;
+    private CompiledAccessRule compiledRule;
+
+    /**
+     * Copies the definition of the rule, the gates and sub-rules are set by {@link #complete}
+     */
+    private AccessRuleSnapshot(AccessRule accessRule) {
+        super.setUuid(accessRule.getUuid());
+        super.setName(intern(accessRule.getName()));
+        super.setDescription(intern(accessRule.getDescription()));
+        super.setType(accessRule.getType());
+        super.setRule(intern(accessRule.getRule()));
+        super.setValue(intern(accessRule.getValue()));
+        super.setGateAnyRelation(accessRule.getGateAnyRelation());
+        super.setEvaluateOnlyByGates(accessRule.getEvaluateOnlyByGates());
+        super.setCheckMapNode(accessRule.getCheckMapNode());
+        super.setCheckMapKeyOnly(accessRule.getCheckMapKeyOnly());
+        super.setMergedName(accessRule.getMergedName() == null ? "" : intern(accessRule.getMergedName()));
+        Set<String> mergedValues = accessRule.getMergedValues();
+        if (mergedValues == null || mergedValues.isEmpty()) {
+            super.setMergedValues(Collections.emptySet());
+        } else {
+            Set<String> values = new HashSet<>();
+            mergedValues.forEach(value -> values.add(intern(value)));
+            super.setMergedValues(Collections.unmodifiableSet(values));
+        }
+    }
+
+    /**
+     * Starts the snapshot of a rule. The snapshot can be referenced before it is complete, e.g. by a rule that is
+     * its own gate.
+     */
+    public static AccessRuleSnapshot start(AccessRule accessRule) {
+        return new AccessRuleSnapshot(accessRule);
+    }
+
+    /**
+     * Sets the gates and sub-rules of the snapshot, which can no longer be modified afterward.
+     *
+     * @param source        the rule the snapshot was started from
+     * @param snapshotOf    the snapshot of a gate, sub-rule or merged sub-rule of the rule
+     * @param mergeSubRules merges the snapshots of the sub-rules, see
+     *                      {@link edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService#preProcessARBySortedKeys(Set)}
+     */
+    public void complete(AccessRule source, Function<AccessRule, AccessRuleSnapshot> snapshotOf,
+                         Function<Set<AccessRule>, Set<AccessRule>> mergeSubRules) {
+        if (complete) {
+            throw new IllegalStateException("The snapshot of " + getName() + " is already complete");
+        }
+        super.setGates(snapshotsOf(source.getGates(), snapshotOf));
+        Set<AccessRule> subAccessRules = snapshotsOf(source.getSubAccessRule(), snapshotOf);
+        super.setSubAccessRule(subAccessRules);
+        if (subAccessRules != null) {
+            super.setMergedSubAccessRules(snapshotsOf(mergeSubRules.apply(subAccessRules), snapshotOf));
+        }
+        compiledRule = CompiledAccessRule.compile(this);
+        complete = true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the evaluation plan of the rule, null until the snapshot is complete
+     */
+    public CompiledAccessRule getCompiledRule() {
+        return compiledRule;
+    }
+
+    /**
+     * @param gates                the gates of the copy, snapshots
+     * @param mergedSubAccessRules the merged sub-rules of the copy, snapshots
+     * @return a complete copy of this snapshot with other gates and merged sub-rules, the sub-rules are the same
+     */
+    public AccessRuleSnapshot withConditions(Set<AccessRule> gates, Set<AccessRule> mergedSubAccessRules) {
+        AccessRuleSnapshot copy = new AccessRuleSnapshot(this);
+        Function<AccessRule, AccessRuleSnapshot> snapshotOf = accessRule -> {
+            if (accessRule instanceof AccessRuleSnapshot snapshot) {
+                return snapshot;
+            }
+            throw new IllegalArgumentException("The condition " + accessRule.getName() + " of a snapshot must be a snapshot");
+        };
+        copy.setGates(snapshotsOf(gates, snapshotOf));
+        copy.setSubAccessRule(getSubAccessRule());
+        copy.setMergedSubAccessRules(snapshotsOf(mergedSubAccessRules, snapshotOf));
+        // the definition of the rule is the same
+        copy.compiledRule = compiledRule;
+        copy.complete = true;
+        return copy;
+    }
+
+    private static Set<AccessRule> snapshotsOf(Set<AccessRule> accessRules, Function<AccessRule, AccessRuleSnapshot> snapshotOf) {
+        if (accessRules == null) {
+            return null;
+        }
+        AccessRule[] snapshots = new AccessRule[accessRules.size()];
+        int size = 0;
+        for (AccessRule accessRule : accessRules) {
+            snapshots[size++] = snapshotOf.apply(accessRule);
+        }
+        return new ArraySet(Arrays.copyOf(snapshots, size));
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    private void checkNotComplete() {
+        if (complete) {
+            throw new UnsupportedOperationException("The snapshot of access rule " + getName() + " cannot be modified");
+        }
+    }
+
+    @Override
+    public void setUuid(UUID uuid) {
+        checkNotComplete();
+        super.setUuid(uuid);
+    }
+
+    @Override
+    public void setName(String name) {
+        checkNotComplete();
+        super.setName(name);
+    }
+
+    @Override
+    public void setDescription(String description) {
+        checkNotComplete();
+        super.setDescription(description);
+    }
+
+    @Override
+    public void setType(Integer type) {
+        checkNotComplete();
+        super.setType(type);
+    }
+
+    @Override
+    public void setRule(String rule) {
+        checkNotComplete();
+        super.setRule(rule);
+    }
+
+    @Override
+    public void setValue(String value) {
+        checkNotComplete();
+        super.setValue(value);
+    }
+
+    @Override
+    public void setGates(Set<AccessRule> gates) {
+        checkNotComplete();
+        super.setGates(gates);
+    }
+
+    @Override
+    public void setEvaluateOnlyByGates(Boolean evaluateOnlyByGates) {
+        checkNotComplete();
+        super.setEvaluateOnlyByGates(evaluateOnlyByGates);
+    }
+
+    @Override
+    public void setSubAccessRule(Set<AccessRule> subAccessRule) {
+        checkNotComplete();
+        super.setSubAccessRule(subAccessRule);
+    }
+
+    @Override
+    public void setMergedSubAccessRules(Set<AccessRule> mergedSubAccessRules) {
+        checkNotComplete();
+        super.setMergedSubAccessRules(mergedSubAccessRules);
+    }
+
+    @Override
+    public void setCheckMapNode(Boolean checkMapNode) {
+        checkNotComplete();
+        super.setCheckMapNode(checkMapNode);
+    }
+
+    @Override
+    public void setCheckMapKeyOnly(Boolean checkMapKeyOnly) {
+        checkNotComplete();
+        super.setCheckMapKeyOnly(checkMapKeyOnly);
+    }
+
+    @Override
+    public void setMergedValues(Set<String> mergedValues) {
+        checkNotComplete();
+        super.setMergedValues(mergedValues);
+    }
+
+    @Override
+    public void setMergedName(String mergedName) {
+        checkNotComplete();
+        super.setMergedName(mergedName);
+    }
+
+    @Override
+    public void setGateAnyRelation(Boolean gateAnyRelation) {
+        checkNotComplete();
+        super.setGateAnyRelation(gateAnyRelation);
+    }
+
+    /**
+     * Read-only set of rules backed by an array, iterated in the order of the set it was copied from.
+     * The gates and sub-rules of a rule are few and only iterated, the lookups are linear.
+     */
+    private static final class ArraySet extends AbstractSet<AccessRule> {
+        private final AccessRule[] elements;
+
+        private ArraySet(AccessRule[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Iterator<AccessRule> iterator() {
+            return new Iterator<>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < elements.length;
+                }
+
+                @Override
+                public AccessRule next() {
+                    if (next >= elements.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return elements[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            for (AccessRule element : elements) {
+                if (Objects.equals(element, o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
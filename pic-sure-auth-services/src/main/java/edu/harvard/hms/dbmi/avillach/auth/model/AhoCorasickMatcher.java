@@ -0,0 +1,130 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Aho–Corasick automaton answering whether any of a fixed set of values is contained in a text.
+ * <p>
+ * The text is scanned once, so a lookup costs O(text length) no matter how many values the automaton
+ * was built from. Matching is done on chars, the same way {@link String#contains(CharSequence)} does.
+ */
+final class AhoCorasickMatcher {
+
+    private static final int ROOT = 0;
+
+    /** sorted outgoing chars of every state */
+    private final char[][] edgeChars;
+    /** target state of every outgoing char, same order as {@link #edgeChars} */
+    private final int[][] edgeTargets;
+    private final int[] failure;
+    /** index of a value that ends in the state or in one of its failure states, -1 if there is none */
+    private final int[] output;
+
+    /**
+     * @param values the values to look for, null values are ignored
+     */
+    AhoCorasickMatcher(List<String> values) {
+        List<TreeMap<Character, Integer>> transitions = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        transitions.add(new TreeMap<>());
+        ends.add(-1);
+
+        for (int index = 0; index < values.size(); index++) {
+            String value = values.get(index);
+            if (value == null) {
+                continue;
+            }
+            int state = ROOT;
+            for (int i = 0; i < value.length(); i++) {
+                Integer next = transitions.get(state).get(value.charAt(i));
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new TreeMap<>());
+                    ends.add(-1);
+                    transitions.get(state).put(value.charAt(i), next);
+                }
+                state = next;
+            }
+            if (ends.get(state) < 0) {
+                ends.set(state, index);
+            }
+        }
+
+        int states = transitions.size();
+        edgeChars = new char[states][];
+        edgeTargets = new int[states][];
+        for (int state = 0; state < states; state++) {
+            TreeMap<Character, Integer> edges = transitions.get(state);
+            edgeChars[state] = new char[edges.size()];
+            edgeTargets[state] = new int[edges.size()];
+            int i = 0;
+            for (var edge : edges.entrySet()) {
+                edgeChars[state][i] = edge.getKey();
+                edgeTargets[state][i] = edge.getValue();
+                i++;
+            }
+        }
+
+        failure = new int[states];
+        output = new int[states];
+        output[ROOT] = ends.get(ROOT);
+
+        // breadth first, so the failure state of a state is always complete before the state itself
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int target : edgeTargets[ROOT]) {
+            failure[target] = ROOT;
+            output[target] = ends.get(target) >= 0 ? ends.get(target) : output[ROOT];
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < edgeChars[state].length; i++) {
+                char c = edgeChars[state][i];
+                int target = edgeTargets[state][i];
+
+                int fallback = failure[state];
+                int next;
+                while ((next = transition(fallback, c)) < 0 && fallback != ROOT) {
+                    fallback = failure[fallback];
+                }
+                failure[target] = next < 0 ? ROOT : next;
+                output[target] = ends.get(target) >= 0 ? ends.get(target) : output[failure[target]];
+                queue.add(target);
+            }
+        }
+    }
+
+    private int transition(int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i < 0 ? -1 : edgeTargets[state][i];
+    }
+
+    /**
+     * @return the index of a value contained in the text, or -1 if the text contains none of the values
+     */
+    int findAny(String text) {
+        if (output[ROOT] >= 0) {
+            // the empty value is contained in every text
+            return output[ROOT];
+        }
+
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = transition(state, c)) < 0 && state != ROOT) {
+                state = failure[state];
+            }
+            state = next < 0 ? ROOT : next;
+            if (output[state] >= 0) {
+                return output[state];
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
+
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * An application resolved from its PSAMA application token, cached by application uuid.
+ * <p>
+ * The principal keeps a fingerprint of the token of the application instead of the token itself, the token
+ * presented by a request is compared to it with {@link #matchesToken(String)}. The application is a detached
+ * copy holding the name, uuid, enabled flag and privileges of the application, without its token.
+ *
+ * @param application      detached copy of the application
+ * @param tokenFingerprint SHA-256 digest of the current token of the application, null if it has no token
+ * @param privilegeIds     uuids of the privileges of the application
+ * @param enabled          the enabled flag of the application
+ */
+public record ApplicationPrincipal(Application application, byte[] tokenFingerprint, Set<UUID> privilegeIds, boolean enabled) {
+
+    public static ApplicationPrincipal of(Application application) {
+        Application detached = new Application();
+        detached.setUuid(application.getUuid());
+        detached.setName(application.getName());
+        detached.setDescription(application.getDescription());
+        detached.setUrl(application.getUrl());
+        detached.setEnable(application.isEnable());
+        Set<Privilege> privileges = application.getPrivileges() == null ? Set.of() : Set.copyOf(application.getPrivileges());
+        detached.setPrivileges(privileges);
+
+        return new ApplicationPrincipal(detached,
+                application.getToken() == null ? null : JWTUtil.tokenDigest(application.getToken()),
+                privileges.stream().map(Privilege::getUuid).filter(Objects::nonNull).collect(Collectors.toUnmodifiableSet()),
+                application.isEnable());
+    }
+
+    /**
+     * @return true if the token is the current token of the application
+     */
+    public boolean matchesToken(String token) {
+        return tokenFingerprint != null && token != null && MessageDigest.isEqual(tokenFingerprint, JWTUtil.tokenDigest(token));
+    }
+}
@@ -0,0 +1,70 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Immutable view of what the JWT filter needs to know about a user to authenticate a request: whether the user is
+ * active, the roles and privileges of the user, and when the user accepted the terms of service.
+ * <p>
+ * The snapshot is built from the user entity once and cached by subject, so requests of the same user do not load
+ * the user, role, privilege and application graph from the database again.
+ *
+ * @param userId                    uuid of the user
+ * @param subject                   subject of the user, the key of the snapshot
+ * @param email                     email of the user, used as the name of the principal
+ * @param active                    false if the user is deactivated
+ * @param roleNames                 names of the roles of the user
+ * @param privilegeIdsByApplication uuids of the privileges of the user by the uuid of their application, privileges
+ *                                  without an application are only in <code>privilegeNames</code>
+ * @param privilegeNames            names of all the privileges of the user
+ * @param hasPrivileges             true if at least one role of the user has a privilege
+ * @param acceptedTOS               when the user accepted the terms of service, null if never
+ */
+public record AuthorizationSnapshot(UUID userId, String subject, String email, boolean active, Set<String> roleNames,
+                                    Map<UUID, Set<UUID>> privilegeIdsByApplication, Set<String> privilegeNames,
+                                    boolean hasPrivileges, Instant acceptedTOS) {
+
+    public AuthorizationSnapshot {
+        roleNames = Set.copyOf(roleNames);
+        privilegeIdsByApplication = Map.copyOf(privilegeIdsByApplication);
+        privilegeNames = Set.copyOf(privilegeNames);
+    }
+
+    public static AuthorizationSnapshot of(User user) {
+        Set<String> roleNames = new HashSet<>();
+        Map<UUID, Set<UUID>> privilegeIdsByApplication = new HashMap<>();
+        Set<String> privilegeNames = new HashSet<>();
+        boolean hasPrivileges = false;
+
+        if (user.getRoles() != null) {
+            for (Role role : user.getRoles()) {
+                if (role.getName() != null) {
+                    roleNames.add(role.getName());
+                }
+                if (role.getPrivileges() == null) {
+                    continue;
+                }
+                for (Privilege privilege : role.getPrivileges()) {
+                    hasPrivileges = true;
+                    if (privilege.getName() != null) {
+                        privilegeNames.add(privilege.getName());
+                    }
+                    if (privilege.getApplication() != null && privilege.getApplication().getUuid() != null && privilege.getUuid() != null) {
+                        privilegeIdsByApplication.computeIfAbsent(privilege.getApplication().getUuid(), k -> new HashSet<>())
+                                .add(privilege.getUuid());
+                    }
+                }
+            }
+        }
+        privilegeIdsByApplication.replaceAll((application, privilegeIds) -> Set.copyOf(privilegeIds));
+
+        return new AuthorizationSnapshot(user.getUuid(), user.getSubject(), user.getEmail(), user.isActive(), roleNames,
+                privilegeIdsByApplication, privilegeNames, hasPrivileges,
+                user.getAcceptedTOS() == null ? null : Instant.ofEpochMilli(user.getAcceptedTOS().getTime()));
+    }
+}
@@ -0,0 +1,21 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+/**
+ * Size and usage counters of one cache, without its content.
+ * <p>
+ * The counters are only known for the caches that record statistics, see
+ * {@link edu.harvard.hms.dbmi.avillach.auth.config.CacheConfig}. They are 0 for the other caches.
+ *
+ * @param name                    name of the cache
+ * @param recordsStatistics       false if the counters are not recorded by the cache
+ * @param size                    estimated number of entries
+ * @param hitCount                lookups that found an entry
+ * @param missCount               lookups that did not find an entry
+ * @param hitRatio                hits divided by lookups, 1 if there was no lookup
+ * @param loadCount               values computed on a miss, successfully or not
+ * @param averageLoadPenaltyNanos average time spent computing a value on a miss
+ * @param evictionCount           entries removed because of the size limit or their expiration
+ */
+public record CacheStatistics(String name, boolean recordsStatistics, long size, long hitCount, long missCount, double hitRatio,
+                              long loadCount, double averageLoadPenaltyNanos, long evictionCount) {
+}
@@ -0,0 +1,306 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import com.jayway.jsonpath.JsonPath;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable evaluation plan for a single AccessRule.
+ * <p>
+ * Everything that only depends on the rule definition is prepared once: the jsonPath is compiled,
+ * regular expressions are compiled, the values used by the IGNORE_CASE types are lower-cased and
+ * the comparison is resolved to a type specific predicate. Merged values of the EQUALS and CONTAINS
+ * types are indexed so that they are all checked at once. The plan does not reference the
+ * AccessRule it was built from, so it can be shared between every rule instance with the same {@link Key}.
+ */
+public final class CompiledAccessRule {
+
+    /**
+     * Identifies the version of a rule definition a plan was compiled from.
+     * Two rules with equal keys always evaluate the same way.
+     */
+    public record Key(String rule, Integer type, String value, Set<String> mergedValues,
+                      Boolean checkMapNode, Boolean checkMapKeyOnly) {
+
+        public static Key of(AccessRule accessRule) {
+            return new Key(accessRule.getRule(), accessRule.getType(), accessRule.getValue(),
+                    accessRule.getMergedValues(), accessRule.getCheckMapNode(), accessRule.getCheckMapKeyOnly());
+        }
+
+        /**
+         * @return a copy of this key that no longer shares the (mutable) merged values of the rule
+         */
+        Key detach() {
+            Set<String> values = mergedValues == null ? null : Collections.unmodifiableSet(new HashSet<>(mergedValues));
+            return new Key(rule, type, value, values, checkMapNode, checkMapKeyOnly);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ValuePredicate {
+        boolean test(String requestBodyValue, String lowerCaseRequestBodyValue, int valueIndex);
+    }
+
+    private final Key key;
+    private final String rule;
+    private final JsonPath path;
+    private final RuntimeException pathError;
+    private final Integer type;
+    private final boolean supportedType;
+    private final boolean checkMapNode;
+    private final boolean checkMapKeyOnly;
+    private final List<String> values;
+    private final String[] lowerCaseValues;
+    private final Pattern[] patterns;
+    private final PatternSyntaxException[] patternErrors;
+    private final boolean lowerCaseRequest;
+    private final ValuePredicate predicate;
+    private final ToIntFunction<String> multiValueMatcher;
+
+    private CompiledAccessRule(Key key) {
+        this.key = key;
+        this.type = key.type();
+        int typeValue = type == null ? -1 : type;
+        this.checkMapNode = key.checkMapNode() != null && key.checkMapNode();
+        this.checkMapKeyOnly = key.checkMapKeyOnly() != null && key.checkMapKeyOnly();
+
+        String rawRule = key.rule();
+        if (rawRule == null || rawRule.isEmpty()) {
+            this.rule = null;
+            this.path = null;
+            this.pathError = null;
+        } else {
+            this.rule = rawRule.stripLeading();
+            JsonPath compiled = null;
+            RuntimeException error = null;
+            try {
+                compiled = JsonPath.compile(this.rule);
+            } catch (RuntimeException e) {
+                // keep the behavior of reporting invalid paths when the rule is evaluated
+                error = e;
+            }
+            this.path = compiled;
+            this.pathError = error;
+        }
+
+        // merged values are OR relationship, the single value is only used when nothing has been merged
+        List<String> valueList = new ArrayList<>();
+        if (key.mergedValues() == null || key.mergedValues().isEmpty()) {
+            valueList.add(key.value());
+        } else {
+            valueList.addAll(key.mergedValues());
+        }
+        this.values = Collections.unmodifiableList(valueList);
+
+        this.lowerCaseValues = new String[values.size()];
+        this.patterns = new Pattern[values.size()];
+        this.patternErrors = new PatternSyntaxException[values.size()];
+        boolean regex = typeValue == AccessRule.TypeNaming.ALL_REG_MATCH || typeValue == AccessRule.TypeNaming.ANY_REG_MATCH;
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            if (value == null) {
+                continue;
+            }
+            lowerCaseValues[i] = value.toLowerCase();
+            if (regex) {
+                try {
+                    patterns[i] = Pattern.compile(value);
+                } catch (PatternSyntaxException e) {
+                    patternErrors[i] = e;
+                }
+            }
+        }
+
+        this.lowerCaseRequest = typeValue == AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE
+                || typeValue == AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE
+                || typeValue == AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY_IGNORE_CASE;
+
+        boolean supported = true;
+        this.predicate = switch (typeValue) {
+            case AccessRule.TypeNaming.NOT_CONTAINS -> (request, lowerRequest, i) -> !request.contains(values.get(i));
+            case AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE ->
+                    (request, lowerRequest, i) -> !lowerRequest.contains(lowerCaseValues[i]);
+            case AccessRule.TypeNaming.NOT_EQUALS -> (request, lowerRequest, i) -> !values.get(i).equals(request);
+            case AccessRule.TypeNaming.ANY_EQUALS, AccessRule.TypeNaming.ALL_EQUALS ->
+                    (request, lowerRequest, i) -> values.get(i).equals(request);
+            case AccessRule.TypeNaming.ALL_CONTAINS, AccessRule.TypeNaming.ANY_CONTAINS,
+                 AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY ->
+                    (request, lowerRequest, i) -> request.contains(values.get(i));
+            case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE,
+                 AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY_IGNORE_CASE ->
+                    (request, lowerRequest, i) -> lowerRequest.contains(lowerCaseValues[i]);
+            case AccessRule.TypeNaming.NOT_EQUALS_IGNORE_CASE ->
+                    (request, lowerRequest, i) -> !values.get(i).equalsIgnoreCase(request);
+            case AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE ->
+                    (request, lowerRequest, i) -> values.get(i).equalsIgnoreCase(request);
+            case AccessRule.TypeNaming.ALL_REG_MATCH, AccessRule.TypeNaming.ANY_REG_MATCH -> (request, lowerRequest, i) -> {
+                if (patternErrors[i] != null) {
+                    throw patternErrors[i];
+                }
+                return patterns[i].matcher(request).matches();
+            };
+            default -> {
+                supported = false;
+                yield (request, lowerRequest, i) -> true;
+            }
+        };
+        this.supportedType = supported;
+        this.multiValueMatcher = compileMultiValueMatcher(typeValue);
+    }
+
+    /**
+     * Merged values of the EQUALS types are looked up in a hash map and merged values of the CONTAINS types
+     * are searched with a single Aho–Corasick automaton, so a request value is checked in O(length of the value)
+     * instead of once per merged value.
+     *
+     * @return a matcher for non-null request body values, or null if the values are checked one by one
+     */
+    private ToIntFunction<String> compileMultiValueMatcher(int typeValue) {
+        if (values.stream().filter(Objects::nonNull).count() < 2) {
+            return null;
+        }
+
+        return switch (typeValue) {
+            case AccessRule.TypeNaming.ANY_EQUALS, AccessRule.TypeNaming.ALL_EQUALS -> {
+                Map<String, Integer> indexByValue = indexByValue(values);
+                yield request -> indexByValue.getOrDefault(request, -1);
+            }
+            case AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE -> {
+                List<String> foldedValues = values.stream().map(value -> value == null ? null : foldCase(value)).toList();
+                Map<String, Integer> indexByFoldedValue = indexByValue(foldedValues);
+                yield request -> {
+                    int i = indexByFoldedValue.getOrDefault(foldCase(request), -1);
+                    // folding is only a lookup key, the match is confirmed with the original comparison
+                    return i < 0 || values.get(i).equalsIgnoreCase(request) ? i : matchEachValue(request, null);
+                };
+            }
+            case AccessRule.TypeNaming.ALL_CONTAINS, AccessRule.TypeNaming.ANY_CONTAINS,
+                 AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY -> {
+                AhoCorasickMatcher matcher = new AhoCorasickMatcher(values);
+                yield matcher::findAny;
+            }
+            case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE,
+                 AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY_IGNORE_CASE -> {
+                AhoCorasickMatcher matcher = new AhoCorasickMatcher(Arrays.asList(lowerCaseValues));
+                yield request -> matcher.findAny(request.toLowerCase());
+            }
+            default -> null;
+        };
+    }
+
+    private static Map<String, Integer> indexByValue(List<String> values) {
+        Map<String, Integer> indexByValue = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != null) {
+                indexByValue.putIfAbsent(values.get(i), i);
+            }
+        }
+        return indexByValue;
+    }
+
+    /**
+     * Same per code point folding as {@link String#equalsIgnoreCase(String)}.
+     */
+    private static String foldCase(String value) {
+        StringBuilder folded = new StringBuilder(value.length());
+        value.codePoints().forEach(codePoint -> folded.appendCodePoint(Character.toLowerCase(Character.toUpperCase(codePoint))));
+        return folded.toString();
+    }
+
+    public static CompiledAccessRule compile(AccessRule accessRule) {
+        return compile(Key.of(accessRule));
+    }
+
+    public static CompiledAccessRule compile(Key key) {
+        return new CompiledAccessRule(key.detach());
+    }
+
+    /**
+     * Finds the first value of the rule that accepts the given request body value.
+     *
+     * @param requestBodyValue the value retrieved from the request body
+     * @return the index of the accepting value in {@link #getValues()}, or -1 if no value accepts it.
+     * When several merged values accept it, any of them may be reported.
+     */
+    public int match(String requestBodyValue) {
+        if (multiValueMatcher != null && requestBodyValue != null) {
+            return multiValueMatcher.applyAsInt(requestBodyValue);
+        }
+        return matchEachValue(requestBodyValue, lowerCaseRequest && requestBodyValue != null ? requestBodyValue.toLowerCase() : null);
+    }
+
+    private int matchEachValue(String requestBodyValue, String lowerCaseRequestBodyValue) {
+        for (int i = 0; i < values.size(); i++) {
+            // a null value only accepts a null request body value and is never handed to the predicate
+            if (values.get(i) == null) {
+                if (requestBodyValue == null) {
+                    return i;
+                }
+                continue;
+            }
+
+            if (predicate.test(requestBodyValue, lowerCaseRequestBodyValue, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the compiled jsonPath, or null if the rule has no path and always passes
+     * @throws RuntimeException the original exception if the rule is not a valid jsonPath
+     */
+    public JsonPath getPath() {
+        if (pathError != null) {
+            throw pathError;
+        }
+        return path;
+    }
+
+    public boolean hasPath() {
+        return rule != null;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * @throws NullPointerException if the rule has no type, rules without a path are never asked for their type
+     */
+    public int getType() {
+        return type;
+    }
+
+    public boolean isSupportedType() {
+        return supportedType;
+    }
+
+    public boolean isCheckMapNode() {
+        return checkMapNode;
+    }
+
+    public boolean isCheckMapKeyOnly() {
+        return checkMapKeyOnly;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+}
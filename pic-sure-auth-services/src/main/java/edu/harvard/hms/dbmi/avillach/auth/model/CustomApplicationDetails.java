@@ -10,9 +10,16 @@ import java.util.List;
 public class CustomApplicationDetails implements UserDetails {
 
     private final Application application;
+    private final ApplicationPrincipal principal;
 
     public CustomApplicationDetails(Application authenticatedApplication) {
         this.application = authenticatedApplication;
+        this.principal = null;
+    }
+
+    public CustomApplicationDetails(ApplicationPrincipal principal) {
+        this.application = principal.application();
+        this.principal = principal;
     }
 
     @Override
@@ -53,4 +60,14 @@ public class CustomApplicationDetails implements UserDetails {
     public Application getApplication() {
         return application;
     }
+
+    /**
+     * @return true if the token is the current token of the application
+     */
+    public boolean matchesToken(String token) {
+        if (principal != null) {
+            return principal.matchesToken(token);
+        }
+        return application.getToken() != null && application.getToken().equals(token);
+    }
 }
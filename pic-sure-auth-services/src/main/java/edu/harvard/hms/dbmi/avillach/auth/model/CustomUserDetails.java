@@ -7,14 +7,19 @@ import org.springframework.security.core.userdetails.UserDetails;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.function.Supplier;
 
 public class CustomUserDetails implements UserDetails {
 
-    private final User user;
+    private volatile User user;
+    private final Supplier<User> userLoader;
+    private final AuthorizationSnapshot snapshot;
     private final Collection<? extends GrantedAuthority> authorities;
 
     public CustomUserDetails(User user) {
         this.user = user;
+        this.userLoader = null;
+        this.snapshot = user != null ? AuthorizationSnapshot.of(user) : null;
         if (user != null && user.getRoles() != null) {
             this.authorities = new ArrayList<>(user.getTotalPrivilege().stream()
                     .map(privilege-> new SimpleGrantedAuthority(privilege.getName()))
@@ -24,6 +29,18 @@ public class CustomUserDetails implements UserDetails {
         }
     }
 
+    /**
+     * Details of a user authenticated from a cached snapshot. The user entity is only loaded, with the user loader,
+     * when {@link #getUser()} is called.
+     */
+    public CustomUserDetails(AuthorizationSnapshot snapshot, Supplier<User> userLoader) {
+        this.userLoader = userLoader;
+        this.snapshot = snapshot;
+        this.authorities = new ArrayList<>(snapshot.privilegeNames().stream()
+                .map(SimpleGrantedAuthority::new)
+                .toList());
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
         return this.authorities;
@@ -36,7 +53,7 @@ public class CustomUserDetails implements UserDetails {
 
     @Override
     public String getUsername() {
-        return this.user.getEmail();
+        return this.snapshot != null ? this.snapshot.email() : this.user.getEmail();
     }
 
     @Override
@@ -60,6 +77,16 @@ public class CustomUserDetails implements UserDetails {
     }
 
     public User getUser() {
+        if (user == null && userLoader != null) {
+            user = userLoader.get();
+        }
         return user;
     }
+
+    /**
+     * @return the authorization state of the user, null if there is no user
+     */
+    public AuthorizationSnapshot getSnapshot() {
+        return snapshot;
+    }
 }
@@ -6,6 +6,13 @@ import edu.harvard.hms.dbmi.avillach.hpds.data.query.v3.Query;
 import java.util.Optional;
 import java.util.Set;
 
+/**
+ * @param trace compact evaluation trace of a denied request, only present if the request was traced
+ */
 public record EvaluateAccessRuleResult(boolean result, Set<AccessRule> failedRules, String passRuleName,
-                                       Optional<Query> query) {
+                                       Optional<Query> query, String trace) {
+
+    public EvaluateAccessRuleResult(boolean result, Set<AccessRule> failedRules, String passRuleName, Optional<Query> query) {
+        this(result, failedRules, passRuleName, query, null);
+    }
 }
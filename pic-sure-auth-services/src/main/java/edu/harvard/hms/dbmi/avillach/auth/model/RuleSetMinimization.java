@@ -0,0 +1,27 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+/**
+ * How much a rule set shrank when the rules, gates and sub-rules that cannot change a decision were removed.
+ *
+ * @param rules           the number of merged rules before the minimization
+ * @param minimizedRules  the number of rules left to evaluate
+ * @param duplicateRules  the rules removed because a kept rule has the same conditions
+ * @param subsumedRules   the rules removed because they can only pass when a kept rule passes
+ * @param alwaysTrueRules the kept rules without any condition, they pass for every request
+ * @param removedGates    the gates removed because the other conditions of their rule imply them
+ * @param removedSubRules the merged sub-rules removed because the other conditions of their rule imply them
+ */
+public record RuleSetMinimization(int rules, int minimizedRules, int duplicateRules, int subsumedRules,
+                                  int alwaysTrueRules, int removedGates, int removedSubRules) {
+
+    /**
+     * @return the minimization of a rule set that was not analysed
+     */
+    public static RuleSetMinimization unchanged(int rules) {
+        return new RuleSetMinimization(rules, rules, 0, 0, 0, 0, 0);
+    }
+
+    public int removedRules() {
+        return rules - minimizedRules;
+    }
+}
@@ -1,8 +1,11 @@
 package edu.harvard.hms.dbmi.avillach.auth.rest;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.RuleSetMinimization;
 import edu.harvard.hms.dbmi.avillach.auth.model.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AccessRuleStatistics;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AuthorizationDecisionCache;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuditAttributes;
 import edu.harvard.dbmi.avillach.logging.AuditEvent;
 import io.swagger.v3.oas.annotations.*;
@@ -34,10 +37,15 @@ import static edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming.AuthRoleNaming
 public class AccessRuleController {
 
     private final AccessRuleService accessRuleService;
+    private final AccessRuleStatistics accessRuleStatistics;
+    private final AuthorizationDecisionCache authorizationDecisionCache;
 
     @Autowired
-    public AccessRuleController(AccessRuleService accessRuleService) {
+    public AccessRuleController(AccessRuleService accessRuleService, AccessRuleStatistics accessRuleStatistics,
+                                AuthorizationDecisionCache authorizationDecisionCache) {
         this.accessRuleService = accessRuleService;
+        this.accessRuleStatistics = accessRuleStatistics;
+        this.authorizationDecisionCache = authorizationDecisionCache;
     }
 
     @Operation(description = "GET information of one AccessRule with the UUID, requires ADMIN or SUPER_ADMIN role")
@@ -113,4 +121,28 @@ public class AccessRuleController {
         return PICSUREResponse.success(AccessRule.TypeNaming.getTypeNameMap());
     }
 
+    @Operation(description = "GET the pass count and evaluation time of the access rules by target service, in evaluation order, requires SUPER_ADMIN role")
+    @AuditEvent(type = "OTHER", action = "access_rule.statistics")
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, List<AccessRuleStatistics.RuleStatistics>>> getEvaluationStatistics() {
+        return PICSUREResponse.success(accessRuleStatistics.getStatistics());
+    }
+
+    @Operation(description = "GET the hit and miss counts of the authorization decision cache, requires SUPER_ADMIN role")
+    @AuditEvent(type = "OTHER", action = "access_rule.decision_cache.statistics")
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/decisionCache/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<AuthorizationDecisionCache.Statistics> getDecisionCacheStatistics() {
+        return PICSUREResponse.success(authorizationDecisionCache.getStatistics());
+    }
+
+    @Operation(description = "GET by user subject how many rules, gates and sub-rules were removed from the last rule set cached for the user because they cannot change a decision, requires SUPER_ADMIN role")
+    @AuditEvent(type = "OTHER", action = "access_rule.minimization.statistics")
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/minimization/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, RuleSetMinimization>> getRuleSetMinimizations() {
+        return PICSUREResponse.success(accessRuleService.getRuleSetMinimizations());
+    }
+
 }
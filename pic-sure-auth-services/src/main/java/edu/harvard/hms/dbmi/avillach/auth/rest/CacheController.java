@@ -1,45 +1,97 @@
 package edu.harvard.hms.dbmi.avillach.auth.rest;
 
 import edu.harvard.dbmi.avillach.logging.AuditEvent;
+import edu.harvard.hms.dbmi.avillach.auth.model.CacheStatistics;
+import edu.harvard.hms.dbmi.avillach.auth.model.response.PICSUREResponse;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationDependencyIndex;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.CacheStatisticsService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.annotation.security.RolesAllowed;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
+import static edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming.AuthRoleNaming.SUPER_ADMIN;
+
+/**
+ * <p>Statistics of the caches, used to size the caches from their actual use. The content of the caches is not listed.</p>
+ * <p>The version of the dependency index tells how many admin changes evicted the cached rules of the users.</p>
+ * <p>Reading a single entry exposes the data of a user, it is only available when
+ * <code>app.cache.inspect.enabled</code> is true.</p>
+ * <p>
+ * Path: /cache
+ */
+@Tag(name = "Cache Management")
 @RestController
-@ConditionalOnExpression("${app.cache.inspect.enabled:false}")
 @RequestMapping("/cache")
 public class CacheController {
 
-    private final CacheManager cacheManager;
+    private final CacheStatisticsService cacheStatisticsService;
+    private final AuthorizationDependencyIndex authorizationDependencyIndex;
+    private final boolean entryInspectionEnabled;
 
     @Autowired
-    public CacheController(CacheManager cacheManager) {
-        this.cacheManager = cacheManager;
+    public CacheController(CacheStatisticsService cacheStatisticsService,
+                           AuthorizationDependencyIndex authorizationDependencyIndex,
+                           @Value("${app.cache.inspect.enabled:false}") boolean entryInspectionEnabled) {
+        this.cacheStatisticsService = cacheStatisticsService;
+        this.authorizationDependencyIndex = authorizationDependencyIndex;
+        this.entryInspectionEnabled = entryInspectionEnabled;
     }
 
+    @Operation(description = "GET the size, hit ratio, load time and evictions of every cache, requires SUPER_ADMIN role")
     @AuditEvent(type = "OTHER", action = "cache.list")
-    @GetMapping
-    public Collection<String> getCacheNames() {
-        return cacheManager.getCacheNames();
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<CacheStatistics>> getCacheStatistics() {
+        return PICSUREResponse.success(cacheStatisticsService.getStatistics());
+    }
+
+    @Operation(description = "GET the version and size of the index evicting the cached rules of the users affected by a change to access rules, privileges or roles, requires SUPER_ADMIN role")
+    @AuditEvent(type = "OTHER", action = "cache.dependencies.read")
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/dependencies", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<AuthorizationDependencyIndex.Statistics> getDependencyIndexStatistics() {
+        return PICSUREResponse.success(authorizationDependencyIndex.getStatistics());
     }
 
+    @Operation(description = "GET the size, hit ratio, load time and evictions of one cache, requires SUPER_ADMIN role")
     @AuditEvent(type = "OTHER", action = "cache.read")
-    @GetMapping("/{cacheName}")
-    public Object getCache(@PathVariable("cacheName") String cacheName) {
-        Cache cache = cacheManager.getCache(cacheName);
-        if (cache == null) {
-            throw new IllegalArgumentException("Cache not found: " + cacheName);
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/{cacheName}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getCacheStatistics(
+            @Parameter(description = "The name of the cache") @PathVariable("cacheName") String cacheName) {
+        Optional<CacheStatistics> statistics = cacheStatisticsService.getStatistics(cacheName);
+        if (statistics.isEmpty()) {
+            return PICSUREResponse.error("Cache not found: " + cacheName, 404);
         }
-
-        return cache.getNativeCache();
+        return PICSUREResponse.success(statistics.get());
     }
 
-
+    @Operation(description = "GET one entry of a cache by its key, e.g. the merged rules of one user by subject, requires SUPER_ADMIN role")
+    @AuditEvent(type = "OTHER", action = "cache.entry.read")
+    @RolesAllowed(SUPER_ADMIN)
+    @GetMapping(path = "/{cacheName}/{key}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getCacheEntry(
+            @Parameter(description = "The name of the cache") @PathVariable("cacheName") String cacheName,
+            @Parameter(description = "The key of the entry, the subject of the user for the user caches") @PathVariable("key") String key) {
+        if (!entryInspectionEnabled) {
+            return PICSUREResponse.error("Cache inspection is disabled", 404);
+        }
+        Optional<Object> entry = cacheStatisticsService.getEntry(cacheName, key);
+        if (entry.isEmpty()) {
+            return PICSUREResponse.error("Entry not found: " + key, 404);
+        }
+        return PICSUREResponse.success(entry.get());
+    }
 }
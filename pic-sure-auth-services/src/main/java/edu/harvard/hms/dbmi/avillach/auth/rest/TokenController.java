@@ -4,6 +4,7 @@ import edu.harvard.hms.dbmi.avillach.auth.model.InvalidRefreshToken;
 import edu.harvard.hms.dbmi.avillach.auth.model.RefreshToken;
 import edu.harvard.hms.dbmi.avillach.auth.model.ValidRefreshToken;
 import edu.harvard.hms.dbmi.avillach.auth.model.response.PICSUREResponse;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AccessRuleTracePolicy;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AuthorizationService;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.TokenService;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuditAttributes;
@@ -19,6 +20,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,7 +53,8 @@ public class TokenController {
             @Parameter(required = true, description = "A JSON object that at least" +
                     " include a user the token for validation")
             @RequestBody Map<String, Object> inputMap, HttpServletRequest request) {
-        Map<String, Object> resultMap = this.tokenService.inspectToken(inputMap);
+        boolean traceRequested = Boolean.parseBoolean(request.getHeader(AccessRuleTracePolicy.TRACE_HEADER));
+        Map<String, Object> resultMap = this.tokenService.inspectToken(inputMap, traceRequested);
 
         boolean active = Boolean.TRUE.equals(resultMap.getOrDefault("active", false));
         AuditAttributes.putMetadata(request, "authz_result", active ? "granted" : "denied");
@@ -81,6 +84,24 @@ public class TokenController {
         return PICSUREResponse.success(resultMap);
     }
 
+    @Operation(description = "Token introspection of several tokens and requests at once, the responses are in the order of the items." +
+            " A batch of more than application.token.inspection.batch.max.size items is rejected with a 400")
+    @AuditEvent(type = "ACCESS", action = "token.introspect.batch")
+    @PostMapping(path = "/inspect/batch", produces = "application/json")
+    public ResponseEntity<List<Map<String, Object>>> inspectTokens(
+            @Parameter(required = true, description = "A JSON array of objects in the format of the token" +
+                    " introspection endpoint, each one including a token and a request")
+            @RequestBody List<Map<String, Object>> items, HttpServletRequest request) {
+        boolean traceRequested = Boolean.parseBoolean(request.getHeader(AccessRuleTracePolicy.TRACE_HEADER));
+        List<Map<String, Object>> results = this.tokenService.inspectTokens(items, traceRequested);
+
+        long granted = results.stream().filter(resultMap -> Boolean.TRUE.equals(resultMap.getOrDefault("active", false))).count();
+        AuditAttributes.putMetadata(request, "authz_batch_size", String.valueOf(results.size()));
+        AuditAttributes.putMetadata(request, "authz_batch_granted", String.valueOf(granted));
+
+        return PICSUREResponse.success(results);
+    }
+
     @Operation(description = "To refresh current user's token if the user is an active user")
     @AuditEvent(type = "ACCESS", action = "token.refresh")
     @GetMapping(path = "/refresh", produces = "application/json")
@@ -0,0 +1,213 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleSnapshot;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The {@link AccessRuleSnapshot snapshots} of the access rules, and the rule sets made of them, for one version of
+ * the rules.
+ * <p>
+ * The snapshot of a saved rule is built the first time the rule is used and then shared by every rule set of this
+ * version, so a gate or sub-rule used by many rules is only copied once. Merged rules only exist in the rule set they
+ * were merged for, their snapshots are not kept.
+ * <p>
+ * A catalog is never modified by a change to the rules: {@link #withChangedRules} copies it into the catalog of the
+ * next version without the changed rules, the rules using them as a gate or sub-rule and the rule sets containing
+ * them. Everything else is carried over as is, and an evaluation started with the previous catalog keeps using its
+ * rule sets.
+ * <p>
+ * The changes are only known when they are made through this node. A catalog {@link #isExpired expires} a while
+ * after it was started, it is then replaced by an empty catalog so that changes made by another node, or directly in
+ * the database, are seen after the ttl at the latest.
+ */
+class AccessRuleCatalog {
+
+    /**
+     * The number of snapshots is bounded by the rules in the database, the limit only protects against unbounded
+     * growth
+     */
+    private static final int MAX_SNAPSHOTS = 100_000;
+
+    /**
+     * Users with the same roles have the same privileges, so the number of distinct rule sets is bounded by the
+     * role combinations in use, the limit only protects against unbounded growth.
+     */
+    private static final int MAX_RULE_SETS = 1_000;
+
+    private final long version;
+    private final long expiresAt;
+    private final Function<Set<AccessRule>, Set<AccessRule>> mergeRules;
+    private final ConcurrentHashMap<UUID, AccessRuleSnapshot> snapshots;
+    /**
+     * Minimized rule sets by the sorted ids of the rules they were built from
+     */
+    private final ConcurrentHashMap<RuleSetKey, AccessRuleSetMinimizer.Result> ruleSets;
+
+    /**
+     * @param accessRuleIds the sorted ids of the rules of the rule set
+     * @param merged        true if the rules sharing a key were merged into one rule
+     */
+    record RuleSetKey(List<UUID> accessRuleIds, boolean merged) {
+        RuleSetKey {
+            accessRuleIds = List.copyOf(accessRuleIds);
+        }
+    }
+
+    /**
+     * @param expiresAt  the time in milliseconds after which the catalog is no longer used
+     * @param mergeRules merges the rules that only differ by their value, see {@link AccessRuleService#preProcessARBySortedKeys(Set)}
+     */
+    AccessRuleCatalog(long version, long expiresAt, Function<Set<AccessRule>, Set<AccessRule>> mergeRules) {
+        this(version, expiresAt, mergeRules, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    private AccessRuleCatalog(long version, long expiresAt, Function<Set<AccessRule>, Set<AccessRule>> mergeRules,
+                              ConcurrentHashMap<UUID, AccessRuleSnapshot> snapshots,
+                              ConcurrentHashMap<RuleSetKey, AccessRuleSetMinimizer.Result> ruleSets) {
+        this.version = version;
+        this.expiresAt = expiresAt;
+        this.mergeRules = mergeRules;
+        this.snapshots = snapshots;
+        this.ruleSets = ruleSets;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the snapshots of the catalog may be older than the ttl
+     */
+    boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the catalog of the given version, without the snapshots and rule sets depending on the changed rules.
+     * It expires with this catalog, the snapshots it carries over are as old.
+     */
+    AccessRuleCatalog withChangedRules(long nextVersion, Collection<UUID> changedAccessRuleIds) {
+        ConcurrentHashMap<UUID, AccessRuleSnapshot> nextSnapshots = new ConcurrentHashMap<>(snapshots);
+        Set<UUID> stale = findDependents(nextSnapshots.values(), changedAccessRuleIds);
+        nextSnapshots.keySet().removeAll(stale);
+        ConcurrentHashMap<RuleSetKey, AccessRuleSetMinimizer.Result> nextRuleSets = new ConcurrentHashMap<>(ruleSets);
+        if (!stale.isEmpty()) {
+            nextRuleSets.keySet().removeIf(key -> key.accessRuleIds().stream().anyMatch(stale::contains));
+        }
+        return new AccessRuleCatalog(nextVersion, expiresAt, mergeRules, nextSnapshots, nextRuleSets);
+    }
+
+    /**
+     * @return the changed rules and every rule of the catalog using one of them, directly or not, as a gate or sub-rule
+     */
+    private static Set<UUID> findDependents(Collection<AccessRuleSnapshot> snapshots, Collection<UUID> changedAccessRuleIds) {
+        Set<UUID> dependents = new HashSet<>(changedAccessRuleIds);
+        if (changedAccessRuleIds.isEmpty()) {
+            return dependents;
+        }
+
+        Map<UUID, Set<UUID>> usersByRule = new HashMap<>();
+        for (AccessRuleSnapshot snapshot : snapshots) {
+            for (Set<AccessRule> used : Arrays.asList(snapshot.getGates(), snapshot.getSubAccessRule())) {
+                if (used == null) {
+                    continue;
+                }
+                for (AccessRule accessRule : used) {
+                    if (accessRule.getUuid() != null) {
+                        usersByRule.computeIfAbsent(accessRule.getUuid(), ruleId -> new HashSet<>()).add(snapshot.getUuid());
+                    }
+                }
+            }
+        }
+
+        Deque<UUID> pending = new ArrayDeque<>(dependents);
+        while (!pending.isEmpty()) {
+            for (UUID user : usersByRule.getOrDefault(pending.pop(), Set.of())) {
+                if (dependents.add(user)) {
+                    pending.push(user);
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * @return the rule set, null if it is not built yet
+     */
+    AccessRuleSetMinimizer.Result getRuleSet(RuleSetKey key) {
+        return ruleSets.get(key);
+    }
+
+    /**
+     * @return the rule set kept for the ids, the given one unless another one was built concurrently
+     */
+    AccessRuleSetMinimizer.Result putRuleSet(RuleSetKey key, AccessRuleSetMinimizer.Result ruleSet) {
+        if (ruleSets.size() >= MAX_RULE_SETS) {
+            ruleSets.clear();
+        }
+        AccessRuleSetMinimizer.Result existing = ruleSets.putIfAbsent(key, ruleSet);
+        return existing == null ? ruleSet : existing;
+    }
+
+    /**
+     * @return the snapshot of the rule with its gates and sub-rules
+     */
+    AccessRuleSnapshot snapshotOf(AccessRule accessRule) {
+        return snapshotOf(accessRule, new IdentityHashMap<>());
+    }
+
+    /**
+     * @param started the snapshots started by this call and not complete yet, by the rule they are made from
+     */
+    private AccessRuleSnapshot snapshotOf(AccessRule accessRule, Map<AccessRule, AccessRuleSnapshot> started) {
+        if (accessRule instanceof AccessRuleSnapshot snapshot) {
+            return snapshot;
+        }
+        boolean shared = isSaved(accessRule);
+        if (shared) {
+            AccessRuleSnapshot snapshot = snapshots.get(accessRule.getUuid());
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        AccessRuleSnapshot snapshot = started.get(accessRule);
+        if (snapshot != null) {
+            // the rule is one of its own gates or sub-rules
+            return snapshot;
+        }
+
+        snapshot = AccessRuleSnapshot.start(accessRule);
+        started.put(accessRule, snapshot);
+        snapshot.complete(accessRule, rule -> snapshotOf(rule, started), mergeRules);
+
+        if (shared) {
+            if (snapshots.size() >= MAX_SNAPSHOTS) {
+                // the rule sets cannot be invalidated without the snapshots of their rules
+                snapshots.clear();
+                ruleSets.clear();
+            }
+            AccessRuleSnapshot existing = snapshots.putIfAbsent(accessRule.getUuid(), snapshot);
+            if (existing != null) {
+                snapshot = existing;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if the rule is a rule of the database, not a rule merged for a rule set
+     */
+    private static boolean isSaved(AccessRule accessRule) {
+        return accessRule.getUuid() != null
+                && (accessRule.getMergedName() == null || accessRule.getMergedName().isEmpty())
+                && (accessRule.getMergedValues() == null || accessRule.getMergedValues().isEmpty());
+    }
+}
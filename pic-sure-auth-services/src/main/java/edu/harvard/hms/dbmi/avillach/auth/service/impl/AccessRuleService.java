@@ -1,7 +1,5 @@
 package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.PathNotFoundException;
 import com.mysql.cj.xdevapi.JsonArray;
 import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
@@ -9,7 +7,11 @@ import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.entity.User;
 import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleEvaluationNode;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.RuleSetMinimization;
 import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TransactionUtil;
 import io.micrometer.common.util.StringUtils;
 import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
@@ -23,6 +25,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @Service
@@ -31,9 +34,40 @@ public class AccessRuleService {
     private final Logger logger = LoggerFactory.getLogger(AccessRuleService.class);
 
     private final AccessRuleRepository accessRuleRepo;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AuthorizationDependencyIndex authorizationDependencyIndex;
 
     private final ConcurrentHashMap<String, AccessRule> accessRuleCache = new ConcurrentHashMap<>();
+
+    /**
+     * Evaluation plans of the rules that are not {@link AccessRuleSnapshot snapshots}, keyed by rule definition, the
+     * least recently used are dropped first. Snapshots hold their own plan.
+     */
+    private static final int MAX_COMPILED_ACCESS_RULES = 10_000;
+    private final Map<CompiledAccessRule.Key, CompiledAccessRule> compiledAccessRuleCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CompiledAccessRule.Key, CompiledAccessRule> eldest) {
+            return size() > MAX_COMPILED_ACCESS_RULES;
+        }
+    };
+
+    /**
+     * Minimization of the last rule set cached for a user, by subject, see {@link #getRuleSetMinimizations()}.
+     * The limit follows the default size of the user caches.
+     */
+    private static final int MAX_RULE_SET_MINIMIZATIONS = 10_000;
+    private final ConcurrentHashMap<String, RuleSetMinimization> ruleSetMinimizations = new ConcurrentHashMap<>();
+    /**
+     * Incremented by every change to the access rules, see {@link #getRuleSetVersion()}
+     */
+    private final AtomicLong ruleSetVersion = new AtomicLong();
+    /**
+     * The snapshots and rule sets of the current version of the access rules. A change to the access rules swaps in
+     * a copy of the catalog without the changed rules and their dependents, see {@link AccessRuleCatalog#withChangedRules}.
+     * It is started again when it expires, see {@link #getRuleCatalog()}.
+     */
+    private volatile AccessRuleCatalog ruleCatalog;
+    private final long ruleCatalogTtlMillis;
+
     private Set<AccessRule> allowQueryTypeRules;
     private Set<AccessRule> standardAccessRules;
 
@@ -48,10 +82,6 @@ public class AccessRuleService {
 
     private String[] underscoreFields;
 
-    private final ThreadLocal<Stack<AccessRuleEvaluationNode>> evaluationTreeStack = 
-        ThreadLocal.withInitial(Stack::new);
-    private final ThreadLocal<AccessRuleEvaluationNode> rootNode = new ThreadLocal<>();
-
     @Autowired
     public AccessRuleService(AccessRuleRepository accessRuleRepo,
                              @Value("${fence.harmonized.consent.group.concept.path}") String fenceHarmonizedConsentGroupConceptPath,
@@ -59,8 +89,13 @@ public class AccessRuleService {
                              @Value("${fence.topmed.consent.group.concept.path}") String fenceTopmedConceptPath,
                              @Value("${fence.standard.access.rules}") String fenceStandardAccessRules,
                              @Value("${fence.allowed.query.types}") String fenceAllowedQueryTypes,
-                             @Value("${fence.consent.group.concept.path}") String fenceHarmonizedConceptPath) {
+                             @Value("${fence.consent.group.concept.path}") String fenceHarmonizedConceptPath,
+                             AuthorizationDependencyIndex authorizationDependencyIndex,
+                             @Value("${access.rule.catalog.ttl.seconds:60}") long ruleCatalogTtlSeconds) {
         this.accessRuleRepo = accessRuleRepo;
+        this.authorizationDependencyIndex = authorizationDependencyIndex;
+        this.ruleCatalogTtlMillis = Math.max(ruleCatalogTtlSeconds, 0) * 1000;
+        this.ruleCatalog = startRuleCatalog(0);
         this.fence_harmonized_consent_group_concept_path = fenceHarmonizedConsentGroupConceptPath;
         this.fence_parent_consent_group_concept_path = fenceParentConceptPath;
         this.fence_topmed_consent_group_concept_path = fenceTopmedConceptPath;
@@ -104,6 +139,7 @@ public class AccessRuleService {
     }
 
     public List<AccessRule> addAccessRule(List<AccessRule> accessRules) {
+        accessRules.forEach(AccessRuleService::checkNotSnapshot);
         accessRules.forEach(accessRule -> {
             if (accessRule.getEvaluateOnlyByGates() == null)
                 accessRule.setEvaluateOnlyByGates(false);
@@ -118,70 +154,107 @@ public class AccessRuleService {
                 accessRule.setGateAnyRelation(false);
         });
 
-        return this.accessRuleRepo.saveAll(accessRules);
+        List<AccessRule> savedAccessRules = this.accessRuleRepo.saveAll(accessRules);
+        ruleSetChanged(List.of());
+        return savedAccessRules;
     }
 
     public List<AccessRule> updateAccessRules(List<AccessRule> accessRules) {
-        return this.accessRuleRepo.saveAll(accessRules);
+        accessRules.forEach(AccessRuleService::checkNotSnapshot);
+        List<AccessRule> savedAccessRules = this.accessRuleRepo.saveAll(accessRules);
+        ruleSetChanged(savedAccessRules.stream().map(AccessRule::getUuid).filter(Objects::nonNull).toList());
+        return savedAccessRules;
+    }
+
+    /**
+     * Snapshots are read-only copies detached from the persistence context, saving one would overwrite the rule with
+     * a copy that may be outdated. The entity the snapshot was made from is the one to save.
+     */
+    private static void checkNotSnapshot(AccessRule accessRule) {
+        if (accessRule instanceof AccessRuleSnapshot) {
+            throw new IllegalArgumentException("Access rule " + accessRule.getName() + " is a snapshot and cannot be saved");
+        }
     }
 
     @Transactional
     public List<AccessRule> removeAccessRuleById(String accessRuleId) {
-        this.accessRuleRepo.deleteById(UUID.fromString(accessRuleId));
+        UUID uuid = UUID.fromString(accessRuleId);
+        this.accessRuleRepo.deleteById(uuid);
+        ruleSetChanged(List.of(uuid));
         return this.accessRuleRepo.findAll();
     }
 
     public AccessRule save(AccessRule accessRule) {
+        checkNotSnapshot(accessRule);
         // if the access rule exists in the AccessRule cache, update it
         if (accessRuleCache.containsKey(accessRule.getName())) {
             accessRuleCache.put(accessRule.getName(), accessRule);
         }
-        return this.accessRuleRepo.save(accessRule);
+        AccessRule savedAccessRule = this.accessRuleRepo.save(accessRule);
+        ruleSetChanged(accessRule.getUuid() == null ? List.of() : List.of(accessRule.getUuid()));
+        return savedAccessRule;
     }
 
     /**
-     * Prints the evaluation tree for the most recently evaluated access rule.
-     * This method should be called after evaluateAccessRule() has been called.
-     * 
-     * @return A string representation of the evaluation tree
+     * @return the version of the access rules, it changes every time an access rule is added, updated or removed
+     * through this service. Results computed from the rules, like authorization decisions, are only valid for the
+     * version they were computed with.
      */
-    public String printEvaluationTree() {
-        AccessRuleEvaluationNode root = rootNode.get();
-        if (root == null) {
-            return "No evaluation tree available";
-        }
-
+    public long getRuleSetVersion() {
+        return ruleSetVersion.get();
+    }
 
-        return "ACCESS RULE EVALUATION TREE:\n" + root.generateTreeString();
+    /**
+     * Changes the version of the access rules, rebuilds the snapshots and rule sets depending on the changed rules
+     * and evicts the cached rules of the users depending on them, once the change is committed. Before the commit a
+     * concurrent request would snapshot the rows as they were and keep them for the new version.
+     *
+     * @param changedAccessRuleIds the rules updated or removed, new rules are not used by any user yet
+     */
+    private void ruleSetChanged(Collection<UUID> changedAccessRuleIds) {
+        TransactionUtil.afterCommit(() -> {
+            synchronized (ruleSetVersion) {
+                this.ruleCatalog = this.ruleCatalog.withChangedRules(this.ruleSetVersion.incrementAndGet(), changedAccessRuleIds);
+            }
+        });
+        // registered after the catalog, the users are evicted once their rule sets are rebuilt
+        this.authorizationDependencyIndex.accessRulesChanged(changedAccessRuleIds);
     }
 
     /**
-     * Clears the evaluation tree data.
-     * This should be called after processing is complete to prevent memory leaks.
+     * @return the catalog of the current version, started again if it expired
      */
-    public void clearEvaluationTree() {
-        rootNode.remove();
-        evaluationTreeStack.remove();
+    private AccessRuleCatalog getRuleCatalog() {
+        AccessRuleCatalog catalog = this.ruleCatalog;
+        if (!catalog.isExpired(System.currentTimeMillis())) {
+            return catalog;
+        }
+        synchronized (ruleSetVersion) {
+            if (this.ruleCatalog == catalog) {
+                this.ruleCatalog = startRuleCatalog(catalog.getVersion());
+            }
+            return this.ruleCatalog;
+        }
+    }
+
+    private AccessRuleCatalog startRuleCatalog(long version) {
+        return new AccessRuleCatalog(version, System.currentTimeMillis() + ruleCatalogTtlMillis, this::preProcessARBySortedKeys);
     }
 
     public AccessRule getAccessRuleByName(String arName) {
         return this.accessRuleRepo.findByName(arName);
     }
 
-    @Cacheable(value = "mergedRulesCache", keyGenerator = "customKeyGenerator")
+    @Cacheable(value = "mergedRulesCache", keyGenerator = "customKeyGenerator", sync = true)
     public Set<AccessRule> getAccessRulesForUserAndApp(User user, Application application) {
         try {
+            this.authorizationDependencyIndex.recordUser(user);
             Set<Privilege> privileges = user.getPrivilegesByApplication(application);
             if (privileges == null || privileges.isEmpty()) {
                 return new HashSet<>();
             }
 
-            Set<AccessRule> detachedMergedRules = new HashSet<>();
-            for (AccessRule rule : preProcessAccessRules(privileges)) {
-                detachedMergedRules.add(objectMapper.readValue(objectMapper.writeValueAsString(rule), AccessRule.class));
-            }
-
-            return detachedMergedRules;
+            return getMinimizedRuleSet(user, privileges);
         } catch (Exception e) {
             logger.error("Error populating or retrieving data from cache: ", e);
         }
@@ -198,23 +271,105 @@ public class AccessRuleService {
         logger.info("evictFromMergedAccessRuleCache() evicting cache for user: {}", userSubject);
     }
 
-    @Cacheable(value = "preProcessedAccessRules", keyGenerator = "customKeyGenerator")
+    @Cacheable(value = "preProcessedAccessRules", keyGenerator = "customKeyGenerator", sync = true)
     public Set<AccessRule> cachedPreProcessAccessRules(User user, Set<Privilege> privileges) {
-        Set<AccessRule> accessRules = new HashSet<>();
-        for (Privilege privilege : privileges) {
-            accessRules.addAll(privilege.getAccessRules());
+        this.authorizationDependencyIndex.recordUser(user);
+        return getMinimizedRuleSet(user, privileges);
+    }
+
+    private Set<AccessRule> getMinimizedRuleSet(User user, Set<Privilege> privileges) {
+        AccessRuleSetMinimizer.Result ruleSet = getRuleSet(privileges, true);
+        if (user.getSubject() != null) {
+            if (ruleSetMinimizations.size() >= MAX_RULE_SET_MINIMIZATIONS) {
+                ruleSetMinimizations.clear();
+            }
+            ruleSetMinimizations.put(user.getSubject(), ruleSet.minimization());
         }
+        return ruleSet.accessRules();
+    }
+
+    /**
+     * @return by user subject, how much the last rule set cached for the user shrank when it was minimized
+     */
+    public Map<String, RuleSetMinimization> getRuleSetMinimizations() {
+        return new TreeMap<>(ruleSetMinimizations);
+    }
 
-        return preProcessARBySortedKeys(accessRules);
+    /**
+     * The merged access rules of the privileges, as {@link AccessRuleSnapshot snapshots} detached from the database,
+     * without the rules, gates and sub-rules that cannot change a decision, see {@link AccessRuleSetMinimizer}.
+     * <p>
+     * The rule set is shared by every user whose privileges have the same access rules, the per-user caches only
+     * hold a reference to it. It is identified by the ids of the access rules, so a change to the rules of a privilege
+     * gives another rule set, and it is rebuilt when one of its rules changes. The rule set and its rules are
+     * immutable.
+     */
+    public Set<AccessRule> getInternedRuleSet(Set<Privilege> privileges) {
+        return getRuleSet(privileges, true).accessRules();
+    }
+
+    /**
+     * Like {@link #getInternedRuleSet(Set)}, but the rules sharing a key are not merged: each rule is evaluated on its
+     * own, only its sub-rules are merged. Merging the rules ORs their values and unions their sub-rules, so a request
+     * could pass the conditions of one rule with the sub-rules of another.
+     */
+    public Set<AccessRule> getInternedUnmergedRuleSet(Set<Privilege> privileges) {
+        return getRuleSet(privileges, false).accessRules();
     }
 
-    public Set<AccessRule> preProcessAccessRules(Set<Privilege> privileges) {
+    /**
+     * @param merge true to merge the rules sharing a key, see {@link #preProcessARBySortedKeys(Set)}
+     */
+    private AccessRuleSetMinimizer.Result getRuleSet(Set<Privilege> privileges, boolean merge) {
+        AccessRuleCatalog catalog = getRuleCatalog();
         Set<AccessRule> accessRules = new HashSet<>();
         for (Privilege privilege : privileges) {
-            accessRules.addAll(privilege.getAccessRules());
+            if (privilege.getAccessRules() != null) {
+                accessRules.addAll(privilege.getAccessRules());
+            }
+        }
+        List<UUID> accessRuleIds = new ArrayList<>(accessRules.size());
+        for (AccessRule accessRule : accessRules) {
+            if (accessRule.getUuid() == null) {
+                // a rule that is not saved has no identity, the rule set is not shared
+                return snapshotRuleSet(catalog, accessRules, merge);
+            }
+            accessRuleIds.add(accessRule.getUuid());
+        }
+        Collections.sort(accessRuleIds);
+
+        AccessRuleCatalog.RuleSetKey key = new AccessRuleCatalog.RuleSetKey(accessRuleIds, merge);
+        AccessRuleSetMinimizer.Result ruleSet = catalog.getRuleSet(key);
+        if (ruleSet == null) {
+            AccessRuleSetMinimizer.Result snapshot = snapshotRuleSet(catalog, accessRules, merge);
+            ruleSet = catalog.putRuleSet(key,
+                    new AccessRuleSetMinimizer.Result(new InternedRuleSet(snapshot.accessRules()), snapshot.minimization()));
         }
+        return ruleSet;
+    }
 
-        return preProcessARBySortedKeys(accessRules);
+    private AccessRuleSetMinimizer.Result snapshotRuleSet(AccessRuleCatalog catalog, Set<AccessRule> accessRules, boolean merge) {
+        Set<AccessRule> snapshots = new HashSet<>();
+        for (AccessRule accessRule : accessRules) {
+            snapshots.add(catalog.snapshotOf(accessRule));
+        }
+        Set<AccessRule> ruleSet = snapshots;
+        if (merge) {
+            ruleSet = new HashSet<>();
+            for (AccessRule accessRule : preProcessARBySortedKeys(snapshots)) {
+                ruleSet.add(catalog.snapshotOf(accessRule));
+            }
+        }
+
+        try {
+            AccessRuleSetMinimizer.Result minimized = AccessRuleSetMinimizer.minimize(ruleSet, this::getCompiledAccessRule);
+            logger.debug("snapshotRuleSet() minimized a rule set of {} rules: {}", ruleSet.size(), minimized.minimization());
+            return minimized;
+        } catch (RuntimeException e) {
+            // the rules are evaluated as they are and will report the problem themselves
+            logger.warn("snapshotRuleSet() unable to minimize a rule set of {} rules: {}", ruleSet.size(), e.getMessage());
+            return new AccessRuleSetMinimizer.Result(Collections.unmodifiableSet(ruleSet), RuleSetMinimization.unchanged(ruleSet.size()));
+        }
     }
 
     @CacheEvict(value = "preProcessedAccessRules")
@@ -226,6 +381,10 @@ public class AccessRuleService {
         logger.info("evictFromPreProcessedAccessRules() evicting cache for user: {}", userSubject);
     }
 
+    /**
+     * Merges the rules that only differ by their value into one rule whose merged values are an OR relationship.
+     * The given rules are never modified, a merged rule is a new instance.
+     */
     public Set<AccessRule> preProcessARBySortedKeys(Set<AccessRule> accessRules) {
         Map<String, Set<AccessRule>> accessRuleMap = new HashMap<>();
 
@@ -279,166 +438,254 @@ public class AccessRuleService {
     private Set<AccessRule> mergeSameKeyAccessRules(Collection<Set<AccessRule>> accessRuleMap) {
         Set<AccessRule> accessRules = new HashSet<>();
         for (Set<AccessRule> accessRulesSet : accessRuleMap) {
-            AccessRule accessRule = null;
-            for (AccessRule innerAccessRule : accessRulesSet) {
-                accessRule = mergeAccessRules(accessRule, innerAccessRule);
-            }
-            if (accessRule != null) {
-                accessRules.add(accessRule);
+            if (accessRulesSet.size() == 1) {
+                // nothing to merge, the values of the rule are used as they are
+                accessRules.addAll(accessRulesSet);
+            } else if (!accessRulesSet.isEmpty()) {
+                accessRules.add(mergeAccessRules(accessRulesSet));
             }
         }
         return accessRules;
     }
 
-    private AccessRule mergeAccessRules(AccessRule baseAccessRule, AccessRule accessRuleToBeMerged) {
-        if (baseAccessRule == null) {
-            accessRuleToBeMerged.getMergedValues().add(accessRuleToBeMerged.getValue());
-            return accessRuleToBeMerged;
-        }
+    private AccessRule mergeAccessRules(Set<AccessRule> accessRulesSet) {
+        AccessRule mergedAccessRule = null;
+        Set<String> mergedValues = new HashSet<>();
+        Set<AccessRule> mergedSubAccessRules = null;
+        StringBuilder mergedName = new StringBuilder("Merged");
 
-        if (baseAccessRule.getSubAccessRule() != null && accessRuleToBeMerged.getSubAccessRule() != null) {
-            baseAccessRule.getSubAccessRule().addAll(accessRuleToBeMerged.getSubAccessRule());
-        } else if (baseAccessRule.getSubAccessRule() == null && accessRuleToBeMerged.getSubAccessRule() != null) {
-            baseAccessRule.setSubAccessRule(accessRuleToBeMerged.getSubAccessRule());
-        }
+        for (AccessRule accessRule : accessRulesSet) {
+            if (mergedAccessRule == null) {
+                mergedAccessRule = copyForMerge(accessRule);
+            }
 
-        baseAccessRule.getMergedValues().add(accessRuleToBeMerged.getValue());
-        if (baseAccessRule.getMergedName().startsWith("Merged|")) {
-            baseAccessRule.setMergedName(baseAccessRule.getMergedName() + "|" + accessRuleToBeMerged.getName());
-        } else {
-            baseAccessRule.setMergedName("Merged|" + baseAccessRule.getName() + "|" + accessRuleToBeMerged.getName());
+            if (accessRule.getMergedValues() == null || accessRule.getMergedValues().isEmpty()) {
+                mergedValues.add(accessRule.getValue());
+            } else {
+                mergedValues.addAll(accessRule.getMergedValues());
+            }
+
+            if (accessRule.getSubAccessRule() != null) {
+                if (mergedSubAccessRules == null) {
+                    mergedSubAccessRules = new HashSet<>();
+                }
+                mergedSubAccessRules.addAll(accessRule.getSubAccessRule());
+            }
+
+            mergedName.append("|").append(accessRule.getName());
         }
 
-        return baseAccessRule;
+        mergedAccessRule.setMergedValues(mergedValues);
+        mergedAccessRule.setSubAccessRule(mergedSubAccessRules);
+        mergedAccessRule.setMergedName(mergedName.toString());
+        return mergedAccessRule;
+    }
+
+    /**
+     * Copies the definition of the rule, the merged values, name and sub-rules are set by the merge
+     */
+    private static AccessRule copyForMerge(AccessRule accessRule) {
+        AccessRule copy = new AccessRule();
+        copy.setUuid(accessRule.getUuid());
+        copy.setName(accessRule.getName());
+        copy.setDescription(accessRule.getDescription());
+        copy.setType(accessRule.getType());
+        copy.setRule(accessRule.getRule());
+        copy.setValue(accessRule.getValue());
+        copy.setGates(accessRule.getGates());
+        copy.setGateAnyRelation(accessRule.getGateAnyRelation());
+        copy.setEvaluateOnlyByGates(accessRule.getEvaluateOnlyByGates());
+        copy.setCheckMapNode(accessRule.getCheckMapNode());
+        copy.setCheckMapKeyOnly(accessRule.getCheckMapKeyOnly());
+        return copy;
     }
 
+    /**
+     * Evaluates a single rule against the request body, see {@link #evaluateAccessRule(EvaluationContext, AccessRule)}
+     * to share extracted values and rule results between several rules of the same request.
+     */
     public boolean evaluateAccessRule(Object parsedRequestBody, AccessRule accessRule) {
-        String ruleName = accessRule.getMergedName().isEmpty() ?
-                          accessRule.getName() : 
-                          accessRule.getMergedName();
-
-        boolean isGate = !evaluationTreeStack.get().isEmpty() &&
-                         evaluationTreeStack.get().peek().getRule().getGates() != null &&
-                         evaluationTreeStack.get().peek().getRule().getGates().contains(accessRule);
-        boolean isSubRule = !evaluationTreeStack.get().isEmpty() && 
-                            evaluationTreeStack.get().peek().getRule().getSubAccessRule() != null &&
-                            evaluationTreeStack.get().peek().getRule().getSubAccessRule().contains(accessRule);
-        boolean isOrRelationship = accessRule.getGateAnyRelation() != null && accessRule.getGateAnyRelation();
-
-        AccessRuleEvaluationNode currentNode = new AccessRuleEvaluationNode(accessRule, isGate, isSubRule, isOrRelationship);
-
-        if (evaluationTreeStack.get().isEmpty()) {
-            rootNode.set(currentNode);
-        } else {
-            evaluationTreeStack.get().peek().addChild(currentNode);
-        }
+        return evaluateAccessRule(new EvaluationContext(parsedRequestBody, false), accessRule);
+    }
 
-        evaluationTreeStack.get().push(currentNode);
+    /**
+     * Evaluates the rule with its gates and sub-rules against the request body of the context.
+     * Gates and sub-rules shared by many rules are only evaluated once per context.
+     */
+    public boolean evaluateAccessRule(EvaluationContext context, AccessRule accessRule) {
+        // the evaluation tree is only recorded for traced requests
+        AccessRuleEvaluationNode currentNode = context.startTraceNode(accessRule);
 
         try {
-            logger.trace("evaluateAccessRule() starting with: {}", parsedRequestBody);
-            logger.debug("evaluateAccessRule() evaluating rule: {}", ruleName);
-
-            Set<AccessRule> gates = accessRule.getGates();
-            boolean gatesPassed = true;
-
-            // depends on the flag getGateAnyRelation is true or false,
-            // the logic of checking if apply gate will be changed
-            // the following cases are gate passed:
-            // 1. if gates are null or empty
-            // 2. if getGateAnyRelation is false, all gates passed
-            // 3. if getGateAnyRelation is true, one of the gate passed
-            if (gates != null && !gates.isEmpty()) {
-                if (accessRule.getGateAnyRelation() == null || !accessRule.getGateAnyRelation()) {
-                    // All gates are AND relationship
-                    // means one fails all fail
-                    for (AccessRule gate : gates) {
-                        if (!evaluateAccessRule(parsedRequestBody, gate)) {
-                            logger.info("evaluateAccessRule() gate {} failed", gate.getName());
-                            gatesPassed = false;
-                            break;
-                        }
-                    }
-                } else {
-                    // All gates are OR relationship
-                    // means one passes all pass
-                    gatesPassed = false;
-                    for (AccessRule gate : gates) {
-                        if (evaluateAccessRule(parsedRequestBody, gate)) {
-                            logger.debug("evaluateAccessRule() gate {} passed", gate.getName());
-                            gatesPassed = true;
-                            break;
-                        }
-                    }
+            EvaluationContext.EvaluationOutcome outcome = context.getOutcome(accessRule);
+            if (outcome != null) {
+                logger.debug("evaluateAccessRule() reusing result of rule: {}", accessRule.getName());
+                if (currentNode != null) {
+                    currentNode.setResult(outcome.result());
+                    currentNode.setFailureReason(outcome.failureReason());
+                }
+                return outcome.result();
+            }
+
+            boolean result = evaluateGatesAndRule(context, accessRule, currentNode);
+            context.putOutcome(accessRule, new EvaluationContext.EvaluationOutcome(result, currentNode == null ? null : currentNode.getFailureReason()));
+            return result;
+        } finally {
+            if (currentNode != null) {
+                context.endTraceNode();
+            }
+        }
+    }
 
-                    if (!gatesPassed) {
-                        logger.debug("All OR gates failed");
+    /**
+     * Records the result of a rule in its evaluation tree node, the failure reason is only built for traced requests
+     *
+     * @param currentNode   the node of the rule, null if the request is not traced
+     * @param failureReason the reason, followed by the optional detail
+     */
+    private static void recordResult(AccessRuleEvaluationNode currentNode, boolean result, String failureReason, Object detail) {
+        if (currentNode == null) {
+            return;
+        }
+        currentNode.setResult(result);
+        if (!result && currentNode.getFailureReason() == null) {
+            currentNode.setFailureReason(detail == null ? failureReason : failureReason + detail);
+        }
+    }
+
+    private boolean evaluateGatesAndRule(EvaluationContext context, AccessRule accessRule, AccessRuleEvaluationNode currentNode) {
+        logger.trace("evaluateAccessRule() starting with: {}", context.getParsedRequestBody());
+        if (logger.isDebugEnabled()) {
+            logger.debug("evaluateAccessRule() evaluating rule: {}", accessRule.getMergedName().isEmpty() ? accessRule.getName() : accessRule.getMergedName());
+        }
+
+        Set<AccessRule> gates = accessRule.getGates();
+        boolean gatesPassed = true;
+
+        // depends on the flag getGateAnyRelation is true or false,
+        // the logic of checking if apply gate will be changed
+        // the following cases are gate passed:
+        // 1. if gates are null or empty
+        // 2. if getGateAnyRelation is false, all gates passed
+        // 3. if getGateAnyRelation is true, one of the gate passed
+        if (gates != null && !gates.isEmpty()) {
+            if (accessRule.getGateAnyRelation() == null || !accessRule.getGateAnyRelation()) {
+                // All gates are AND relationship
+                // means one fails all fail
+                for (AccessRule gate : gates) {
+                    if (!evaluateAccessRule(context, gate)) {
+                        logger.debug("evaluateAccessRule() gate {} failed", gate.getName());
+                        gatesPassed = false;
+                        break;
+                    }
+                }
+            } else {
+                // All gates are OR relationship
+                // means one passes all pass
+                gatesPassed = false;
+                for (AccessRule gate : gates) {
+                    if (evaluateAccessRule(context, gate)) {
+                        logger.debug("evaluateAccessRule() gate {} passed", gate.getName());
+                        gatesPassed = true;
+                        break;
                     }
                 }
-            }
 
-            boolean result = false;
-            if (accessRule.getEvaluateOnlyByGates() != null && accessRule.getEvaluateOnlyByGates()) {
-                logger.debug("evaluateAccessRule() eval only by gates");
-                result = gatesPassed;
-                currentNode.setResult(result);
-                if (!result) {
-                    currentNode.setFailureReason("Gates evaluation failed");
+                if (!gatesPassed) {
+                    logger.debug("All OR gates failed");
                 }
-                return result;
             }
+        }
 
-            if (gatesPassed) {
-                logger.debug("evaluateAccessRule() gates passed");
-                if (!extractAndCheckRule(accessRule, parsedRequestBody)) {
-                    logger.debug("Query Rejected by rule(1) {}, with request body {}", accessRule,  parsedRequestBody);
-                    currentNode.setResult(false);
-                    currentNode.setFailureReason("Rule check failed: " + accessRule.getRule());
-                    return false;
-                } else {
-                    if (accessRule.getSubAccessRule() != null) {
-                        // We need to check all the sub rules as merged rules; they can overlap
-                        Set<AccessRule> mergedSubRules = preProcessARBySortedKeys(accessRule.getSubAccessRule());
-                        for (AccessRule subAccessRule : mergedSubRules) {
-                            if (!evaluateAccessRule(parsedRequestBody, subAccessRule)) {
-                                logger.debug("Query Rejected by rule(2) {}", subAccessRule);
-                                currentNode.setResult(false);
-                                currentNode.setFailureReason("Sub-rule check failed");
-                                return false;
-                            }
+        boolean result = false;
+        if (accessRule.getEvaluateOnlyByGates() != null && accessRule.getEvaluateOnlyByGates()) {
+            logger.debug("evaluateAccessRule() eval only by gates");
+            result = gatesPassed;
+            recordResult(currentNode, result, "Gates evaluation failed", null);
+            return result;
+        }
+
+        if (gatesPassed) {
+            logger.debug("evaluateAccessRule() gates passed");
+            if (!extractAndCheckRule(context, accessRule)) {
+                logger.debug("Query Rejected by rule(1) {}, with request body {}", accessRule, context.getParsedRequestBody());
+                recordResult(currentNode, false, "Rule check failed: ", accessRule.getRule());
+                return false;
+            } else {
+                if (accessRule.getSubAccessRule() != null) {
+                    // We need to check all the sub rules as merged rules; they can overlap
+                    Set<AccessRule> mergedSubRules = accessRule.getMergedSubAccessRules();
+                    if (mergedSubRules == null) {
+                        // the rule is not a snapshot, the merged sub-rules are not kept
+                        mergedSubRules = preProcessARBySortedKeys(accessRule.getSubAccessRule());
+                    }
+                    for (AccessRule subAccessRule : mergedSubRules) {
+                        if (!evaluateAccessRule(context, subAccessRule)) {
+                            logger.debug("Query Rejected by rule(2) {}", subAccessRule);
+                            recordResult(currentNode, false, "Sub-rule check failed", null);
+                            return false;
                         }
                     }
                 }
-            } else {
-                logger.debug("evaluateAccessRule() gates failed");
-                currentNode.setResult(false);
-                currentNode.setFailureReason("Gates evaluation failed");
-                return false;
             }
+        } else {
+            logger.debug("evaluateAccessRule() gates failed");
+            recordResult(currentNode, false, "Gates evaluation failed", null);
+            return false;
+        }
 
-            currentNode.setResult(true);
-            return true;
-        } finally {
-            evaluationTreeStack.get().pop();
+        recordResult(currentNode, true, null, null);
+        return true;
+    }
+
+    /**
+     * Returns the compiled evaluation plan of the given rule. A complete snapshot holds the plan compiled when the
+     * snapshot was built. The plans of the other rules are keyed by the rule definition, so any change to the rule
+     * (including merged values) results in a new plan being compiled.
+     */
+    public CompiledAccessRule getCompiledAccessRule(AccessRule accessRule) {
+        if (accessRule instanceof AccessRuleSnapshot snapshot && snapshot.isComplete()) {
+            return snapshot.getCompiledRule();
+        }
+
+        CompiledAccessRule.Key key = CompiledAccessRule.Key.of(accessRule);
+        synchronized (compiledAccessRuleCache) {
+            CompiledAccessRule compiled = compiledAccessRuleCache.get(key);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        // compiled outside the lock, a concurrent compilation of the same rule keeps the first plan
+        CompiledAccessRule compiled = CompiledAccessRule.compile(key);
+        synchronized (compiledAccessRuleCache) {
+            CompiledAccessRule existing = compiledAccessRuleCache.putIfAbsent(compiled.getKey(), compiled);
+            return existing == null ? compiled : existing;
         }
     }
 
     public boolean extractAndCheckRule(AccessRule accessRule, Object parsedRequestBody) {
-        String rule = accessRule.getRule();
+        return extractAndCheckRule(new EvaluationContext(parsedRequestBody, false), accessRule);
+    }
 
-        if (rule == null || rule.isEmpty())
+    /**
+     * Checks the rule itself, without its gates and sub-rules, against the request body of the context
+     */
+    public boolean extractAndCheckRule(EvaluationContext context, AccessRule accessRule) {
+        Object parsedRequestBody = context.getParsedRequestBody();
+        CompiledAccessRule compiledRule = getCompiledAccessRule(accessRule);
+        if (!compiledRule.hasPath())
             return true;
 
-        rule = rule.stripLeading();
+        String rule = compiledRule.getRule();
 
         Object requestBodyValue;
-        int accessRuleType = accessRule.getType();
+        int accessRuleType = compiledRule.getType();
 
         try {
             logger.trace("extractAndCheckRule() -> JsonPath.parse().read() with parsedRequestBody - {} - {}", parsedRequestBody, rule);
-            requestBodyValue = JsonPath.parse(parsedRequestBody).read(rule);
+            requestBodyValue = context.readPath(compiledRule);
 
-            if (accessRule.getCheckMapNode() != null && accessRule.getCheckMapNode()) {
+            if (compiledRule.isCheckMapNode()) {
                 // Json parse will always return a list even when we want a map (to check keys)
                 if (requestBodyValue instanceof JsonArray && ((JsonArray) requestBodyValue).size() == 1) {
                     requestBodyValue = ((JsonArray) requestBodyValue).get(0);
@@ -457,11 +704,11 @@ public class AccessRuleService {
                 return true;
             }
 
-            logger.info("extractAndCheckRule() -> JsonPath.parse().read() throws exception with parsedRequestBody - {} : {} - {}", parsedRequestBody, ex.getClass().getSimpleName(), ex.getMessage());
+            logger.debug("extractAndCheckRule() -> JsonPath.parse().read() throws exception with parsedRequestBody - {} : {} - {}", parsedRequestBody, ex.getClass().getSimpleName(), ex.getMessage());
 
             // Record failure reason in the evaluation tree
-            if (!evaluationTreeStack.get().isEmpty()) {
-                AccessRuleEvaluationNode currentNode = evaluationTreeStack.get().peek();
+            AccessRuleEvaluationNode currentNode = context.currentTraceNode();
+            if (currentNode != null) {
                 currentNode.setFailureReason("Path not found: " + rule + " - " + ex.getMessage());
             }
 
@@ -475,78 +722,108 @@ public class AccessRuleService {
                 || (requestBodyValue instanceof Collection && ((Collection) requestBodyValue).isEmpty())
                 || (requestBodyValue instanceof Map && ((Map) requestBodyValue).isEmpty())) {
                 boolean result = accessRuleType == AccessRule.TypeNaming.IS_EMPTY;
-                if (!result && !evaluationTreeStack.get().isEmpty()) {
-                    AccessRuleEvaluationNode currentNode = evaluationTreeStack.get().peek();
+                AccessRuleEvaluationNode currentNode;
+                if (!result && (currentNode = context.currentTraceNode()) != null) {
                     currentNode.setFailureReason("Expected empty path but found value: " + requestBodyValue);
                 }
                 return result;
             } else {
                 boolean result = accessRuleType == AccessRule.TypeNaming.IS_NOT_EMPTY;
-                if (!result && !evaluationTreeStack.get().isEmpty()) {
-                    AccessRuleEvaluationNode currentNode = evaluationTreeStack.get().peek();
+                AccessRuleEvaluationNode currentNode;
+                if (!result && (currentNode = context.currentTraceNode()) != null) {
                     currentNode.setFailureReason("Expected non-empty path but found empty value");
                 }
                 return result;
             }
         }
 
-        boolean result = evaluateNode(requestBodyValue, accessRule);
-        if (!result && !evaluationTreeStack.get().isEmpty()) {
-            AccessRuleEvaluationNode currentNode = evaluationTreeStack.get().peek();
-            if (currentNode.getFailureReason() == null) {
-                currentNode.setFailureReason("Rule evaluation failed for path: " + rule);
-            }
+        boolean result = evaluateNode(requestBodyValue, accessRule, compiledRule);
+        AccessRuleEvaluationNode currentNode;
+        if (!result && (currentNode = context.currentTraceNode()) != null && currentNode.getFailureReason() == null) {
+            currentNode.setFailureReason("Rule evaluation failed for path: " + rule);
         }
         return result;
     }
 
-    private boolean evaluateNode(Object requestBodyValue, AccessRule accessRule) {
-        logger.trace("evaluateNode() starting: {} :: {} :: {}", accessRule.getRule(), accessRule.getType(), accessRule.getMergedValues().isEmpty() ? accessRule.getValue() : ("Merged " + Arrays.deepToString(accessRule.getMergedValues().toArray())));
-        logger.trace("evaluateNode() requestBody {}  {}", requestBodyValue.getClass().getName(), requestBodyValue instanceof Collection ?
-                Arrays.deepToString(((Collection) requestBodyValue).toArray()) :
-                requestBodyValue.toString());
+    /**
+     * Finds the managed consent rules of the rule set that cannot pass for the consents present in the request,
+     * so they can be reported as failed without being evaluated.
+     *
+     * Only the {@link #getInternedRuleSet(Set) interned rule sets} are indexed, they hold their index.
+     *
+     * @param context     the evaluation of the request the rules are evaluated against
+     * @param accessRules the rules of the user
+     * @return the rules that are known to fail, compared by identity
+     * @see ConsentRuleIndex
+     */
+    public Set<AccessRule> findRulesExcludedByConsents(EvaluationContext context, Set<AccessRule> accessRules) {
+        if (!(accessRules instanceof InternedRuleSet ruleSet)) {
+            return Collections.emptySet();
+        }
+        ConsentRuleIndex index = ruleSet.getConsentRuleIndex(this::getCompiledAccessRule);
+        if (index.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        try {
+            Set<AccessRule> excluded = index.findExcludedRules(context::readPath);
+            logger.debug("findRulesExcludedByConsents() {} of {} rules cannot pass for the consents of the request", excluded.size(), accessRules.size());
+            return excluded;
+        } catch (RuntimeException e) {
+            // the rules are evaluated one by one and will report the problem themselves
+            logger.debug("findRulesExcludedByConsents() unable to use the consent index: {}", e.getMessage());
+            return Collections.emptySet();
+        }
+    }
+
+    private boolean evaluateNode(Object requestBodyValue, AccessRule accessRule, CompiledAccessRule compiledRule) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("evaluateNode() starting: {} :: {} :: {}", compiledRule.getRule(), compiledRule.getType(), compiledRule.getValues().size() == 1 ? compiledRule.getValues().getFirst() : ("Merged " + compiledRule.getValues()));
+            logger.trace("evaluateNode() requestBody {}  {}", requestBodyValue.getClass().getName(), requestBodyValue instanceof Collection ?
+                    Arrays.deepToString(((Collection) requestBodyValue).toArray()) :
+                    requestBodyValue.toString());
+        }
 
         return switch (requestBodyValue) {
-            case String s -> decisionMaker(accessRule, s);
-            case Collection collection -> evaluateCollection(collection, accessRule);
-            case Map map when accessRule.getCheckMapNode() != null && accessRule.getCheckMapNode() ->
-                    evaluateMap(requestBodyValue, accessRule);
+            case String s -> decisionMaker(accessRule, compiledRule, s);
+            case Collection collection -> evaluateCollection(collection, accessRule, compiledRule);
+            case Map map when compiledRule.isCheckMapNode() -> evaluateMap(map, accessRule, compiledRule);
             default -> true;
         };
     }
 
-    private boolean evaluateMap(Object requestBodyValue, AccessRule accessRule) {
+    private boolean evaluateMap(Map<String, Object> requestBodyValue, AccessRule accessRule, CompiledAccessRule compiledRule) {
         logger.trace("evaluateMap() access rule:{}", accessRule.getName());
         logger.trace("evaluateMap() request body value:{}", requestBodyValue);
 
-        switch (accessRule.getType()) {
+        switch (compiledRule.getType()) {
             case (AccessRule.TypeNaming.ANY_EQUALS):
             case (AccessRule.TypeNaming.ANY_CONTAINS):
             case (AccessRule.TypeNaming.ANY_REG_MATCH):
-                for (Map.Entry entry : ((Map<String, Object>) requestBodyValue).entrySet()) {
-                    if (decisionMaker(accessRule, (String) entry.getKey()))
+                for (Map.Entry<String, Object> entry : requestBodyValue.entrySet()) {
+                    if (decisionMaker(accessRule, compiledRule, entry.getKey()))
                         return true;
 
-                    if ((accessRule.getCheckMapKeyOnly() == null || !accessRule.getCheckMapKeyOnly())
-                        && evaluateNode(entry.getValue(), accessRule))
+                    if (!compiledRule.isCheckMapKeyOnly()
+                        && evaluateNode(entry.getValue(), accessRule, compiledRule))
                         return true;
                 }
                 return false;
             default:
-                if (((Map) requestBodyValue).isEmpty()) {
-                    return switch (accessRule.getType()) {
+                if (requestBodyValue.isEmpty()) {
+                    return switch (compiledRule.getType()) {
                         case (AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE), (AccessRule.TypeNaming.ALL_EQUALS),
                              (AccessRule.TypeNaming.ALL_CONTAINS), (AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE) ->
                                 false;
                         default -> true;
                     };
                 }
-                for (Map.Entry entry : ((Map<String, Object>) requestBodyValue).entrySet()) {
-                    if (!decisionMaker(accessRule, (String) entry.getKey()))
+                for (Map.Entry<String, Object> entry : requestBodyValue.entrySet()) {
+                    if (!decisionMaker(accessRule, compiledRule, entry.getKey()))
                         return false;
 
-                    if ((accessRule.getCheckMapKeyOnly() == null || !accessRule.getCheckMapKeyOnly())
-                        && !evaluateNode(entry.getValue(), accessRule))
+                    if (!compiledRule.isCheckMapKeyOnly()
+                        && !evaluateNode(entry.getValue(), accessRule, compiledRule))
                         return false;
                 }
 
@@ -555,22 +832,22 @@ public class AccessRuleService {
         return true;
     }
 
-    private Boolean evaluateCollection(Collection requestBodyValue, AccessRule accessRule) {
+    private Boolean evaluateCollection(Collection requestBodyValue, AccessRule accessRule, CompiledAccessRule compiledRule) {
         logger.debug("evaluateCollection()");
         logger.trace("evaluateCollection() access rule:{}", accessRule.getName());
         logger.trace("evaluateCollection() request body value:{}", requestBodyValue);
 
-        switch (accessRule.getType()) {
+        switch (compiledRule.getType()) {
             case (AccessRule.TypeNaming.ANY_EQUALS):
             case (AccessRule.TypeNaming.ANY_CONTAINS):
             case (AccessRule.TypeNaming.ANY_REG_MATCH):
                 for (Object item : requestBodyValue) {
                     if (item instanceof String) {
-                        if (decisionMaker(accessRule, (String) item)) {
+                        if (decisionMaker(accessRule, compiledRule, (String) item)) {
                             return true;
                         }
                     } else {
-                        if (evaluateNode(item, accessRule)) {
+                        if (evaluateNode(item, accessRule, compiledRule)) {
                             return true;
                         }
                     }
@@ -578,7 +855,7 @@ public class AccessRuleService {
                 return false;
             default:
                 if (requestBodyValue.isEmpty()) {
-                    switch (accessRule.getType()) {
+                    switch (compiledRule.getType()) {
                         case (AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE):
                         case (AccessRule.TypeNaming.ALL_EQUALS):
                         case (AccessRule.TypeNaming.ALL_CONTAINS):
@@ -593,11 +870,11 @@ public class AccessRuleService {
 
                 for (Object item : requestBodyValue) {
                     if (item instanceof String) {
-                        if (!decisionMaker(accessRule, (String) item)) {
+                        if (!decisionMaker(accessRule, compiledRule, (String) item)) {
                             return false;
                         }
                     } else {
-                        if (!evaluateNode(item, accessRule))
+                        if (!evaluateNode(item, accessRule, compiledRule))
                             return false;
                     }
                 }
@@ -607,73 +884,29 @@ public class AccessRuleService {
     }
 
     public boolean decisionMaker(AccessRule accessRule, String requestBodyValue) {
-        if (accessRule.getMergedValues().isEmpty()) {
-            String value = accessRule.getValue();
-            logger.debug("decisionMaker No Merged values: {}, request body: {}, access rule: {}", value, requestBodyValue, accessRule);
-            if (value == null) {
-                return requestBodyValue == null;
-            }
-            return _decisionMaker(accessRule, requestBodyValue, value);
-        }
+        return decisionMaker(accessRule, getCompiledAccessRule(accessRule), requestBodyValue);
+    }
 
-        // recursively check the values
-        // until one of them is true
-        // if there is only one element in the merged value set
-        // the operation equals to _decisionMaker(accessRule, requestBodyValue, value)
-        boolean res = false;
-        logger.debug("Checking {} in collection {}", requestBodyValue, Arrays.deepToString(accessRule.getMergedValues().toArray()));
-        for (String s : accessRule.getMergedValues()) {
-            // check the special case value is null
-            // if value is null, the check will stop here and
-            // not goes to _decisionMaker()
-            if (s == null) {
-                if (requestBodyValue == null) {
-                    res = true;
-                    break;
-                } else {
-                    continue;
-                }
-            }
+    private boolean decisionMaker(AccessRule accessRule, CompiledAccessRule compiledRule, String requestBodyValue) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("decisionMaker values: {}, request body: {}, access rule: {}", compiledRule.getValues(), requestBodyValue, accessRule);
+        }
 
-            // all the merged values are OR relationship
-            // means if you pass one of them, you pass the rule
-            if (_decisionMaker(accessRule, requestBodyValue, s)) {
-                res = true;
-                logger.info("Returning true for {} in collection {}", s, Arrays.deepToString(accessRule.getMergedValues().toArray()));
-                break;
-            }
+        // all the values are OR relationship, means if you pass one of them, you pass the rule.
+        // a null value only matches a null request body value
+        int matched = compiledRule.match(requestBodyValue);
+        if (matched < 0) {
+            return false;
         }
-        return res;
-    }
-
-    private boolean _decisionMaker(AccessRule accessRule, String requestBodyValue, String value) {
-        boolean decision = switch (accessRule.getType()) {
-            case AccessRule.TypeNaming.NOT_CONTAINS -> !requestBodyValue.contains(value);
-            case AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE ->
-                    !requestBodyValue.toLowerCase().contains(value.toLowerCase());
-            case (AccessRule.TypeNaming.NOT_EQUALS) -> !value.equals(requestBodyValue);
-            case (AccessRule.TypeNaming.ANY_EQUALS), (AccessRule.TypeNaming.ALL_EQUALS) ->
-                    value.equals(requestBodyValue);
-            case (AccessRule.TypeNaming.ALL_CONTAINS), (AccessRule.TypeNaming.ANY_CONTAINS),
-                 (AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY) -> requestBodyValue.contains(value);
-            case (AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE),
-                 (AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY_IGNORE_CASE) ->
-                    requestBodyValue.toLowerCase().contains(value.toLowerCase());
-            case (AccessRule.TypeNaming.NOT_EQUALS_IGNORE_CASE) -> !value.equalsIgnoreCase(requestBodyValue);
-            case (AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE) -> value.equalsIgnoreCase(requestBodyValue);
-            case (AccessRule.TypeNaming.ALL_REG_MATCH), (AccessRule.TypeNaming.ANY_REG_MATCH) ->
-                    requestBodyValue.matches(value);
-            default -> {
+
+        String value = compiledRule.getValues().get(matched);
+        if (value != null) {
+            if (!compiledRule.isSupportedType()) {
                 logger.warn("evaluateAccessRule() incoming accessRule type is out of scope. Just return true.");
-                yield true;
             }
-        };
-
-        if (decision) {
-            logger.info("_decisionMaker() returning true for request body: {} access rule: {} value: {}", requestBodyValue, accessRule, value);
+            logger.debug("_decisionMaker() returning true for request body: {} access rule: {} value: {}", requestBodyValue, accessRule, value);
         }
-
-        return decision;
+        return true;
     }
 
     /**
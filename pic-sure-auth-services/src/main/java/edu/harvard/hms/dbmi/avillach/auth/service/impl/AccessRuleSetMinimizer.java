@@ -0,0 +1,278 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.RuleSetMinimization;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Static analysis of a prepared rule set that removes the rules, gates and sub-rules that cannot change a decision.
+ * <p>
+ * A rule passes when all its conditions pass: its gates (AND relation), then its own check and its merged sub-rules
+ * unless it is evaluated only by its gates. Flattening the gates and sub-rules gives every rule as a set of atomic
+ * conditions, each one either a check, identified by its {@link CompiledAccessRule.Key definition}, or a group of OR
+ * gates. A check without a path always passes and is left out, so a rule without any condition always passes.
+ * <p>
+ * Comparing these sets is enough to find what is redundant, without knowing what the checks accept:
+ * <ul>
+ * <li>a gate or sub-rule whose conditions are all conditions of the rest of its rule is implied by it and is removed.
+ * This covers duplicate, subsumed and always-true gates and sub-rules.</li>
+ * <li>the rules of a set are an OR relation, a rule having all the conditions of another rule can only pass when the
+ * other one passes and is removed. An always-true rule removes every other rule.</li>
+ * </ul>
+ * Checks are never compared by the values they accept, e.g. a check accepting more values than another one is not
+ * known to subsume it. User consent rules are decided by their own evaluator and are always kept as they are.
+ */
+class AccessRuleSetMinimizer {
+
+    /**
+     * @param accessRules  the minimized rule set, read-only
+     * @param minimization how much the rule set shrank
+     */
+    record Result(Set<AccessRule> accessRules, RuleSetMinimization minimization) {
+    }
+
+    private final Function<AccessRule, CompiledAccessRule> compiledRuleSource;
+
+    private final Map<Object, Integer> conditionIds = new HashMap<>();
+    private final Map<AccessRule, Integer> opaqueConditionIds = new IdentityHashMap<>();
+    private final Map<AccessRule, BitSet> conditionsByRule = new IdentityHashMap<>();
+    private final Set<AccessRule> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int nextConditionId;
+
+    private int removedGates;
+    private int removedSubRules;
+
+    private AccessRuleSetMinimizer(Function<AccessRule, CompiledAccessRule> compiledRuleSource) {
+        this.compiledRuleSource = compiledRuleSource;
+    }
+
+    /**
+     * @param accessRules        the merged rules of a user, the rules that are not snapshots are kept or removed as a
+     *                           whole, never rewritten
+     * @param compiledRuleSource provides the compiled plan of a rule
+     */
+    static Result minimize(Set<AccessRule> accessRules, Function<AccessRule, CompiledAccessRule> compiledRuleSource) {
+        return new AccessRuleSetMinimizer(compiledRuleSource).minimize(accessRules);
+    }
+
+    private Result minimize(Set<AccessRule> accessRules) {
+        Set<AccessRule> minimized = new HashSet<>();
+        List<AccessRule> candidates = new ArrayList<>();
+        for (AccessRule accessRule : accessRules) {
+            if (accessRule.getType() != null && accessRule.getType() == AccessRule.TypeNaming.USER_CONSENT_ACCESS) {
+                minimized.add(accessRule);
+            } else {
+                candidates.add(removeImpliedConditions(accessRule));
+            }
+        }
+
+        // a rule can only be removed by a rule with fewer or as many conditions, which is then already kept
+        candidates.sort(Comparator.comparingInt((AccessRule accessRule) -> conditionsOf(accessRule).cardinality())
+                .thenComparing(AccessRuleSetMinimizer::nameOf));
+        List<AccessRule> kept = new ArrayList<>();
+        int duplicateRules = 0;
+        int subsumedRules = 0;
+        int alwaysTrueRules = 0;
+        for (AccessRule candidate : candidates) {
+            BitSet conditions = conditionsOf(candidate);
+            AccessRule subsumingRule = null;
+            for (AccessRule keptRule : kept) {
+                if (isSubset(conditionsOf(keptRule), conditions)) {
+                    subsumingRule = keptRule;
+                    break;
+                }
+            }
+
+            if (subsumingRule == null) {
+                kept.add(candidate);
+                if (conditions.isEmpty()) {
+                    alwaysTrueRules++;
+                }
+            } else if (conditionsOf(subsumingRule).equals(conditions)) {
+                duplicateRules++;
+            } else {
+                subsumedRules++;
+            }
+        }
+        minimized.addAll(kept);
+
+        return new Result(Collections.unmodifiableSet(minimized), new RuleSetMinimization(accessRules.size(),
+                minimized.size(), duplicateRules, subsumedRules, alwaysTrueRules, removedGates, removedSubRules));
+    }
+
+    /**
+     * @return the rule without the AND gates and merged sub-rules implied by its other conditions, the rule itself
+     * if none is implied
+     */
+    private AccessRule removeImpliedConditions(AccessRule accessRule) {
+        if (!(accessRule instanceof AccessRuleSnapshot snapshot)
+                || (snapshot.getSubAccessRule() != null && snapshot.getMergedSubAccessRules() == null)) {
+            return accessRule;
+        }
+
+        Set<AccessRule> gates = snapshot.getGates();
+        boolean andGates = gates != null && !gates.isEmpty() && (!isGateAnyRelation(snapshot) || gates.size() == 1);
+        boolean evaluatedOnlyByGates = isEvaluatedOnlyByGates(snapshot);
+        Set<AccessRule> subRules = evaluatedOnlyByGates || snapshot.getSubAccessRule() == null ? Set.of() : snapshot.getMergedSubAccessRules();
+
+        // the conditions of the rule that are never removed: its own check, or its group of OR gates
+        BitSet fixedConditions = new BitSet();
+        if (!andGates) {
+            fixedConditions.or(gateConditionsOf(snapshot));
+        }
+        if (!evaluatedOnlyByGates) {
+            fixedConditions.or(checkConditionsOf(snapshot));
+        }
+
+        // the sub-rules come first, a gate is evaluated before them and can fail faster
+        List<AccessRule> conditions = new ArrayList<>(subRules);
+        int firstGate = conditions.size();
+        if (andGates) {
+            conditions.addAll(gates);
+        }
+        boolean[] implied = new boolean[conditions.size()];
+        boolean anyImplied = false;
+        for (int i = 0; i < conditions.size(); i++) {
+            BitSet otherConditions = (BitSet) fixedConditions.clone();
+            for (int j = 0; j < conditions.size(); j++) {
+                if (j != i && !implied[j]) {
+                    otherConditions.or(conditionsOf(conditions.get(j)));
+                }
+            }
+            if (isSubset(conditionsOf(conditions.get(i)), otherConditions)) {
+                implied[i] = true;
+                anyImplied = true;
+            }
+        }
+        if (!anyImplied) {
+            return accessRule;
+        }
+
+        Set<AccessRule> keptSubRules = new LinkedHashSet<>();
+        Set<AccessRule> keptGates = new LinkedHashSet<>();
+        for (int i = 0; i < conditions.size(); i++) {
+            if (implied[i]) {
+                if (i < firstGate) {
+                    removedSubRules++;
+                } else {
+                    removedGates++;
+                }
+            } else if (i < firstGate) {
+                keptSubRules.add(conditions.get(i));
+            } else {
+                keptGates.add(conditions.get(i));
+            }
+        }
+
+        AccessRuleSnapshot minimized = snapshot.withConditions(andGates ? keptGates : gates,
+                evaluatedOnlyByGates || snapshot.getSubAccessRule() == null ? snapshot.getMergedSubAccessRules() : keptSubRules);
+        // removing implied conditions does not change the conditions of the rule
+        conditionsByRule.put(minimized, conditionsOf(snapshot));
+        return minimized;
+    }
+
+    /**
+     * @return the atomic conditions that must all pass for the rule to pass, never modified
+     */
+    private BitSet conditionsOf(AccessRule accessRule) {
+        BitSet conditions = conditionsByRule.get(accessRule);
+        if (conditions != null) {
+            return conditions;
+        }
+        if (!inProgress.add(accessRule)) {
+            // the rule is one of its own gates or sub-rules, it is only known to be equivalent to itself
+            return single(opaqueConditionIds.computeIfAbsent(accessRule, rule -> nextConditionId++));
+        }
+
+        try {
+            conditions = gateConditionsOf(accessRule);
+            if (!isEvaluatedOnlyByGates(accessRule)) {
+                conditions.or(checkConditionsOf(accessRule));
+                if (accessRule.getSubAccessRule() != null) {
+                    Set<AccessRule> mergedSubRules = accessRule.getMergedSubAccessRules();
+                    if (mergedSubRules == null) {
+                        // the sub-rules are merged by the evaluation, their values become an OR relation
+                        conditions.set(opaqueConditionIds.computeIfAbsent(accessRule, rule -> nextConditionId++));
+                    } else {
+                        for (AccessRule subAccessRule : mergedSubRules) {
+                            conditions.or(conditionsOf(subAccessRule));
+                        }
+                    }
+                }
+            }
+        } finally {
+            inProgress.remove(accessRule);
+        }
+        conditionsByRule.put(accessRule, conditions);
+        return conditions;
+    }
+
+    private BitSet gateConditionsOf(AccessRule accessRule) {
+        BitSet conditions = new BitSet();
+        Set<AccessRule> gates = accessRule.getGates();
+        if (gates == null || gates.isEmpty()) {
+            return conditions;
+        }
+
+        if (!isGateAnyRelation(accessRule) || gates.size() == 1) {
+            for (AccessRule gate : gates) {
+                conditions.or(conditionsOf(gate));
+            }
+            return conditions;
+        }
+
+        Set<BitSet> alternatives = new HashSet<>();
+        for (AccessRule gate : gates) {
+            BitSet gateConditions = conditionsOf(gate);
+            if (gateConditions.isEmpty()) {
+                // one of the OR gates always passes
+                return conditions;
+            }
+            alternatives.add(gateConditions);
+        }
+        if (alternatives.size() == 1) {
+            conditions.or(alternatives.iterator().next());
+        } else {
+            conditions.set(conditionIds.computeIfAbsent(alternatives, key -> nextConditionId++));
+        }
+        return conditions;
+    }
+
+    private BitSet checkConditionsOf(AccessRule accessRule) {
+        CompiledAccessRule compiledRule = compiledRuleSource.apply(accessRule);
+        if (!compiledRule.hasPath()) {
+            // a rule without a path always passes its check
+            return new BitSet();
+        }
+        return single(conditionIds.computeIfAbsent(compiledRule.getKey(), key -> nextConditionId++));
+    }
+
+    private static BitSet single(int conditionId) {
+        BitSet conditions = new BitSet();
+        conditions.set(conditionId);
+        return conditions;
+    }
+
+    private static boolean isSubset(BitSet conditions, BitSet otherConditions) {
+        BitSet missing = (BitSet) conditions.clone();
+        missing.andNot(otherConditions);
+        return missing.isEmpty();
+    }
+
+    private static boolean isGateAnyRelation(AccessRule accessRule) {
+        return accessRule.getGateAnyRelation() != null && accessRule.getGateAnyRelation();
+    }
+
+    private static boolean isEvaluatedOnlyByGates(AccessRule accessRule) {
+        return accessRule.getEvaluateOnlyByGates() != null && accessRule.getEvaluateOnlyByGates();
+    }
+
+    private static String nameOf(AccessRule accessRule) {
+        String name = accessRule.getMergedName() == null || accessRule.getMergedName().isEmpty() ? accessRule.getName() : accessRule.getMergedName();
+        return name == null ? "" : name;
+    }
+}
@@ -2,14 +2,17 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.model.ApplicationPrincipal;
 import edu.harvard.hms.dbmi.avillach.auth.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TransactionUtil;
 import org.hibernate.Hibernate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -17,6 +20,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class ApplicationService implements UserDetailsService {
@@ -26,11 +30,28 @@ public class ApplicationService implements UserDetailsService {
     private final PrivilegeRepository privilegeRepo;
     private final JWTUtil jwtUtil;
 
+    /**
+     * The applications are few, the cache is only cleared if it ever fills up
+     */
+    private static final int MAX_APPLICATION_PRINCIPALS = 1_000;
+
+    private record CachedApplicationPrincipal(ApplicationPrincipal principal, long expiresAt) {
+    }
+
+    /**
+     * Applications resolved from application tokens by uuid. Changes made by this node evict the application, changes
+     * made by another node are seen after the ttl.
+     */
+    private final Map<UUID, CachedApplicationPrincipal> applicationPrincipals = new ConcurrentHashMap<>();
+    private final long applicationPrincipalTtlMillis;
+
     @Autowired
-    public ApplicationService(ApplicationRepository applicationRepo, PrivilegeRepository privilegeRepo, JWTUtil jwtUtil) {
+    public ApplicationService(ApplicationRepository applicationRepo, PrivilegeRepository privilegeRepo, JWTUtil jwtUtil,
+                              @Value("${application.principal.cache.ttl.seconds:60}") long applicationPrincipalTtlSeconds) {
         this.applicationRepo = applicationRepo;
         this.privilegeRepo = privilegeRepo;
         this.jwtUtil = jwtUtil;
+        this.applicationPrincipalTtlMillis = Math.max(applicationPrincipalTtlSeconds, 0) * 1000;
     }
 
     /**
@@ -63,6 +84,42 @@ public class ApplicationService implements UserDetailsService {
         return Optional.of(application);
     }
 
+    /**
+     * The principal of an application resolved from a PSAMA application token, if it was resolved less than the ttl
+     * ago. It does not need a transaction, unlike loading the application with {@link #getApplicationByIdWithPrivileges(String)}.
+     *
+     * @param applicationId the uuid of the application
+     * @return the cached principal, empty if it must be loaded
+     */
+    public Optional<ApplicationPrincipal> getCachedApplicationPrincipal(String applicationId) {
+        CachedApplicationPrincipal cached = applicationPrincipals.get(UUID.fromString(applicationId));
+        if (cached == null || cached.expiresAt() <= System.currentTimeMillis()) {
+            return Optional.empty();
+        }
+        return Optional.of(cached.principal());
+    }
+
+    public void cacheApplicationPrincipal(ApplicationPrincipal principal) {
+        if (applicationPrincipalTtlMillis == 0 || principal.application().getUuid() == null) {
+            return;
+        }
+        if (applicationPrincipals.size() >= MAX_APPLICATION_PRINCIPALS) {
+            applicationPrincipals.clear();
+        }
+        applicationPrincipals.put(principal.application().getUuid(),
+                new CachedApplicationPrincipal(principal, System.currentTimeMillis() + applicationPrincipalTtlMillis));
+    }
+
+    /**
+     * Evicts the application once the change is committed, evicted before, a concurrent request could load and
+     * cache the application as it was for the whole ttl.
+     */
+    private void evictApplicationPrincipal(UUID applicationId) {
+        if (applicationId != null) {
+            TransactionUtil.afterCommit(() -> applicationPrincipals.remove(applicationId));
+        }
+    }
+
     public List<Application> getAllApplications() {
         return this.applicationRepo.findAll();
     }
@@ -90,13 +147,16 @@ public class ApplicationService implements UserDetailsService {
         }
 
         this.applicationRepo.delete(application.get());
+        evictApplicationPrincipal(application.get().getUuid());
         return this.applicationRepo.findAll();
     }
 
     @Transactional
     public List<Application> updateApplications(List<Application> applications) {
         checkAssociation(applications);
-        return this.applicationRepo.saveAll(applications);
+        List<Application> updatedApplications = this.applicationRepo.saveAll(applications);
+        applications.forEach(application -> evictApplicationPrincipal(application.getUuid()));
+        return updatedApplications;
     }
 
     public String refreshApplicationToken(String applicationId) throws NullPointerException, IllegalArgumentException {
@@ -115,6 +175,7 @@ public class ApplicationService implements UserDetailsService {
 
         application.get().setToken(newApplicationToken);
         this.applicationRepo.save(application.get());
+        evictApplicationPrincipal(application.get().getUuid());
         return newApplicationToken;
     }
 
@@ -0,0 +1,249 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.config.CacheConfig;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TransactionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reverse index of what the cached access rules and query templates of the users depend on: access rule →
+ * privileges → roles → user subjects.
+ * <p>
+ * A user is recorded when one of the caches of {@link CacheConfig#USER_CACHES} computes an entry for the user. The
+ * rules are indexed with their gates and sub-rules, so a change to a gate reaches every privilege using it. An admin
+ * change to access rules, privileges or roles then evicts the entries of the users holding them, and only theirs,
+ * once the transaction of the change is committed.
+ * Each invalidation increments the {@link #getVersion() version} of the index.
+ * <p>
+ * Edges are never removed when a rule leaves a privilege or a privilege leaves a role, they can only evict a user
+ * that did not need it. The index holds at most {@value #MAX_INDEXED_USERS} users, beyond that it is reset together
+ * with the user caches.
+ */
+@Service
+public class AuthorizationDependencyIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationDependencyIndex.class);
+
+    private static final int MAX_INDEXED_USERS = 100_000;
+
+    /**
+     * @param version          the number of invalidations
+     * @param invalidatedUsers the number of user subjects evicted by all the invalidations
+     */
+    public record Statistics(long version, int indexedUsers, int indexedRoles, int indexedPrivileges,
+                             int indexedRules, long invalidatedUsers) {
+    }
+
+    private final CacheManager cacheManager;
+
+    private final Map<UUID, Set<UUID>> privilegesByRule = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<UUID>> rolesByPrivilege = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<String>> subjectsByRole = new ConcurrentHashMap<>();
+    private final Set<UUID> indexedPrivileges = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> indexedRoles = ConcurrentHashMap.newKeySet();
+    private final Set<String> indexedSubjects = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong invalidatedUsers = new AtomicLong();
+
+    @Autowired
+    public AuthorizationDependencyIndex(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Records the roles, privileges and access rules of a user whose cache entries are being computed. The roles and
+     * privileges already indexed are not traversed again.
+     */
+    public void recordUser(User user) {
+        if (user == null || user.getSubject() == null || user.getRoles() == null) {
+            return;
+        }
+        String subject = user.getSubject();
+        if (!indexedSubjects.contains(subject) && indexedSubjects.size() >= MAX_INDEXED_USERS) {
+            reset();
+        }
+
+        for (Role role : user.getRoles()) {
+            if (role.getUuid() == null) {
+                continue;
+            }
+            if (!indexedRoles.contains(role.getUuid())) {
+                recordRole(role);
+                indexedRoles.add(role.getUuid());
+            }
+            subjectsByRole.computeIfAbsent(role.getUuid(), roleId -> ConcurrentHashMap.newKeySet()).add(subject);
+        }
+        indexedSubjects.add(subject);
+    }
+
+    private void recordRole(Role role) {
+        if (role.getPrivileges() == null) {
+            return;
+        }
+        for (Privilege privilege : role.getPrivileges()) {
+            if (privilege.getUuid() == null) {
+                continue;
+            }
+            rolesByPrivilege.computeIfAbsent(privilege.getUuid(), privilegeId -> ConcurrentHashMap.newKeySet()).add(role.getUuid());
+            if (!indexedPrivileges.contains(privilege.getUuid())) {
+                if (privilege.getAccessRules() != null) {
+                    Set<AccessRule> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+                    for (AccessRule accessRule : privilege.getAccessRules()) {
+                        recordAccessRule(accessRule, privilege.getUuid(), visited);
+                    }
+                }
+                indexedPrivileges.add(privilege.getUuid());
+            }
+        }
+    }
+
+    private void recordAccessRule(AccessRule accessRule, UUID privilegeId, Set<AccessRule> visited) {
+        if (!visited.add(accessRule)) {
+            return;
+        }
+        if (accessRule.getUuid() != null) {
+            privilegesByRule.computeIfAbsent(accessRule.getUuid(), ruleId -> ConcurrentHashMap.newKeySet()).add(privilegeId);
+        }
+        if (accessRule.getGates() != null) {
+            for (AccessRule gate : accessRule.getGates()) {
+                recordAccessRule(gate, privilegeId, visited);
+            }
+        }
+        if (accessRule.getSubAccessRule() != null) {
+            for (AccessRule subAccessRule : accessRule.getSubAccessRule()) {
+                recordAccessRule(subAccessRule, privilegeId, visited);
+            }
+        }
+    }
+
+    /**
+     * Evicts the users holding a privilege that uses one of the access rules, directly or as a gate or sub-rule.
+     * Within a transaction the users are evicted once it is committed.
+     */
+    public void accessRulesChanged(Collection<UUID> accessRuleIds) {
+        if (accessRuleIds.isEmpty()) {
+            return;
+        }
+        TransactionUtil.afterCommit(() -> evictRoles(rolesHolding(privilegesUsing(accessRuleIds))));
+    }
+
+    /**
+     * Evicts the users holding one of the privileges, the access rules of the privileges are indexed again the next
+     * time a user holding them is recorded. Within a transaction the users are evicted once it is committed.
+     */
+    public void privilegesChanged(Collection<UUID> privilegeIds) {
+        if (privilegeIds.isEmpty()) {
+            return;
+        }
+        TransactionUtil.afterCommit(() -> evictRoles(rolesHolding(privilegeIds)));
+    }
+
+    /**
+     * Evicts the users having one of the roles, the privileges of the roles are indexed again the next time a user
+     * having them is recorded. Within a transaction the users are evicted once it is committed.
+     */
+    public void rolesChanged(Collection<UUID> roleIds) {
+        if (roleIds.isEmpty()) {
+            return;
+        }
+        TransactionUtil.afterCommit(() -> evictRoles(roleIds));
+    }
+
+    private Set<UUID> privilegesUsing(Collection<UUID> accessRuleIds) {
+        Set<UUID> privilegeIds = new HashSet<>();
+        for (UUID accessRuleId : accessRuleIds) {
+            Set<UUID> privileges = privilegesByRule.get(accessRuleId);
+            if (privileges != null) {
+                privilegeIds.addAll(privileges);
+            }
+        }
+        return privilegeIds;
+    }
+
+    private Set<UUID> rolesHolding(Collection<UUID> privilegeIds) {
+        Set<UUID> roleIds = new HashSet<>();
+        for (UUID privilegeId : privilegeIds) {
+            indexedPrivileges.remove(privilegeId);
+            Set<UUID> roles = rolesByPrivilege.get(privilegeId);
+            if (roles != null) {
+                roleIds.addAll(roles);
+            }
+        }
+        return roleIds;
+    }
+
+    private void evictRoles(Collection<UUID> roleIds) {
+        Set<String> subjects = new HashSet<>();
+        for (UUID roleId : roleIds) {
+            indexedRoles.remove(roleId);
+            // the users are recorded again when their entries are computed again
+            Set<String> roleSubjects = subjectsByRole.remove(roleId);
+            if (roleSubjects != null) {
+                subjects.addAll(roleSubjects);
+            }
+        }
+        if (subjects.isEmpty()) {
+            return;
+        }
+
+        for (String cacheName : CacheConfig.USER_CACHES) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache != null) {
+                subjects.forEach(cache::evict);
+            }
+        }
+        indexedSubjects.removeAll(subjects);
+        invalidatedUsers.addAndGet(subjects.size());
+        long current = version.incrementAndGet();
+        logger.info("evictRoles() evicted the cached rules and templates of {} users, dependency index version: {}", subjects.size(), current);
+    }
+
+    /**
+     * Clears the index and the user caches, the entries of the caches would no longer be evicted by a change
+     */
+    private synchronized void reset() {
+        if (indexedSubjects.size() < MAX_INDEXED_USERS) {
+            return;
+        }
+        logger.info("reset() the dependency index holds {} users, clearing it with the user caches", indexedSubjects.size());
+        privilegesByRule.clear();
+        rolesByPrivilege.clear();
+        subjectsByRole.clear();
+        indexedPrivileges.clear();
+        indexedRoles.clear();
+        indexedSubjects.clear();
+        for (String cacheName : CacheConfig.USER_CACHES) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the number of invalidations so far, results derived from the user caches are only valid for the
+     * version they were computed with
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(version.get(), indexedSubjects.size(), indexedRoles.size(),
+                indexedPrivileges.size(), privilegesByRule.size(), invalidatedUsers.get());
+    }
+}
@@ -0,0 +1,158 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of the {@link AuthorizationSnapshot} of the users, by subject.
+ * <p>
+ * The cache holds at most <code>authorization.snapshot.cache.max.size</code> snapshots, the least recently used is
+ * dropped first. A snapshot expires <code>authorization.snapshot.cache.ttl.seconds</code> after it was loaded, which
+ * bounds how long a change made by another node is ignored. Changes made by this node evict the snapshots instead:
+ * {@link CacheEvictionService#evictCache(String)} evicts the snapshot of the user, and the admin writes to users,
+ * roles and privileges evict the snapshots they may change.
+ * <p>
+ * A snapshot built from a user loaded before an eviction is not cached: the {@link #generation()} is read before the
+ * user is loaded and {@link #put(AuthorizationSnapshot, long)} drops the snapshot if the user, or every user, was
+ * evicted since.
+ */
+@Service
+public class AuthorizationSnapshotService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationSnapshotService.class);
+
+    private record Entry(AuthorizationSnapshot snapshot, long expiresAt) {
+    }
+
+    /**
+     * The subjects evicted since the last {@link #evictAll()} are remembered to reject the snapshots loaded before,
+     * the limit only protects against unbounded growth: past it, every snapshot being loaded is rejected.
+     */
+    private static final int MAX_EVICTED_SUBJECTS = 10_000;
+
+    private final long ttlMillis;
+    private final Map<String, Entry> snapshots;
+
+    /**
+     * Guarded by {@link #snapshots}: incremented by every eviction, the generation of the last eviction of a subject
+     * and the generation of the last eviction of every subject.
+     */
+    private long generation;
+    private final Map<String, Long> subjectEvictions = new HashMap<>();
+    private long allEvicted;
+
+    @Autowired
+    public AuthorizationSnapshotService(@Value("${authorization.snapshot.cache.ttl.seconds:60}") long ttlSeconds,
+                                        @Value("${authorization.snapshot.cache.max.size:10000}") int maxSize) {
+        this.ttlMillis = Math.max(ttlSeconds, 0) * 1000;
+        this.snapshots = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+        logger.info("Authorization snapshot cache ttl: {}s, max size: {}", ttlSeconds, maxSize);
+    }
+
+    /**
+     * @return the snapshot of the user, or null if it is not cached or has expired
+     */
+    public AuthorizationSnapshot get(String subject) {
+        if (subject == null) {
+            return null;
+        }
+        synchronized (snapshots) {
+            Entry entry = snapshots.get(subject);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt() <= System.currentTimeMillis()) {
+                snapshots.remove(subject);
+                return null;
+            }
+            return entry.snapshot();
+        }
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(AuthorizationSnapshot, long)}, read before the user is loaded
+     */
+    public long generation() {
+        synchronized (snapshots) {
+            return generation;
+        }
+    }
+
+    /**
+     * @param generation the {@link #generation()} read before the user of the snapshot was loaded, the snapshot is
+     *                   not cached if the user was evicted since
+     */
+    public void put(AuthorizationSnapshot snapshot, long generation) {
+        if (ttlMillis == 0 || snapshot.subject() == null) {
+            return;
+        }
+        synchronized (snapshots) {
+            if (allEvicted > generation || subjectEvictions.getOrDefault(snapshot.subject(), 0L) > generation) {
+                logger.debug("put() the user {} was evicted while it was loaded, the snapshot is not cached", snapshot.subject());
+                return;
+            }
+            snapshots.put(snapshot.subject(), new Entry(snapshot, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public void evict(String subject) {
+        if (subject == null) {
+            return;
+        }
+        synchronized (snapshots) {
+            evictSubject(subject);
+        }
+    }
+
+    /**
+     * @param subjects subjects of the users to evict, null subjects are ignored
+     */
+    public void evict(Collection<String> subjects) {
+        synchronized (snapshots) {
+            subjects.stream().filter(Objects::nonNull).forEach(this::evictSubject);
+        }
+    }
+
+    private void evictSubject(String subject) {
+        snapshots.remove(subject);
+        generation++;
+        if (subjectEvictions.size() >= MAX_EVICTED_SUBJECTS) {
+            subjectEvictions.clear();
+            allEvicted = generation;
+        } else {
+            subjectEvictions.put(subject, generation);
+        }
+    }
+
+    /**
+     * Evicts every snapshot, used when a change can affect any user, e.g. a change to a role or a privilege
+     */
+    public void evictAll() {
+        synchronized (snapshots) {
+            snapshots.clear();
+            subjectEvictions.clear();
+            allEvicted = ++generation;
+        }
+    }
+
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+}
@@ -14,12 +14,15 @@ public class CacheEvictionService {
     private final SessionService sessionService;
     private final UserService userService;
     private final AccessRuleService accessRuleService;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
 
     @Autowired
-    public CacheEvictionService(SessionService sessionService, UserService userService, AccessRuleService accessRuleService) {
+    public CacheEvictionService(SessionService sessionService, UserService userService, AccessRuleService accessRuleService,
+                                AuthorizationSnapshotService authorizationSnapshotService) {
         this.sessionService = sessionService;
         this.userService = userService;
         this.accessRuleService = accessRuleService;
+        this.authorizationSnapshotService = authorizationSnapshotService;
     }
 
     public void evictCache(String userSubject) {
@@ -27,6 +30,7 @@ public class CacheEvictionService {
         this.userService.evictFromCache(userSubject);
         this.accessRuleService.evictFromMergedAccessRuleCache(userSubject);
         this.accessRuleService.evictFromPreProcessedAccessRules(userSubject);
+        this.authorizationSnapshotService.evict(userSubject);
         // No audit logging here — evictCache is called from multiple paths (logout,
         // passport invalidation, login flows) and each caller logs its own domain-specific event.
     }
@@ -0,0 +1,83 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import edu.harvard.hms.dbmi.avillach.auth.model.CacheStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Statistics of the caches of the {@link CacheManager}, used to size the caches from their actual use.
+ * The content of a cache is never listed, only one entry can be read by its key.
+ */
+@Service
+public class CacheStatisticsService {
+
+    private final CacheManager cacheManager;
+
+    @Autowired
+    public CacheStatisticsService(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    public List<CacheStatistics> getStatistics() {
+        return cacheManager.getCacheNames().stream().sorted()
+                .map(this::getStatistics)
+                .flatMap(Optional::stream)
+                .toList();
+    }
+
+    /**
+     * @return the statistics of the cache, empty if there is no such cache
+     */
+    public Optional<CacheStatistics> getStatistics(String cacheName) {
+        Cache cache = getExistingCache(cacheName);
+        if (cache == null) {
+            return Optional.empty();
+        }
+
+        Object nativeCache = cache.getNativeCache();
+        if (nativeCache instanceof com.github.benmanes.caffeine.cache.Cache<?, ?> caffeineCache) {
+            boolean recordsStatistics = caffeineCache.policy().isRecordingStats();
+            CacheStats stats = caffeineCache.stats();
+            return Optional.of(new CacheStatistics(cacheName, recordsStatistics, caffeineCache.estimatedSize(), stats.hitCount(),
+                    stats.missCount(), stats.hitRate(), stats.loadCount(), stats.averageLoadPenalty(), stats.evictionCount()));
+        }
+
+        long size = nativeCache instanceof Map<?, ?> map ? map.size() : 0;
+        return Optional.of(new CacheStatistics(cacheName, false, size, 0, 0, 1, 0, 0, 0));
+    }
+
+    /**
+     * Reads one entry of a cache without counting it as a hit or a miss. The caches of the users are keyed by the
+     * subject of the user.
+     *
+     * @return the cached value, empty if the cache or the entry does not exist
+     */
+    public Optional<Object> getEntry(String cacheName, String key) {
+        Cache cache = getExistingCache(cacheName);
+        if (cache == null) {
+            return Optional.empty();
+        }
+
+        // the caches of the cache manager are keyed by objects
+        if (cache.getNativeCache() instanceof com.github.benmanes.caffeine.cache.Cache<?, ?> caffeineCache) {
+            @SuppressWarnings("unchecked")
+            com.github.benmanes.caffeine.cache.Cache<Object, Object> objectCache = (com.github.benmanes.caffeine.cache.Cache<Object, Object>) caffeineCache;
+            return Optional.ofNullable(objectCache.policy().getIfPresentQuietly(key));
+        }
+        return Optional.ofNullable(cache.get(key)).map(Cache.ValueWrapper::get);
+    }
+
+    /**
+     * @return the cache, or null if it does not exist. Unlike {@link CacheManager#getCache(String)}, it never creates the cache.
+     */
+    private Cache getExistingCache(String cacheName) {
+        return cacheManager.getCacheNames().contains(cacheName) ? cacheManager.getCache(cacheName) : null;
+    }
+}
@@ -0,0 +1,169 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.jayway.jsonpath.PathNotFoundException;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Index from consent value to the access rules that accept it.
+ * <p>
+ * Managed consent rules (AR_CONSENT_*, AR_TOPMED_*) are ALL_CONTAINS rules on a consent path such as
+ * <code>$.query.query.categoryFilters.\\_consents\\[*]</code> that only differ in their value (phs.cN).
+ * Such a rule can only pass if every consent in the request contains one of its values, so the consents
+ * of the request select the few rules that are worth evaluating. Every other indexed rule is known to fail
+ * without evaluating its gates, path or sub-rules.
+ * <p>
+ * Rules that do not have this shape are not indexed and are never reported as excluded.
+ */
+class ConsentRuleIndex {
+
+    @FunctionalInterface
+    interface PathReader {
+        /**
+         * @throws PathNotFoundException if the path of the rule is not present in the request
+         */
+        Object read(CompiledAccessRule compiledRule);
+    }
+
+    /**
+     * Indexed rules sharing the same path, they are all decided by the same values of the request.
+     */
+    private static final class PathIndex {
+        private final CompiledAccessRule compiledRule;
+        private final Map<String, Set<AccessRule>> rulesByValue = new HashMap<>();
+        private final Set<AccessRule> rules = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final SortedSet<Integer> valueLengths = new TreeSet<>();
+
+        private PathIndex(CompiledAccessRule compiledRule) {
+            this.compiledRule = compiledRule;
+        }
+
+        private void add(AccessRule accessRule, List<String> values) {
+            rules.add(accessRule);
+            for (String value : values) {
+                rulesByValue.computeIfAbsent(value, key -> Collections.newSetFromMap(new IdentityHashMap<>())).add(accessRule);
+                valueLengths.add(value.length());
+            }
+        }
+
+        /**
+         * @return the rules having at least one value contained in the given request value
+         */
+        private Set<AccessRule> rulesContainedIn(String requestValue) {
+            Set<AccessRule> matching = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int length : valueLengths) {
+                if (length > requestValue.length()) {
+                    break;
+                }
+                for (int start = 0; start + length <= requestValue.length(); start++) {
+                    Set<AccessRule> candidates = rulesByValue.get(requestValue.substring(start, start + length));
+                    if (candidates != null) {
+                        matching.addAll(candidates);
+                    }
+                }
+            }
+            return matching;
+        }
+    }
+
+    private final Map<String, PathIndex> pathIndexes;
+
+    private ConsentRuleIndex(Map<String, PathIndex> pathIndexes) {
+        this.pathIndexes = pathIndexes;
+    }
+
+    /**
+     * @param accessRules        the rule set to index, an interned rule set, see {@link InternedRuleSet}
+     * @param compiledRuleSource provides the compiled plan of a rule
+     */
+    static ConsentRuleIndex build(Set<AccessRule> accessRules, Function<AccessRule, CompiledAccessRule> compiledRuleSource) {
+        Map<String, PathIndex> pathIndexes = new HashMap<>();
+        for (AccessRule accessRule : accessRules) {
+            if (!isIndexable(accessRule)) {
+                continue;
+            }
+
+            CompiledAccessRule compiledRule = compiledRuleSource.apply(accessRule);
+            if (!compiledRule.hasPath() || compiledRule.getValues().stream().anyMatch(value -> value == null || value.isEmpty())) {
+                continue;
+            }
+
+            pathIndexes.computeIfAbsent(compiledRule.getRule(), key -> new PathIndex(compiledRule))
+                    .add(accessRule, compiledRule.getValues());
+        }
+        return new ConsentRuleIndex(pathIndexes);
+    }
+
+    private static boolean isIndexable(AccessRule accessRule) {
+        return accessRule.getType() != null
+                && accessRule.getType() == AccessRule.TypeNaming.ALL_CONTAINS
+                && (accessRule.getEvaluateOnlyByGates() == null || !accessRule.getEvaluateOnlyByGates())
+                && (accessRule.getCheckMapNode() == null || !accessRule.getCheckMapNode());
+    }
+
+    boolean isEmpty() {
+        return pathIndexes.isEmpty();
+    }
+
+    /**
+     * Finds the indexed rules that cannot pass for the request the reader extracts values from.
+     *
+     * @param reader reads the value of a path from the request
+     * @return the rules that would fail if they were evaluated
+     */
+    Set<AccessRule> findExcludedRules(PathReader reader) {
+        Set<AccessRule> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PathIndex pathIndex : pathIndexes.values()) {
+            Object requestValue;
+            try {
+                requestValue = reader.read(pathIndex.compiledRule);
+            } catch (PathNotFoundException e) {
+                // ALL_CONTAINS never passes if the path is missing
+                excluded.addAll(pathIndex.rules);
+                continue;
+            }
+
+            Set<AccessRule> candidates = candidates(pathIndex, requestValue);
+            if (candidates == null) {
+                continue;
+            }
+            for (AccessRule accessRule : pathIndex.rules) {
+                if (!candidates.contains(accessRule)) {
+                    excluded.add(accessRule);
+                }
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * @return the rules of the index that may pass for the given request value,
+     * or null if the value has a shape the index cannot decide on
+     */
+    private static Set<AccessRule> candidates(PathIndex pathIndex, Object requestValue) {
+        if (requestValue instanceof String value) {
+            return pathIndex.rulesContainedIn(value);
+        }
+        if (!(requestValue instanceof Collection<?> values)) {
+            return null;
+        }
+
+        // every value of the request has to be contained, an empty collection never passes ALL_CONTAINS
+        Set<AccessRule> candidates = null;
+        for (Object value : values) {
+            if (!(value instanceof String stringValue)) {
+                return null;
+            }
+            Set<AccessRule> matching = pathIndex.rulesContainedIn(stringValue);
+            if (candidates == null) {
+                candidates = matching;
+            } else {
+                candidates.retainAll(matching);
+            }
+        }
+        return candidates == null ? Collections.emptySet() : candidates;
+    }
+}
@@ -2,9 +2,10 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.ApplicationPrincipal;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
 import edu.harvard.hms.dbmi.avillach.auth.model.CustomApplicationDetails;
 import edu.harvard.hms.dbmi.avillach.auth.model.CustomUserDetails;
-import org.hibernate.Hibernate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,33 +23,51 @@ public class CustomUserDetailService implements UserDetailsService {
 
     private final UserService userService;
     private final ApplicationService applicationService;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
 
     @Autowired
-    public CustomUserDetailService(UserService userService, ApplicationService applicationService) {
+    public CustomUserDetailService(UserService userService, ApplicationService applicationService,
+                                   AuthorizationSnapshotService authorizationSnapshotService) {
         this.userService = userService;
         this.applicationService = applicationService;
+        this.authorizationSnapshotService = authorizationSnapshotService;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         if (username.startsWith("application:")) {
             String applicationName = username.substring(12);
+            Optional<ApplicationPrincipal> cachedPrincipal = applicationService.getCachedApplicationPrincipal(applicationName);
+            if (cachedPrincipal.isPresent()) {
+                return new CustomApplicationDetails(cachedPrincipal.get());
+            }
+
+            // The privileges of the application are initialized by the service to avoid lazy loading exception
             Optional<Application> applicationByID = applicationService.getApplicationByIdWithPrivileges(applicationName);
             if (applicationByID.isEmpty()) {
                 throw new UsernameNotFoundException("Application not found");
             }
 
-            // Initialize the privileges of the application proxy object to avoid lazy loading exception
-            Hibernate.initialize(applicationByID.get().getPrivileges());
-            return new CustomApplicationDetails(applicationByID.get());
+            ApplicationPrincipal principal = ApplicationPrincipal.of(applicationByID.get());
+            applicationService.cacheApplicationPrincipal(principal);
+            return new CustomApplicationDetails(principal);
         } else {
+            // The user entity is only loaded if the request needs more than the cached authorization snapshot
+            AuthorizationSnapshot snapshot = this.authorizationSnapshotService.get(username);
+            if (snapshot != null) {
+                return new CustomUserDetails(snapshot, () -> this.userService.findBySubject(username));
+            }
+
             logger.info("Loading user by username: {}", username);
+            long generation = this.authorizationSnapshotService.generation();
             User user = this.userService.findBySubject(username);
             if (user == null) {
                 throw new UsernameNotFoundException("User not found with email: " + username);
             }
 
-            return new CustomUserDetails(user);
+            CustomUserDetails userDetails = new CustomUserDetails(user);
+            this.authorizationSnapshotService.put(userDetails.getSnapshot(), generation);
+            return userDetails;
         }
     }
 }
@@ -0,0 +1,197 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.jayway.jsonpath.PathNotFoundException;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleEvaluationNode;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of the access rule evaluation of one request, passed explicitly through
+ * {@link AccessRuleService#evaluateAccessRule(EvaluationContext, AccessRule)}.
+ * <p>
+ * The context remembers the value of every jsonPath read from the request body and the result of every rule
+ * evaluated so far, so paths, gates and sub-rules shared by several rules are only evaluated once per request.
+ * When the request is traced it also records the evaluation tree of the rule being evaluated.
+ * <p>
+ * The memoized values can be read and written from several threads. The trace is only meant to be used by
+ * the thread evaluating the rule it belongs to.
+ */
+public class EvaluationContext {
+
+    /**
+     * Result of a rule, the failure reason is only known for traced requests
+     */
+    record EvaluationOutcome(boolean result, String failureReason) {
+    }
+
+    /**
+     * Result of reading one jsonPath, either the value or the reason the path could not be found
+     */
+    private record PathExtraction(Object value, PathNotFoundException notFound) {
+    }
+
+    /**
+     * The jsonPath document is created on the first read, rules without a path never need the request body to be parsed
+     */
+    private final ParsedRequestBody request;
+    private final Map<String, PathExtraction> extractedPaths;
+
+    /**
+     * Results of the rules evaluated so far. Persisted rules are identified by their uuid, merged
+     * or not yet persisted rules only by the instance itself.
+     */
+    private final Map<UUID, EvaluationOutcome> outcomesByUuid;
+    private final Map<AccessRule, EvaluationOutcome> outcomesByInstance;
+
+    /**
+     * Evaluation tree of the rule being evaluated, only allocated when the request is traced
+     */
+    private final Deque<AccessRuleEvaluationNode> traceStack;
+    private AccessRuleEvaluationNode traceRoot;
+
+    /**
+     * @param parsedRequestBody the request body all rules are evaluated against
+     * @param traced            true to record the evaluation tree of every rule, without it no trace is allocated
+     */
+    public EvaluationContext(Object parsedRequestBody, boolean traced) {
+        this(new ParsedRequestBody(parsedRequestBody), traced);
+    }
+
+    /**
+     * @param request the request body all rules are evaluated against, shared with the rest of the introspection
+     * @param traced  true to record the evaluation tree of every rule, without it no trace is allocated
+     */
+    public EvaluationContext(ParsedRequestBody request, boolean traced) {
+        this.request = request;
+        this.extractedPaths = new ConcurrentHashMap<>();
+        this.outcomesByUuid = new ConcurrentHashMap<>();
+        this.outcomesByInstance = Collections.synchronizedMap(new IdentityHashMap<>());
+        this.traceStack = traced ? new ArrayDeque<>() : null;
+    }
+
+    private EvaluationContext(EvaluationContext parent) {
+        this.request = parent.request;
+        this.extractedPaths = parent.extractedPaths;
+        this.outcomesByUuid = parent.outcomesByUuid;
+        this.outcomesByInstance = parent.outcomesByInstance;
+        this.traceStack = parent.isTraced() ? new ArrayDeque<>() : null;
+    }
+
+    /**
+     * Creates a context for evaluating rules of the same request on another thread. The fork shares the extracted
+     * paths and rule results with this context, but records its own evaluation tree.
+     */
+    public EvaluationContext fork() {
+        return new EvaluationContext(this);
+    }
+
+    public Object getParsedRequestBody() {
+        return request.getRequestBody();
+    }
+
+    public ParsedRequestBody getRequest() {
+        return request;
+    }
+
+    public boolean isTraced() {
+        return traceStack != null;
+    }
+
+    /**
+     * Reads the path of the rule from the request body. The value of each distinct path is read only once,
+     * including the paths that could not be found.
+     *
+     * @throws PathNotFoundException if the path is not present in the request body
+     */
+    Object readPath(CompiledAccessRule compiledRule) {
+        PathExtraction extraction = extractedPaths.get(compiledRule.getRule());
+        if (extraction == null) {
+            try {
+                extraction = new PathExtraction(request.getDocument().read(compiledRule.getPath()), null);
+            } catch (PathNotFoundException ex) {
+                extraction = new PathExtraction(null, ex);
+            }
+            extractedPaths.put(compiledRule.getRule(), extraction);
+        }
+
+        if (extraction.notFound() != null) {
+            throw extraction.notFound();
+        }
+        return extraction.value();
+    }
+
+    EvaluationOutcome getOutcome(AccessRule accessRule) {
+        return isIdentifiedByUuid(accessRule) ? outcomesByUuid.get(accessRule.getUuid()) : outcomesByInstance.get(accessRule);
+    }
+
+    void putOutcome(AccessRule accessRule, EvaluationOutcome outcome) {
+        if (isIdentifiedByUuid(accessRule)) {
+            outcomesByUuid.put(accessRule.getUuid(), outcome);
+        } else {
+            outcomesByInstance.put(accessRule, outcome);
+        }
+    }
+
+    private static boolean isIdentifiedByUuid(AccessRule accessRule) {
+        return accessRule.getUuid() != null && accessRule.getMergedName().isEmpty();
+    }
+
+    /**
+     * Adds the node of the rule to the evaluation tree, below the rule currently being evaluated
+     *
+     * @return the node of the rule, or null if the request is not traced
+     */
+    AccessRuleEvaluationNode startTraceNode(AccessRule accessRule) {
+        if (traceStack == null) {
+            return null;
+        }
+
+        AccessRuleEvaluationNode parent = traceStack.peek();
+        boolean isGate = parent != null && parent.getRule().getGates() != null && parent.getRule().getGates().contains(accessRule);
+        boolean isSubRule = parent != null && parent.getRule().getSubAccessRule() != null && parent.getRule().getSubAccessRule().contains(accessRule);
+        boolean isOrRelationship = accessRule.getGateAnyRelation() != null && accessRule.getGateAnyRelation();
+
+        AccessRuleEvaluationNode node = new AccessRuleEvaluationNode(accessRule, isGate, isSubRule, isOrRelationship);
+        if (parent == null) {
+            traceRoot = node;
+        } else {
+            parent.addChild(node);
+        }
+        traceStack.push(node);
+        return node;
+    }
+
+    void endTraceNode() {
+        traceStack.pop();
+    }
+
+    /**
+     * @return the evaluation tree node of the rule being evaluated, null if the request is not traced
+     */
+    AccessRuleEvaluationNode currentTraceNode() {
+        return traceStack == null ? null : traceStack.peek();
+    }
+
+    /**
+     * Prints the evaluation tree for the most recently evaluated access rule.
+     *
+     * @return A string representation of the evaluation tree
+     */
+    public String printEvaluationTree() {
+        if (traceRoot == null) {
+            return "No evaluation tree available";
+        }
+        return "ACCESS RULE EVALUATION TREE:\n" + traceRoot.generateTreeString();
+    }
+
+    /**
+     * @return single line trace of the most recently evaluated access rule, or null if the request is not traced
+     * @see AccessRuleEvaluationNode#generateCompactString()
+     */
+    public String getCompactEvaluationTrace() {
+        return traceRoot == null ? null : traceRoot.generateCompactString();
+    }
+}
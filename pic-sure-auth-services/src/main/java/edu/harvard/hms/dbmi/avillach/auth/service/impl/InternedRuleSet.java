@@ -0,0 +1,56 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Read-only rule set shared through the {@link AccessRuleCatalog}, see {@link AccessRuleService#getInternedRuleSet(Set)}.
+ * <p>
+ * The set holds the {@link ConsentRuleIndex} of its rules, built the first time a request is evaluated against it
+ * and then used by every request of every user sharing the set. Rule sets that are not interned are not indexed.
+ */
+final class InternedRuleSet extends AbstractSet<AccessRule> {
+
+    private final Set<AccessRule> accessRules;
+    private volatile ConsentRuleIndex consentRuleIndex;
+
+    /**
+     * @param accessRules the rules of the set, read-only
+     */
+    InternedRuleSet(Set<AccessRule> accessRules) {
+        this.accessRules = accessRules;
+    }
+
+    /**
+     * @param compiledRuleSource provides the compiled plan of a rule
+     */
+    ConsentRuleIndex getConsentRuleIndex(Function<AccessRule, CompiledAccessRule> compiledRuleSource) {
+        ConsentRuleIndex index = consentRuleIndex;
+        if (index == null) {
+            // a concurrent build gives the same index, the last one is kept
+            index = ConsentRuleIndex.build(this, compiledRuleSource);
+            consentRuleIndex = index;
+        }
+        return index;
+    }
+
+    @Override
+    public Iterator<AccessRule> iterator() {
+        return accessRules.iterator();
+    }
+
+    @Override
+    public int size() {
+        return accessRules.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return accessRules.contains(o);
+    }
+}
@@ -0,0 +1,104 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+import edu.harvard.hms.dbmi.avillach.hpds.data.query.v3.Query;
+
+import java.util.Map;
+
+/**
+ * The request body of one token introspection, with the representations derived from it.
+ * <p>
+ * Each representation is built the first time it is needed and then shared by everything that handles the request:
+ * the jsonPath document read by every access rule, the canonical JSON used by the authorization decision cache, and
+ * the HPDS query evaluated by the user consent rules.
+ * <p>
+ * The request body must not be modified once it is wrapped.
+ */
+public class ParsedRequestBody {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Map entries and properties are sorted so that equal requests have the same JSON
+     */
+    private static final ObjectMapper canonicalMapper = JsonMapper.builder()
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+            .build();
+
+    private final Object requestBody;
+    private volatile DocumentContext document;
+    private volatile String canonicalJson;
+    private volatile Query query;
+
+    /**
+     * @param requestBody the request body as deserialized by Jackson, usually a map
+     */
+    public ParsedRequestBody(Object requestBody) {
+        this.requestBody = requestBody;
+    }
+
+    public Object getRequestBody() {
+        return requestBody;
+    }
+
+    /**
+     * @return the target service of the request, null if there is none
+     */
+    public String getTargetService() {
+        return requestBody instanceof Map<?, ?> requestBodyMap && requestBodyMap.get("Target Service") instanceof String targetService
+                ? targetService : null;
+    }
+
+    /**
+     * @return the jsonPath document of the request body, parsed once
+     */
+    public DocumentContext getDocument() {
+        DocumentContext current = document;
+        if (current == null) {
+            current = JsonPath.parse(requestBody);
+            document = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return the request body serialized with its map entries and properties in alphabetical order
+     * @throws JsonProcessingException if the request body cannot be serialized
+     */
+    public String getCanonicalJson() throws JsonProcessingException {
+        String current = canonicalJson;
+        if (current == null) {
+            current = canonicalMapper.writeValueAsString(requestBody);
+            canonicalJson = current;
+        }
+        return current;
+    }
+
+    /**
+     * The HPDS query nested in the PIC-SURE query of the request, at <code>query.query</code>, either as a JSON
+     * string or as an object.
+     *
+     * @throws JsonProcessingException if the query is not a valid HPDS query
+     * @throws ClassCastException      if the request does not have a PIC-SURE query
+     */
+    public Query getQuery() throws JsonProcessingException {
+        Query current = query;
+        if (current == null) {
+            Object queryObject = ((Map<?, ?>) ((Map<?, ?>) requestBody).get("query")).get("query");
+            if (queryObject instanceof String queryString) {
+                current = objectMapper.readValue(queryString, Query.class);
+            } else {
+                current = objectMapper.convertValue(queryObject, Query.class);
+            }
+            query = current;
+        }
+        return current;
+    }
+}
@@ -6,6 +6,7 @@ import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Role;
 import edu.harvard.hms.dbmi.avillach.auth.model.fenceMapping.StudyMetaData;
 import edu.harvard.hms.dbmi.avillach.auth.repository.PrivilegeRepository;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TransactionUtil;
 import jakarta.annotation.PostConstruct;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -34,6 +35,8 @@ public class PrivilegeService {
     private final PrivilegeRepository privilegeRepository;
     private final ApplicationService applicationService;
     private final AccessRuleService accessRuleService;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
+    private final AuthorizationDependencyIndex authorizationDependencyIndex;
 
     private Application picSureApp;
     private final String variantAnnotationColumns;
@@ -53,7 +56,9 @@ public class PrivilegeService {
                                @Value("${fence.harmonized.consent.group.concept.path}") String fenceHarmonizedConsentGroupConceptPath,
                                @Value("${fence.parent.consent.group.concept.path}") String fenceParentConceptPath,
                                @Value("${fence.topmed.consent.group.concept.path}") String fenceTopmedConceptPath,
-                               @Value("${fence.consent.group.concept.path}") String fenceHarmonizedConceptPath) {
+                               @Value("${fence.consent.group.concept.path}") String fenceHarmonizedConceptPath,
+                               AuthorizationSnapshotService authorizationSnapshotService,
+                               AuthorizationDependencyIndex authorizationDependencyIndex) {
         this.privilegeRepository = privilegeRepository;
         this.applicationService = applicationService;
         this.accessRuleService = accessRuleService;
@@ -62,6 +67,8 @@ public class PrivilegeService {
         this.fence_parent_consent_group_concept_path = fenceParentConceptPath;
         this.fence_topmed_consent_group_concept_path = fenceTopmedConceptPath;
         this.fence_harmonized_concept_path = fenceHarmonizedConceptPath;
+        this.authorizationSnapshotService = authorizationSnapshotService;
+        this.authorizationDependencyIndex = authorizationDependencyIndex;
     }
 
     @PostConstruct
@@ -92,16 +99,23 @@ public class PrivilegeService {
         }
 
         this.privilegeRepository.deleteById(UUID.fromString(privilegeId));
+        TransactionUtil.afterCommit(this.authorizationSnapshotService::evictAll);
+        this.authorizationDependencyIndex.privilegesChanged(List.of(UUID.fromString(privilegeId)));
         return this.getPrivilegesAll();
     }
 
     public List<Privilege> updatePrivileges(List<Privilege> privileges) {
         this.privilegeRepository.saveAll(privileges);
+        // the privileges of any user can have changed
+        this.authorizationSnapshotService.evictAll();
+        this.authorizationDependencyIndex.privilegesChanged(privileges.stream().map(Privilege::getUuid).filter(Objects::nonNull).toList());
         return this.getPrivilegesAll();
     }
 
     public List<Privilege> addPrivileges(List<Privilege> privileges) {
-        return this.privilegeRepository.saveAll(privileges);
+        List<Privilege> savedPrivileges = this.privilegeRepository.saveAll(privileges);
+        this.authorizationSnapshotService.evictAll();
+        return savedPrivileges;
     }
 
     public List<Privilege> getPrivilegesAll() {
@@ -117,7 +131,11 @@ public class PrivilegeService {
     }
 
     public Privilege save(Privilege privilege) {
-        return this.privilegeRepository.save(privilege);
+        Privilege savedPrivilege = this.privilegeRepository.save(privilege);
+        if (privilege.getUuid() != null) {
+            this.authorizationDependencyIndex.privilegesChanged(List.of(privilege.getUuid()));
+        }
+        return savedPrivilege;
     }
 
     public Set<Privilege> addPrivileges(Role r, Map<String, StudyMetaData> fenceMapping) {
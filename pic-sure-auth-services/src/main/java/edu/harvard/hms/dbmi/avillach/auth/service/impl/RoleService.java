@@ -10,6 +10,7 @@ import edu.harvard.hms.dbmi.avillach.auth.model.ras.RasDbgapPermission;
 import edu.harvard.hms.dbmi.avillach.auth.repository.RoleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserRepository;
 import edu.harvard.hms.dbmi.avillach.auth.utils.FenceMappingUtility;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TransactionUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,15 +40,21 @@ public class RoleService {
 
     private final ApplicationContext applicationContext;
     private final LoggingClient loggingClient;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
+    private final AuthorizationDependencyIndex authorizationDependencyIndex;
 
     @Autowired
-    public RoleService(UserRepository userRepository, RoleRepository roleRepository, PrivilegeService privilegeService, FenceMappingUtility fenceMappingUtility, ApplicationContext applicationContext, LoggingClient loggingClient) {
+    public RoleService(UserRepository userRepository, RoleRepository roleRepository, PrivilegeService privilegeService, FenceMappingUtility fenceMappingUtility, ApplicationContext applicationContext, LoggingClient loggingClient,
+                       AuthorizationSnapshotService authorizationSnapshotService,
+                       AuthorizationDependencyIndex authorizationDependencyIndex) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.privilegeService = privilegeService;
         this.fenceMappingUtility = fenceMappingUtility;
         this.applicationContext = applicationContext;
         this.loggingClient = loggingClient;
+        this.authorizationSnapshotService = authorizationSnapshotService;
+        this.authorizationDependencyIndex = authorizationDependencyIndex;
     }
 
     @EventListener(ContextRefreshedEvent.class)
@@ -180,7 +187,9 @@ public class RoleService {
     @Transactional
     public List<Role> addRoles(List<Role> roles) {
         checkPrivilegeAssociation(roles);
-        return roleRepository.saveAll(roles);
+        List<Role> savedRoles = roleRepository.saveAll(roles);
+        TransactionUtil.afterCommit(this.authorizationSnapshotService::evictAll);
+        return savedRoles;
     }
 
     /**
@@ -209,7 +218,11 @@ public class RoleService {
     @Transactional
     public List<Role> updateRoles(List<Role> roles) {
         checkPrivilegeAssociation(roles);
-        return roleRepository.saveAll(roles);
+        List<Role> savedRoles = roleRepository.saveAll(roles);
+        // any user can have the updated roles
+        TransactionUtil.afterCommit(this.authorizationSnapshotService::evictAll);
+        this.authorizationDependencyIndex.rolesChanged(savedRoles.stream().map(Role::getUuid).filter(Objects::nonNull).toList());
+        return savedRoles;
     }
 
     @Transactional
@@ -220,6 +233,8 @@ public class RoleService {
         }
 
         roleRepository.deleteById(optionalRole.get().getUuid());
+        TransactionUtil.afterCommit(this.authorizationSnapshotService::evictAll);
+        this.authorizationDependencyIndex.rolesChanged(List.of(optionalRole.get().getUuid()));
         return Optional.of(roleRepository.findAll());
     }
 
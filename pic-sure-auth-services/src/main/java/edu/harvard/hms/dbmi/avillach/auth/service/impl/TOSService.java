@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.TermsOfService;
 import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
 import edu.harvard.hms.dbmi.avillach.auth.repository.TermsOfServiceRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserRepository;
 import edu.harvard.hms.dbmi.avillach.auth.rest.TermsOfServiceController;
@@ -11,13 +12,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.util.*;
 
 /**
  * <p>Provides business logic for the TermsOfService endpoint.</p>>
  *
+ * <p>The latest terms of service are held in memory, so checking that a user accepted them does not query the
+ * database. The value is replaced when {@link #updateTermsOfService(String)} runs on this node, and re-read every
+ * <code>application.tos.refresh.interval</code> milliseconds to see the terms updated on other nodes.</p>
+ *
  * @see TermsOfServiceController
  */
 @Service
@@ -32,6 +39,28 @@ public class TOSService {
 
     private final UserRepository userRepo;
 
+    /**
+     * Latest terms of service known by this node
+     *
+     * @param version     incremented every time the latest terms of service change
+     * @param dateUpdated date of the latest terms of service, null if there are none
+     * @param content     content of the latest terms of service, null if there are none
+     */
+    public record LatestTermsOfService(long version, Instant dateUpdated, String content) {
+
+        /**
+         * @return false if there are no terms of service to accept
+         */
+        public boolean exists() {
+            return content != null;
+        }
+    }
+
+    /**
+     * Loaded on first use, the terms of service are not needed if they are disabled
+     */
+    private volatile LatestTermsOfService latest;
+
 
     @Autowired
     public TOSService(
@@ -52,7 +81,7 @@ public class TOSService {
         }
 
         // If there is no TOS, then the user has accepted it
-        if (getLatest() == null) {
+        if (!getLatestTermsOfService().exists()) {
             logger.info("No TOS found in database");
             return true;
         }
@@ -60,21 +89,83 @@ public class TOSService {
         return checkAgainstTOSDate(userSubj);
     }
 
+    /**
+     * Same as {@link #hasUserAcceptedLatest(String)}, with the acceptance date of the user already loaded. It does not
+     * query the database once the latest terms of service are known.
+     *
+     * @param snapshot the authorization snapshot of the user
+     */
+    public boolean hasAcceptedLatest(AuthorizationSnapshot snapshot) {
+        if (!isToSEnabled) {
+            return true;
+        }
+
+        LatestTermsOfService latestTermsOfService = getLatestTermsOfService();
+        if (!latestTermsOfService.exists()) {
+            return true;
+        }
+
+        Instant latestDate = latestTermsOfService.dateUpdated();
+        boolean accepted = snapshot.acceptedTOS() != null && (latestDate == null || !snapshot.acceptedTOS().isBefore(latestDate));
+        logger.debug("User {} accepted TOS on {}, latest TOS dated {}", snapshot.subject(), snapshot.acceptedTOS(), latestDate);
+        return accepted;
+    }
+
     public Optional<TermsOfService> updateTermsOfService(String html) {
         TermsOfService updatedTOS = new TermsOfService();
         updatedTOS.setContent(html);
         termsOfServiceRepo.save(updatedTOS);
-        return termsOfServiceRepo.findTopByOrderByDateUpdatedDesc();
+        Optional<TermsOfService> termsOfService = termsOfServiceRepo.findTopByOrderByDateUpdatedDesc();
+        setLatest(termsOfService);
+        return termsOfService;
     }
 
     public @Nullable String getLatest() {
-        Optional<TermsOfService> termsOfService = termsOfServiceRepo.findTopByOrderByDateUpdatedDesc();
-        if (termsOfService.isPresent()) {
-            return termsOfService.get().getContent();
-        } else {
+        String content = getLatestTermsOfService().content();
+        if (content == null) {
             logger.info("Terms Of Service disabled: No Terms of Service found in database");
-            return null;
         }
+        return content;
+    }
+
+    /**
+     * @return the latest terms of service known by this node, read from the database the first time
+     */
+    public LatestTermsOfService getLatestTermsOfService() {
+        LatestTermsOfService current = latest;
+        if (current == null) {
+            current = setLatest(termsOfServiceRepo.findTopByOrderByDateUpdatedDesc());
+        }
+        return current;
+    }
+
+    /**
+     * Re-reads the latest terms of service, they may have been updated by another node
+     */
+    @Scheduled(initialDelayString = "${application.tos.refresh.interval:60000}", fixedDelayString = "${application.tos.refresh.interval:60000}")
+    public void refreshLatest() {
+        if (!isToSEnabled || latest == null) {
+            // nothing to refresh before the first use
+            return;
+        }
+        setLatest(termsOfServiceRepo.findTopByOrderByDateUpdatedDesc());
+    }
+
+    private synchronized LatestTermsOfService setLatest(Optional<TermsOfService> termsOfService) {
+        Instant dateUpdated = termsOfService.map(TermsOfService::getDateUpdated).map(date -> Instant.ofEpochMilli(date.getTime())).orElse(null);
+        String content = termsOfService.map(TermsOfService::getContent).orElse(null);
+
+        LatestTermsOfService current = latest;
+        if (current != null && Objects.equals(current.dateUpdated(), dateUpdated) && Objects.equals(current.content(), content)) {
+            return current;
+        }
+
+        LatestTermsOfService updated = new LatestTermsOfService(current == null ? 1 : current.version() + 1, dateUpdated, content);
+        if (current != null) {
+            logger.info("Latest Terms of Service changed, dated {}, version {}", dateUpdated, updated.version());
+        }
+        latest = updated;
+        return updated;
     }
 
     public User acceptTermsOfService(String userSubj) {
@@ -88,6 +179,7 @@ public class TOSService {
         if (tosDate.isEmpty()) {
             throw new RuntimeException("No Terms of Service found in database");
         }
+        setLatest(tosDate);
 
         String userLogId = !StringUtils.isBlank(user.getEmail()) ? user.getEmail() : user.getGeneralMetadata();
         logger.info("TOS_LOG : User {} accepted the Terms of Service dated {}", userLogId, tosDate.get().getDateUpdated());
@@ -106,8 +198,8 @@ public class TOSService {
             return false;
         }
 
-        Optional<TermsOfService> latestTOS = this.termsOfServiceRepo.findTopByOrderByDateUpdatedDesc();
-        return latestTOS.filter(termsOfService -> acceptedTOS.compareTo(termsOfService.getDateUpdated()) >= 0).isPresent();
+        Instant latestDate = getLatestTermsOfService().dateUpdated();
+        return latestDate == null || !Instant.ofEpochMilli(acceptedTOS.getTime()).isBefore(latestDate);
     }
 
 }
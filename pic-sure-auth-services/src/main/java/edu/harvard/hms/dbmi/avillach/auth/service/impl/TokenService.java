@@ -13,6 +13,7 @@ import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,13 +25,21 @@ import org.springframework.stereotype.Service;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 
 @Service
 public class TokenService {
 
     private final static Logger logger = LoggerFactory.getLogger(TokenService.class);
+    private final static ObjectMapper objectMapper = new ObjectMapper();
 
     private final AuthorizationService authorizationService;
 
@@ -44,37 +53,213 @@ public class TokenService {
     private final SessionService sessionService;
     private final UserService userService;
 
+    /**
+     * A refresh of a token, shared by the concurrent refreshes of the same token. Once the refresh has succeeded,
+     * the refreshed token is also returned to the refreshes of the same token until <code>reusableUntil</code>.
+     */
+    private static final class TokenRefresh {
+        private final CompletableFuture<RefreshToken> result = new CompletableFuture<>();
+        private volatile long reusableUntil = Long.MAX_VALUE;
+
+        private boolean isReusable() {
+            return reusableUntil > System.currentTimeMillis();
+        }
+    }
+
+    private static final int MAX_TOKEN_REFRESHES = 10_000;
+    private final long refreshGracePeriodMillis;
+    /**
+     * Refreshes in progress or recently done, by the hex SHA-256 of the original token
+     */
+    private final ConcurrentHashMap<String, TokenRefresh> tokenRefreshes = new ConcurrentHashMap<>();
+
+    private final int maxInspectionBatchSize;
+    /**
+     * Inspects the items of the batches, the inspections block on the database and are kept off the common pool
+     */
+    private final ForkJoinPool inspectionPool;
+
     @Autowired
     public TokenService(AuthorizationService authorizationService, UserRepository userRepository,
                         @Value("${application.token.expiration.time}") long tokenExpirationTime,
                         JWTUtil jwtUtil,
                         SessionService sessionService,
-                        UserService userService) {
+                        UserService userService,
+                        @Value("${application.token.refresh.grace.period.seconds:5}") long refreshGracePeriodSeconds,
+                        @Value("${application.token.inspection.batch.max.size:100}") int maxInspectionBatchSize,
+                        @Value("${application.token.inspection.batch.threads:0}") int inspectionThreads) {
         this.authorizationService = authorizationService;
         this.userRepository = userRepository;
         this.tokenExpirationTime = tokenExpirationTime > 0 ? tokenExpirationTime : defaultTokenExpirationTime;
         this.jwtUtil = jwtUtil;
         this.sessionService = sessionService;
         this.userService = userService;
+        this.refreshGracePeriodMillis = Math.max(refreshGracePeriodSeconds, 0) * 1000;
+        this.maxInspectionBatchSize = maxInspectionBatchSize;
+        this.inspectionPool = new ForkJoinPool(inspectionThreads > 0 ? inspectionThreads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        inspectionPool.shutdownNow();
     }
 
     public Map<String, Object> inspectToken(Map<String, Object> inputMap) {
+        return inspectToken(inputMap, false);
+    }
+
+    /**
+     * @param traceRequested true if the calling application asked for an access rule evaluation trace,
+     *                       the trace is added to the response if the request was denied and traced
+     */
+    public Map<String, Object> inspectToken(Map<String, Object> inputMap, boolean traceRequested) {
         logger.info("TokenInspect starting...");
-        TokenInspection tokenInspection;
+        Map<String, Object> responseMap;
         try {
-            tokenInspection = validateToken(inputMap);
+            responseMap = inspectToken(inputMap, traceRequested, null, this.userRepository::findBySubject);
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
-        if (tokenInspection.getMessage() != null) {
+
+        logger.info("Finished token introspection.");
+        return responseMap;
+    }
+
+    /**
+     * Inspects several tokens for the application of the security context, in one call.
+     * <p>
+     * The users are loaded once per distinct subject. The first item of each subject is inspected on the calling
+     * thread, which loads and caches the access rules of the user for the application. The other items are then
+     * inspected in parallel.
+     *
+     * @param items          the token and request of each item, in the format of {@link #inspectToken(Map, boolean)}
+     * @param traceRequested true if the calling application asked for access rule evaluation traces
+     * @return the response of each item, in the order of the items
+     * @throws IllegalArgumentException if the batch has more than <code>application.token.inspection.batch.max.size</code> items
+     */
+    public List<Map<String, Object>> inspectTokens(List<Map<String, Object>> items, boolean traceRequested) {
+        if (items.size() > maxInspectionBatchSize) {
+            throw new IllegalArgumentException("A batch can have at most " + maxInspectionBatchSize + " items, got " + items.size());
+        }
+        logger.info("TokenInspect batch of {} items starting...", items.size());
+        Application application;
+        try {
+            application = getApplicationFromSecurityContext();
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+
+        // the distinct subjects are loaded on the calling thread, the workers only read them
+        Map<String, Optional<User>> usersBySubject = new HashMap<>();
+        Map<String, Integer> firstItemBySubject = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            String subject = getUserSubject(items.get(i));
+            if (subject != null && !usersBySubject.containsKey(subject)) {
+                User user = this.userRepository.findBySubject(subject);
+                if (user != null) {
+                    // loads the roles and privileges before the user is shared with the workers
+                    user.getTotalPrivilege();
+                }
+                usersBySubject.put(subject, Optional.ofNullable(user));
+                firstItemBySubject.put(subject, i);
+            }
+        }
+        Map<String, Optional<User>> users = Map.copyOf(usersBySubject);
+
+        List<Map<String, Object>> responses = new ArrayList<>(Collections.nCopies(items.size(), null));
+        for (int i : firstItemBySubject.values()) {
+            responses.set(i, inspectBatchItem(items.get(i), traceRequested, application, users));
+        }
+        try {
+            inspectionPool.submit(() -> IntStream.range(0, items.size()).parallel()
+                .filter(i -> responses.get(i) == null)
+                .forEach(i -> responses.set(i, inspectBatchItem(items.get(i), traceRequested, application, users)))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while inspecting tokens", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        logger.info("Finished token introspection of {} items.", items.size());
+        return responses;
+    }
+
+    private Map<String, Object> inspectBatchItem(Map<String, Object> item, boolean traceRequested, Application application,
+                                                 Map<String, Optional<User>> users) {
+        try {
+            // the item is copied, the inspection removes the token from the map it is given
+            return inspectToken(new HashMap<>(item), traceRequested, application,
+                subject -> users.getOrDefault(subject, Optional.empty()).orElse(null));
+        } catch (IllegalAccessException | RuntimeException e) {
+            logger.error("inspectTokens() failed to inspect an item: {}", e.getMessage());
+            TokenInspection tokenInspection = new TokenInspection();
+            tokenInspection.setMessage("Failed to inspect the token");
+            tokenInspection.addField("active", false);
             tokenInspection.addField("message", tokenInspection.getMessage());
+            return tokenInspection.getResponseMap();
         }
+    }
 
-        logger.info("Finished token introspection.");
+    /**
+     * @return the subject of the user of the token of the item, null if the token is missing or invalid
+     */
+    private String getUserSubject(Map<String, Object> item) {
+        if (!(item.get("token") instanceof String token) || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String subject = this.jwtUtil.parseToken(token).getPayload().getSubject();
+            if (subject != null && subject.startsWith(AuthNaming.LONG_TERM_TOKEN_PREFIX)) {
+                subject = subject.substring(AuthNaming.LONG_TERM_TOKEN_PREFIX.length() + 1);
+            }
+            return subject;
+        } catch (NotAuthorizedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param application the application asking for the inspection, resolved from the security context if null
+     * @param userLoader  loads the user of a subject, null if there is no such user
+     */
+    private Map<String, Object> inspectToken(Map<String, Object> inputMap, boolean traceRequested, Application application,
+                                             Function<String, User> userLoader) throws IllegalAccessException {
+        TokenInspection tokenInspection = validateToken(inputMap, traceRequested, application, userLoader);
+        if (tokenInspection.getMessage() != null) {
+            tokenInspection.addField("message", tokenInspection.getMessage());
+        }
         return tokenInspection.getResponseMap();
     }
 
-    private TokenInspection validateToken(Map<String, Object> inputMap) throws IllegalAccessException {
+    private Application getApplicationFromSecurityContext() throws IllegalAccessException {
+        Application application;
+        try {
+            CustomApplicationDetails customApplicationDetails =
+                (CustomApplicationDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+            application = customApplicationDetails.getApplication();
+        } catch (ClassCastException ex) {
+            SecurityContext securityContext = SecurityContextHolder.getContext();
+            String principalName = securityContext.getAuthentication().getName();
+            logger.error(
+                "{} - {} - is trying to use token introspection endpoint, but it is not an application", principalName, principalName
+            );
+            throw new IllegalAccessException("The application token does not associate with an application but " + principalName);
+        }
+
+        // Verify application exists after JWT authentication
+        if (application == null) {
+            logger.error("_inspectToken() There is no application in securityContext, which shall not be.");
+            throw new NullPointerException("Inner application error, please ask admin to check the log.");
+        }
+        return application;
+    }
+
+    private TokenInspection validateToken(Map<String, Object> inputMap, boolean traceRequested, Application application,
+                                          Function<String, User> userLoader) throws IllegalAccessException {
         logger.debug(
             "_inspectToken, the incoming token map is: {}",
             inputMap.entrySet().stream().map(entry -> entry.getKey() + " - " + entry.getValue()).collect(Collectors.joining(", "))
@@ -104,24 +289,8 @@ public class TokenService {
             return tokenInspection;
         }
 
-        Application application;
-        try {
-            CustomApplicationDetails customApplicationDetails =
-                (CustomApplicationDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
-            application = customApplicationDetails.getApplication();
-        } catch (ClassCastException ex) {
-            SecurityContext securityContext = SecurityContextHolder.getContext();
-            String principalName = securityContext.getAuthentication().getName();
-            logger.error(
-                "{} - {} - is trying to use token introspection endpoint, but it is not an application", principalName, principalName
-            );
-            throw new IllegalAccessException("The application token does not associate with an application but " + principalName);
-        }
-
-        // Verify application exists after JWT authentication
         if (application == null) {
-            logger.error("_inspectToken() There is no application in securityContext, which shall not be.");
-            throw new NullPointerException("Inner application error, please ask admin to check the log.");
+            application = getApplicationFromSecurityContext();
         }
 
         String subject = jws.getPayload().getSubject();
@@ -141,7 +310,7 @@ public class TokenService {
             isLongTermToken = true;
         }
 
-        user = this.userRepository.findBySubject(subject);
+        user = userLoader.apply(subject);
         logger.info("_inspectToken() does user with subject - {} - exists in database", subject);
         if (user == null) {
             logger.error("_inspectToken() could not find user with subject {}", subject);
@@ -174,11 +343,14 @@ public class TokenService {
             );
         } else if (!isLongTermTokenCompromised && user.getRoles() != null) {
             EvaluateAccessRuleResult evaluateAccessRuleResult =
-                authorizationService.isAuthorized(application, inputMap.get("request"), user, isLongTermToken);
+                authorizationService.isAuthorized(application, inputMap.get("request"), user, isLongTermToken, traceRequested);
             isAuthorizationPassed = evaluateAccessRuleResult.result();
+            if (traceRequested && evaluateAccessRuleResult.trace() != null) {
+                tokenInspection.addField("evaluationTrace", evaluateAccessRuleResult.trace());
+            }
             evaluateAccessRuleResult.query().ifPresent(query -> {
                 try {
-                    tokenInspection.addField("query", new ObjectMapper().writeValueAsString(query));
+                    tokenInspection.addField("query", objectMapper.writeValueAsString(query));
                 } catch (JsonProcessingException e) {
                     throw new RuntimeException(e);
                 }
@@ -231,14 +403,56 @@ public class TokenService {
 
     }
 
+    /**
+     * Refreshes the token of the header. The concurrent refreshes of the same token are coalesced: one of them
+     * creates the refreshed token and the others wait for it. A refreshed token is also returned to the refreshes of
+     * the same token during <code>application.token.refresh.grace.period.seconds</code>, so the requests sent at the
+     * same time by a client all get the same token.
+     */
     public RefreshToken refreshToken(String authorizationHeader) {
+        Optional<String> token = JWTUtil.getTokenFromAuthorizationHeader(authorizationHeader);
+        if (token.isEmpty()) {
+            return refreshToken(token);
+        }
+
+        String key = HexFormat.of().formatHex(JWTUtil.tokenDigest(token.get()));
+        TokenRefresh refresh = new TokenRefresh();
+        TokenRefresh current = tokenRefreshes.compute(key, (k, existing) -> existing != null && existing.isReusable() ? existing : refresh);
+        if (current != refresh) {
+            logger.debug("refreshToken() joining the refresh of the same token");
+            try {
+                return current.result.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+            }
+        }
+
+        try {
+            RefreshToken result = refreshToken(token);
+            if (result instanceof ValidRefreshToken && refreshGracePeriodMillis > 0) {
+                refresh.reusableUntil = System.currentTimeMillis() + refreshGracePeriodMillis;
+                if (tokenRefreshes.size() > MAX_TOKEN_REFRESHES) {
+                    tokenRefreshes.values().removeIf(tokenRefresh -> !tokenRefresh.isReusable());
+                }
+            } else {
+                tokenRefreshes.remove(key, refresh);
+            }
+            refresh.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            tokenRefreshes.remove(key, refresh);
+            refresh.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private RefreshToken refreshToken(Optional<String> originalToken) {
         logger.debug("RefreshToken starting...");
 
         String subject;
         Jws<Claims> jws;
         try {
-            String token = JWTUtil.getTokenFromAuthorizationHeader(authorizationHeader)
-                .orElseThrow(() -> new NotAuthorizedException("Token not found"));
+            String token = originalToken.orElseThrow(() -> new NotAuthorizedException("Token not found"));
             jws = this.jwtUtil.parseToken(token);
         } catch (NotAuthorizedException ex) {
             return new InvalidRefreshToken("Cannot parse original token.");
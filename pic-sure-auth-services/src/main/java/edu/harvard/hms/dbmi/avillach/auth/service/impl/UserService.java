@@ -68,6 +68,8 @@ public class UserService {
 
     private final List<String> tokenInclusionRoles;
     private final LoggingClient loggingClient;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
+    private final AuthorizationDependencyIndex authorizationDependencyIndex;
 
     @Autowired
     public UserService(BasicMailService basicMailService, TOSService tosService,
@@ -83,7 +85,9 @@ public class UserService {
                        JWTUtil jwtUtil,
                        @Value("${open.idp.provider.is.enabled}") boolean openIdpProviderIsEnabled,
                        @Value("${application.token.inclusionRoles}") String tokenInclusionRoles,
-                       LoggingClient loggingClient) {
+                       LoggingClient loggingClient,
+                       AuthorizationSnapshotService authorizationSnapshotService,
+                       AuthorizationDependencyIndex authorizationDependencyIndex) {
         this.basicMailService = basicMailService;
         this.tosService = tosService;
         this.userRepository = userRepository;
@@ -103,6 +107,8 @@ public class UserService {
         this.openAccessIsEnabled = openIdpProviderIsEnabled;
         this.tokenInclusionRoles = Arrays.asList(tokenInclusionRoles.split(","));
         this.loggingClient = loggingClient;
+        this.authorizationSnapshotService = authorizationSnapshotService;
+        this.authorizationDependencyIndex = authorizationDependencyIndex;
     }
 
     public HashMap<String, String> getUserProfileResponse(UserClaims userClaims) {
@@ -270,6 +276,7 @@ public class UserService {
         }
 
         users = addUser(users);
+        this.authorizationSnapshotService.evict(users.stream().map(User::getSubject).toList());
         return users;
     }
 
@@ -316,16 +323,21 @@ public class UserService {
         User currentUser = customUserDetails.getUser();
         checkAssociation(users);
         boolean allowUpdate = true;
+        // the snapshots of both the previous and the new subject of the users are evicted
+        List<String> updatedSubjects = new ArrayList<>();
         for (User user : users) {
             Optional<User> originalUser = this.userRepository.findById(user.getUuid());
             if (!allowUpdateSuperAdminRole(currentUser, user, originalUser.orElse(null))) {
                 allowUpdate = false;
                 break;
             }
+            originalUser.ifPresent(original -> updatedSubjects.add(original.getSubject()));
+            updatedSubjects.add(user.getSubject());
         }
 
         if (allowUpdate) {
             users = this.userRepository.saveAll(users);
+            this.authorizationSnapshotService.evict(updatedSubjects);
             return users;
         } else {
             logger.error(
@@ -468,9 +480,10 @@ public class UserService {
         return Map.of("queryTemplate", mergedTemplate.orElse(null));
     }
 
-    @Cacheable(value = "mergedTemplateCache", keyGenerator = "customKeyGenerator")
+    @Cacheable(value = "mergedTemplateCache", keyGenerator = "customKeyGenerator", sync = true)
     public String mergeTemplate(User user, Application application) {
         String resultJSON;
+        this.authorizationDependencyIndex.recordUser(user);
         Set<Privilege> privileges = user.getPrivilegesByApplication(application);
         Map mergedTemplateMap = getMergedQueryTemplateMap(privileges);
 
@@ -834,6 +847,8 @@ public class UserService {
         userConsents.setConsents(consents);
         logger.info("Saving {} user consents", userConsents.getConsents().size());
         userConsentsRepository.save(userConsents);
+        // the cached authorization decisions of the user depend on its consents
+        this.authorizationSnapshotService.evict(user.getSubject());
 
         return user;
     }
@@ -0,0 +1,192 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pass count and evaluation cost of the top-level access rules, kept per target service of the request.
+ * <p>
+ * Top-level rules are an OR relationship and the evaluation stops at the first rule that passes. The rules of a
+ * request are ordered by the ratio of their observed pass rate to their average evaluation time, so the cheap
+ * rules most likely to pass for a target service, e.g. <code>AR_ONLY_INFO</code> for <code>/info</code> requests,
+ * are evaluated first. Rules without statistics keep their relative order after the known good ones.
+ * <p>
+ * The ordering is off by default, see <code>access.rule.adaptive.ordering.enabled</code>. User consent rules are
+ * never moved: the authorization filters of a consent rule are only added to the query when the rules before it
+ * fail, so only the rules between two consent rules are reordered. The ordering then only changes which passing
+ * rule is reported, neither the authorization result nor the query returned with it.
+ */
+@Component
+public class AccessRuleStatistics {
+
+    static final String DEFAULT_TARGET_SERVICE = "default";
+    static final String OTHER_TARGET_SERVICES = "other";
+
+    /**
+     * The target service comes from the request, the number of tracked services and rules is bounded
+     */
+    private static final int MAX_TARGET_SERVICES = 256;
+    private static final int MAX_RULES_PER_TARGET_SERVICE = 10_000;
+
+    /**
+     * Evaluation time assumed for a rule that was never evaluated, and added once to every rule average
+     */
+    private static final long PRIOR_EVALUATION_NANOS = 10_000;
+
+    /**
+     * Statistics of one rule for one target service
+     */
+    public record RuleStatistics(String rule, long evaluations, long passes, double passRate, double averageNanos) {
+    }
+
+    private final boolean enabled;
+    private final Map<String, TargetServiceStatistics> targetServices = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AccessRuleStatistics(@Value("${access.rule.adaptive.ordering.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param targetService the target service of the request, null if the request has none
+     */
+    public TargetServiceStatistics forTargetService(String targetService) {
+        String key = targetService == null || targetService.isBlank() ? DEFAULT_TARGET_SERVICE : targetService;
+        TargetServiceStatistics statistics = targetServices.get(key);
+        if (statistics != null) {
+            return statistics;
+        }
+        if (targetServices.size() >= MAX_TARGET_SERVICES) {
+            key = OTHER_TARGET_SERVICES;
+        }
+        return targetServices.computeIfAbsent(key, k -> new TargetServiceStatistics(enabled));
+    }
+
+    /**
+     * @return the statistics of every rule by target service, the rules are in evaluation order
+     */
+    public Map<String, List<RuleStatistics>> getStatistics() {
+        Map<String, List<RuleStatistics>> statistics = new TreeMap<>();
+        targetServices.forEach((targetService, serviceStatistics) -> statistics.put(targetService, serviceStatistics.getStatistics()));
+        return statistics;
+    }
+
+    public void clear() {
+        targetServices.clear();
+    }
+
+    /**
+     * Statistics of the rules evaluated for one target service
+     */
+    public static final class TargetServiceStatistics {
+
+        private final boolean enabled;
+        private final Map<String, Counters> rules = new ConcurrentHashMap<>();
+
+        private TargetServiceStatistics(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return the rules in the order they should be evaluated, the order of the set if ordering is disabled. The
+         * user consent rules are at the same position as in the set.
+         */
+        public List<AccessRule> order(Collection<AccessRule> accessRules) {
+            List<AccessRule> orderedRules = new ArrayList<>(accessRules);
+            if (!enabled || rules.isEmpty()) {
+                return orderedRules;
+            }
+
+            Map<AccessRule, Double> scores = new IdentityHashMap<>(orderedRules.size());
+            for (AccessRule accessRule : orderedRules) {
+                Counters counters = rules.get(ruleName(accessRule));
+                scores.put(accessRule, counters == null ? Counters.PRIOR_SCORE : counters.score());
+            }
+            // the sort is stable, rules with the same score keep the order of the set
+            Comparator<AccessRule> byScore = Comparator.comparing(scores::get, Comparator.reverseOrder());
+            int from = 0;
+            for (int i = 0; i <= orderedRules.size(); i++) {
+                if (i == orderedRules.size() || isUserConsentRule(orderedRules.get(i))) {
+                    // the user consent rules keep their position
+                    orderedRules.subList(from, i).sort(byScore);
+                    from = i + 1;
+                }
+            }
+            return orderedRules;
+        }
+
+        private static boolean isUserConsentRule(AccessRule accessRule) {
+            return accessRule.getType() != null && accessRule.getType() == AccessRule.TypeNaming.USER_CONSENT_ACCESS;
+        }
+
+        /**
+         * @param evaluationNanos the time spent evaluating the rule
+         */
+        public void record(AccessRule accessRule, boolean passed, long evaluationNanos) {
+            if (!enabled) {
+                return;
+            }
+            String ruleName = ruleName(accessRule);
+            Counters counters = rules.get(ruleName);
+            if (counters == null) {
+                if (rules.size() >= MAX_RULES_PER_TARGET_SERVICE) {
+                    return;
+                }
+                counters = rules.computeIfAbsent(ruleName, k -> new Counters());
+            }
+            counters.evaluations.increment();
+            counters.nanos.add(evaluationNanos);
+            if (passed) {
+                counters.passes.increment();
+            }
+        }
+
+        private List<RuleStatistics> getStatistics() {
+            List<Map.Entry<String, Counters>> entries = new ArrayList<>(rules.entrySet());
+            entries.sort(Comparator.comparing((Map.Entry<String, Counters> entry) -> entry.getValue().score(), Comparator.reverseOrder()));
+
+            List<RuleStatistics> statistics = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Counters> entry : entries) {
+                long evaluations = entry.getValue().evaluations.sum();
+                long passes = entry.getValue().passes.sum();
+                long nanos = entry.getValue().nanos.sum();
+                statistics.add(new RuleStatistics(entry.getKey(), evaluations, passes,
+                        evaluations == 0 ? 0 : (double) passes / evaluations,
+                        evaluations == 0 ? 0 : (double) nanos / evaluations));
+            }
+            return statistics;
+        }
+
+        private static String ruleName(AccessRule accessRule) {
+            return accessRule.getMergedName().isEmpty() ? accessRule.getName() : accessRule.getMergedName();
+        }
+    }
+
+    private static final class Counters {
+
+        /**
+         * Score of a rule that was never evaluated: a pass rate of one half at the prior evaluation time
+         */
+        static final double PRIOR_SCORE = 0.5 / PRIOR_EVALUATION_NANOS;
+
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder passes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        /**
+         * Expected passes per nanosecond, the pass rate and the average time are smoothed by the priors
+         */
+        double score() {
+            long evaluationCount = evaluations.sum();
+            double passRate = (passes.sum() + 1.0) / (evaluationCount + 2.0);
+            double averageNanos = (double) (nanos.sum() + PRIOR_EVALUATION_NANOS) / (evaluationCount + 1);
+            return passRate / averageNanos;
+        }
+    }
+}
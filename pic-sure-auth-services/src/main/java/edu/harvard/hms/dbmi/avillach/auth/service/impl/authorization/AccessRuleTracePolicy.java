@@ -0,0 +1,66 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which authorization requests record an access rule evaluation trace.
+ * <p>
+ * Tracing is off by default. A request is traced when it is picked by the sampling rate, when the user subject
+ * is listed in <code>access.rule.trace.subjects</code>, or when a trusted application listed in
+ * <code>access.rule.trace.trusted.applications</code> sends the {@link #TRACE_HEADER} header.
+ */
+@Component
+public class AccessRuleTracePolicy {
+
+    public static final String TRACE_HEADER = "X-PSAMA-Access-Rule-Trace";
+
+    private final double sampleRate;
+    private final Set<String> subjects;
+    private final Set<String> trustedApplications;
+    private final boolean enabled;
+
+    @Autowired
+    public AccessRuleTracePolicy(@Value("${access.rule.trace.sample.rate:0}") double sampleRate,
+                                 @Value("${access.rule.trace.subjects:}") String subjects,
+                                 @Value("${access.rule.trace.trusted.applications:}") String trustedApplications) {
+        this.sampleRate = sampleRate;
+        this.subjects = split(subjects);
+        this.trustedApplications = split(trustedApplications);
+        this.enabled = sampleRate > 0 || !this.subjects.isEmpty() || !this.trustedApplications.isEmpty();
+    }
+
+    /**
+     * @param application    the application asking for the authorization decision
+     * @param user           the user the decision is made for, null for open access
+     * @param traceRequested true if the application sent the {@link #TRACE_HEADER} header
+     * @return true if the evaluation of this request should be traced
+     */
+    public boolean shouldTrace(Application application, User user, boolean traceRequested) {
+        if (!enabled) {
+            return false;
+        }
+        if (traceRequested && application != null && trustedApplications.contains(application.getName())) {
+            return true;
+        }
+        if (user != null && user.getSubject() != null && subjects.contains(user.getSubject())) {
+            return true;
+        }
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    private static Set<String> split(String values) {
+        if (values == null || values.isBlank()) {
+            return Set.of();
+        }
+        return Arrays.stream(values.split(",")).map(String::trim).filter(value -> !value.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    }
+}
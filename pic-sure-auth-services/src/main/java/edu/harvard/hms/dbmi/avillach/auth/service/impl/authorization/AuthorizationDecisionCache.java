@@ -0,0 +1,157 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.EvaluateAccessRuleResult;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationSnapshotService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.ParsedRequestBody;
+import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the authorization decisions of {@link AuthorizationService#isAuthorized}, off by default.
+ * <p>
+ * A decision is keyed by the subject of the user, the application, the version of the access rules and a hash of the
+ * canonical JSON of the request body, so the same request sent again by a UI polling for results is not evaluated
+ * again. The cached {@link EvaluateAccessRuleResult} includes the query rewritten for the consents of the user.
+ * <p>
+ * A decision is only used with the {@link AuthorizationSnapshot} of the user it was made with. The snapshot of a user
+ * is evicted by any change to the user, its roles, privileges or consents, so these changes invalidate the decisions
+ * of the user. Changes to the access rules change the version of the rules. Decisions also expire
+ * <code>authorization.decision.cache.ttl.seconds</code> after they were made.
+ */
+@Component
+public class AuthorizationDecisionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationDecisionCache.class);
+
+    /**
+     * @param ruleSetVersion version of the access rules, see {@link edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService#getRuleSetVersion()}
+     * @param requestHash    hex SHA-256 of the canonical JSON of the request body, see {@link ParsedRequestBody#getCanonicalJson()}
+     */
+    private record DecisionKey(String subject, UUID applicationId, long ruleSetVersion, String requestHash) {
+    }
+
+    private record Decision(AuthorizationSnapshot snapshot, EvaluateAccessRuleResult result, long expiresAt) {
+    }
+
+    /**
+     * A lookup of a decision. It holds the snapshot of the user at the time of the lookup, a decision made after the
+     * lookup is stored with this snapshot.
+     */
+    public static final class Lookup {
+        private final DecisionKey key;
+        private final AuthorizationSnapshot snapshot;
+        private final EvaluateAccessRuleResult result;
+
+        private Lookup(DecisionKey key, AuthorizationSnapshot snapshot, EvaluateAccessRuleResult result) {
+            this.key = key;
+            this.snapshot = snapshot;
+            this.result = result;
+        }
+
+        /**
+         * @return the cached decision, null on a miss
+         */
+        public EvaluateAccessRuleResult result() {
+            return result;
+        }
+    }
+
+    /**
+     * @param hitRate hits divided by lookups, 0 if there was no lookup
+     */
+    public record Statistics(boolean enabled, int size, long hits, long misses, double hitRate) {
+    }
+
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final AuthorizationSnapshotService authorizationSnapshotService;
+    private final ConcurrentHashMap<DecisionKey, Decision> decisions = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public AuthorizationDecisionCache(@Value("${authorization.decision.cache.enabled:false}") boolean enabled,
+                                      @Value("${authorization.decision.cache.ttl.seconds:30}") long ttlSeconds,
+                                      @Value("${authorization.decision.cache.max.size:10000}") int maxSize,
+                                      AuthorizationSnapshotService authorizationSnapshotService) {
+        this.enabled = enabled && ttlSeconds > 0 && maxSize > 0;
+        this.ttlMillis = Math.max(ttlSeconds, 0) * 1000;
+        this.maxSize = maxSize;
+        this.authorizationSnapshotService = authorizationSnapshotService;
+        logger.info("Authorization decision cache enabled: {}, ttl: {}s, max size: {}", this.enabled, ttlSeconds, maxSize);
+    }
+
+    /**
+     * Looks up the decision for a request of a user to an application.
+     *
+     * @param ruleSetVersion the version of the access rules the decision would be made with
+     * @return the lookup, null if the cache is disabled, the snapshot of the user is not cached or the request
+     * cannot be cached
+     */
+    public Lookup lookup(User user, Application application, ParsedRequestBody request, long ruleSetVersion) {
+        if (!enabled || application.getUuid() == null) {
+            return null;
+        }
+        String requestHash;
+        try {
+            requestHash = HexFormat.of().formatHex(JWTUtil.tokenDigest(request.getCanonicalJson()));
+        } catch (JsonProcessingException e) {
+            logger.debug("lookup() request body cannot be serialized, the decision is not cached: {}", e.getMessage());
+            return null;
+        }
+
+        // the snapshot is cached when the user is loaded, a snapshot built from this user could be older than an
+        // eviction and is not cached
+        AuthorizationSnapshot snapshot = authorizationSnapshotService.get(user.getSubject());
+        if (snapshot == null) {
+            return null;
+        }
+
+        DecisionKey key = new DecisionKey(user.getSubject(), application.getUuid(), ruleSetVersion, requestHash);
+        Decision decision = decisions.get(key);
+        if (decision != null && (decision.snapshot() != snapshot || decision.expiresAt() <= System.currentTimeMillis())) {
+            decisions.remove(key, decision);
+            decision = null;
+        }
+        if (decision == null) {
+            misses.incrementAndGet();
+            return new Lookup(key, snapshot, null);
+        }
+        hits.incrementAndGet();
+        return new Lookup(key, snapshot, decision.result());
+    }
+
+    /**
+     * Stores the decision made after a lookup that missed.
+     */
+    public void put(Lookup lookup, EvaluateAccessRuleResult result) {
+        if (lookup == null || lookup.result() != null) {
+            return;
+        }
+        if (decisions.size() >= maxSize) {
+            decisions.clear();
+        }
+        decisions.put(lookup.key, new Decision(lookup.snapshot, result, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public Statistics getStatistics() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long lookups = hitCount + missCount;
+        return new Statistics(enabled, decisions.size(), hitCount, missCount, lookups == 0 ? 0 : (double) hitCount / lookups);
+    }
+}
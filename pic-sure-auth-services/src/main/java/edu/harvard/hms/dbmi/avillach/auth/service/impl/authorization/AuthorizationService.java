@@ -8,6 +8,8 @@ import edu.harvard.hms.dbmi.avillach.auth.model.EvaluateAccessRuleResult;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserConsentsRepository;
 import edu.harvard.hms.dbmi.avillach.auth.rest.TokenController;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.EvaluationContext;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.ParsedRequestBody;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.RoleService;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.SessionService;
 import edu.harvard.hms.dbmi.avillach.hpds.data.query.v3.Query;
@@ -45,6 +47,7 @@ import static edu.harvard.hms.dbmi.avillach.auth.service.impl.RoleService.*;
 public class AuthorizationService {
 
     private final Logger logger = LoggerFactory.getLogger(AuthorizationService.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
 
     protected AccessRuleService accessRuleService;
     protected SessionService sessionService;
@@ -52,6 +55,14 @@ public class AuthorizationService {
 
     private final ConsentBasedAccessRuleEvaluator consentBasedAccessRuleEvaluator;
 
+    private final AccessRuleTracePolicy accessRuleTracePolicy;
+
+    private final ParallelAccessRuleEvaluator parallelAccessRuleEvaluator;
+
+    private final AccessRuleStatistics accessRuleStatistics;
+
+    private final AuthorizationDecisionCache authorizationDecisionCache;
+
     /**
      * Applications that have strict access control. If the application is strict a user must have both privileges and access rules.
      * If the application is not strict, the user only needs privileges. Access rules are optional.
@@ -67,11 +78,19 @@ public class AuthorizationService {
                                 RoleService roleService,
                                 ConsentBasedAccessRuleEvaluator consentBasedAccessRuleEvaluator,
                                 @Value("${strict.authorization.applications.connections}") String strictConnections,
-                                UserConsentsRepository userConsentsRepository) {
+                                UserConsentsRepository userConsentsRepository,
+                                AccessRuleTracePolicy accessRuleTracePolicy,
+                                ParallelAccessRuleEvaluator parallelAccessRuleEvaluator,
+                                AccessRuleStatistics accessRuleStatistics,
+                                AuthorizationDecisionCache authorizationDecisionCache) {
         this.accessRuleService = accessRuleService;
         this.sessionService = sessionService;
         this.roleService = roleService;
         this.consentBasedAccessRuleEvaluator = consentBasedAccessRuleEvaluator;
+        this.accessRuleTracePolicy = accessRuleTracePolicy;
+        this.parallelAccessRuleEvaluator = parallelAccessRuleEvaluator;
+        this.accessRuleStatistics = accessRuleStatistics;
+        this.authorizationDecisionCache = authorizationDecisionCache;
         if (strictConnections != null && !strictConnections.isEmpty()) {
             this.strictConnections.addAll(Arrays.asList(strictConnections.split(",")));
         }
@@ -106,9 +125,17 @@ public class AuthorizationService {
      * @see AccessRule
      */
     public EvaluateAccessRuleResult isAuthorized(Application application, Object requestBody, User user, boolean isLongTermToken) {
+        return isAuthorized(application, requestBody, user, isLongTermToken, false);
+    }
+
+    /**
+     * @param traceRequested true if the application asked for an evaluation trace,
+     *                       see {@link AccessRuleTracePolicy#TRACE_HEADER}
+     * @see #isAuthorized(Application, Object, User, boolean)
+     */
+    public EvaluateAccessRuleResult isAuthorized(Application application, Object requestBody, User user, boolean isLongTermToken,
+                                                 boolean traceRequested) {
         String applicationName = application.getName();
-        String resourceId = "null";
-        String targetService = "null";
 
         if (user == null) {
             logger.error("isAuthorized() User cannot be null");
@@ -131,22 +158,15 @@ public class AuthorizationService {
             return new EvaluateAccessRuleResult(true, Set.of(), null, Optional.empty());
         }
 
-        try {
-            Map requestBodyMap = (Map) requestBody;
-            Map queryMap = (Map) requestBodyMap.get("query");
-            resourceId = (String) queryMap.get("resourceUUID");
-            targetService = (String) queryMap.get("Target Service");
-        } catch (RuntimeException e) {
-            logger.debug("Error parsing resource and target service from request body.");
-        }
-
+        // the request body is parsed at most once for the cache and the rules
+        ParsedRequestBody request = new ParsedRequestBody(requestBody);
         String formattedQuery;
         try {
             formattedQuery = (String) ((Map) requestBody).get("formattedQuery");
 
             if (formattedQuery == null) {
                 //fallback in case no formatted query info present
-                formattedQuery = new ObjectMapper().writeValueAsString(requestBody);
+                formattedQuery = objectMapper.writeValueAsString(requestBody);
             }
 
         } catch (ClassCastException | JsonProcessingException e1) {
@@ -155,6 +175,24 @@ public class AuthorizationService {
             return new EvaluateAccessRuleResult(false, Set.of(), null, Optional.empty());
         }
 
+        // traced requests are always evaluated, the trace is not cached
+        boolean traced = accessRuleTracePolicy.shouldTrace(application, user, traceRequested);
+        AuthorizationDecisionCache.Lookup decisionLookup = traced ? null :
+                authorizationDecisionCache.lookup(user, application, request, accessRuleService.getRuleSetVersion());
+        if (decisionLookup != null && decisionLookup.result() != null) {
+            EvaluateAccessRuleResult cachedResult = decisionLookup.result();
+            logger.info("ACCESS_LOG ___ {},{},{} ___ has been {} access to execute query ___ {} ___ in application ___ {} ___ CACHED DECISION", user.getUuid().toString(), user.getEmail(), user.getName(), (cachedResult.result() ? "granted" : "denied"), formattedQuery, applicationName);
+            return cachedResult;
+        }
+
+        EvaluateAccessRuleResult evaluationResult = evaluateAccessRules(application, request, user, formattedQuery, traced);
+        authorizationDecisionCache.put(decisionLookup, evaluationResult);
+        return evaluationResult;
+    }
+
+    private EvaluateAccessRuleResult evaluateAccessRules(Application application, ParsedRequestBody request, User user,
+                                                         String formattedQuery, boolean traced) {
+        String applicationName = application.getName();
         Set<AccessRule> accessRules;
         String label = "";
         if (user.getConnection() != null) {
@@ -186,7 +224,7 @@ public class AuthorizationService {
 
         logger.info("ACCESS_LOG ___ {},{},{} ___ has the following access rules: {}", user.getUuid().toString(), user.getEmail(), user.getName(), accessRules.stream().map(AccessRule::toString).collect(Collectors.joining(", ")));
 
-        EvaluateAccessRuleResult evaluationResult = passesAccessRuleEvaluation(requestBody, accessRules, user);
+        EvaluateAccessRuleResult evaluationResult = passesAccessRuleEvaluation(request, accessRules, user, traced);
         boolean result = evaluationResult.result();
         String passRuleName = evaluationResult.passRuleName();
         Set<AccessRule> failedRules = evaluationResult.failedRules();
@@ -199,67 +237,98 @@ public class AuthorizationService {
         return evaluationResult;
     }
 
-    private EvaluateAccessRuleResult passesAccessRuleEvaluation(Object requestBody, Set<AccessRule> accessRules, User user) {
+    /**
+     * @param traced true to record the evaluation tree of the rules, a compact trace is returned if access is denied
+     */
+    private EvaluateAccessRuleResult passesAccessRuleEvaluation(ParsedRequestBody request, Set<AccessRule> accessRules, User user, boolean traced) {
         // Current logic here is: among all accessRules, they are OR relationship
         Set<AccessRule> failedRules = new HashSet<>();
         AccessRule passByRule = null;
         boolean result = false;
         Query returnQuery = null;
+        List<String> failureTraces = traced ? new ArrayList<>() : null;
+
+        // every distinct path and shared rule is only evaluated once for the request body
+        EvaluationContext context = new EvaluationContext(request, traced);
+
+        String requestTargetService = request.getTargetService();
+        // managed consent rules that cannot pass for the consents in the request are not evaluated, /v3 requests
+        // only evaluate the user consent rules
+        Set<AccessRule> excludedRules = requestTargetService != null && requestTargetService.startsWith("/v3")
+                ? Collections.emptySet()
+                : this.accessRuleService.findRulesExcludedByConsents(context, accessRules);
+
+        // when adaptive ordering is enabled, the rules most likely to pass cheaply for the target service are evaluated first
+        AccessRuleStatistics.TargetServiceStatistics statistics = accessRuleStatistics.forTargetService(requestTargetService);
+        List<AccessRule> orderedRules = statistics.order(accessRules);
+
+        if (evaluatesInParallel(requestTargetService, orderedRules)) {
+            ParallelAccessRuleEvaluator.Outcome outcome = parallelAccessRuleEvaluator.evaluate(accessRuleService, context,
+                    orderedRules, excludedRules, statistics);
+            passByRule = outcome.passByRule();
+            result = passByRule != null;
+            failedRules.addAll(outcome.failedRules());
+            if (traced) {
+                failureTraces.addAll(outcome.failureTraces());
+            }
+        } else {
+            // the consents of the user are loaded once, for the first user consent rule
+            UserConsents userConsents = null;
+            for (AccessRule accessRule : orderedRules) {
+                try {
+                    if (AccessRule.TypeNaming.USER_CONSENT_ACCESS == accessRule.getType()) {
+                        if (userConsents == null) {
+                            userConsents = userConsentsRepository.findByUserId(user.getUuid());
+                        }
 
-        for (AccessRule accessRule : accessRules) {
-            try {
-                if (AccessRule.TypeNaming.USER_CONSENT_ACCESS == accessRule.getType()) {
-                    UserConsents userConsents = userConsentsRepository.findByUserId(user.getUuid());
-
-                    // This is an HPDS query inside a PIC-SURE query
-                    Map queryMap  = (Map) ((Map) requestBody).get("query");
-                    Object queryObject = queryMap.get("query");
-                    Query query;
-
-                    if (queryObject instanceof String) {
-                        query = new ObjectMapper().readValue((String) queryObject, Query.class);
-                    } else {
-                        query = new ObjectMapper().convertValue(queryObject, Query.class);
-                    }
+                        // This is an HPDS query inside a PIC-SURE query, parsed once for all the consent rules
+                        Query query = request.getQuery();
 
-                    if (consentBasedAccessRuleEvaluator.evaluateAccessRule(query, accessRule, userConsents)) {
-                        result = true;
-                        passByRule = accessRule;
+                        long start = System.nanoTime();
+                        boolean passed = consentBasedAccessRuleEvaluator.evaluateAccessRule(query, accessRule, userConsents);
+                        statistics.record(accessRule, passed, System.nanoTime() - start);
+                        if (passed) {
+                            result = true;
+                            passByRule = accessRule;
 
-                        returnQuery = consentBasedAccessRuleEvaluator.setAuthorizationFiltersForQuery(userConsents, query);
-                        break;
-                    } else {
-                        failedRules.add(accessRule);
-                    }
-                }
-                else {
-                    String targetService = (String) ((Map) requestBody).get("Target Service");
-                    logger.debug("Target service = " + targetService);
-                    if (targetService != null && targetService.startsWith("/v3")) {
-                        logger.debug("Skipping access rule {}", accessRule.getName());
+                            returnQuery = consentBasedAccessRuleEvaluator.setAuthorizationFiltersForQuery(userConsents, query);
+                            break;
+                        } else {
+                            failedRules.add(accessRule);
+                        }
                     }
-                    else if (this.accessRuleService.evaluateAccessRule(requestBody, accessRule)) {
-                        result = true;
-                        passByRule = accessRule;
-                        break;
-                    } else {
-                        failedRules.add(accessRule);
-                        // Print the evaluation tree when a rule fails
-                        if (logger.isInfoEnabled()) {
-                            String ruleName = accessRule.getMergedName().isEmpty() ?
-                                    accessRule.getName() :
-                                    accessRule.getMergedName();
-                            logger.info("Rule evaluation tree for failed rule {}:\n{}",
-                                    ruleName,
-                                    this.accessRuleService.printEvaluationTree());
+                    else {
+                        logger.debug("Target service = " + requestTargetService);
+                        if (requestTargetService != null && requestTargetService.startsWith("/v3")) {
+                            logger.debug("Skipping access rule {}", accessRule.getName());
+                        }
+                        else if (excludedRules.contains(accessRule)) {
+                            logger.debug("Access rule {} does not allow the consents of the request", accessRule.getName());
+                            failedRules.add(accessRule);
+                        }
+                        else if (evaluateAndRecord(context, accessRule, statistics)) {
+                            result = true;
+                            passByRule = accessRule;
+                            break;
+                        } else {
+                            failedRules.add(accessRule);
+                            // Print the evaluation tree when a rule of a traced request fails
+                            if (traced) {
+                                failureTraces.add(context.getCompactEvaluationTrace());
+                                if (logger.isDebugEnabled()) {
+                                    String ruleName = accessRule.getMergedName().isEmpty() ?
+                                            accessRule.getName() :
+                                            accessRule.getMergedName();
+                                    logger.debug("Rule evaluation tree for failed rule {}:\n{}",
+                                            ruleName,
+                                            context.printEvaluationTree());
+                                }
+                            }
                         }
                     }
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException(e);
                 }
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            } finally {
-                // Clear the evaluation tree to prevent memory leaks
-                this.accessRuleService.clearEvaluationTree();
             }
         }
 
@@ -271,10 +340,38 @@ public class AuthorizationService {
                 passRuleName = passByRule.getMergedName();
         }
 
-        return new EvaluateAccessRuleResult(result, failedRules, passRuleName, Optional.ofNullable(returnQuery));
+        String trace = null;
+        if (traced && !result) {
+            trace = String.join("\n", failureTraces);
+            logger.info("ACCESS_TRACE ___ {} ___ denied by rules:\n{}", user == null ? "AN OPEN ACCESS USER" : user.getSubject(), trace);
+        }
+
+        return new EvaluateAccessRuleResult(result, failedRules, passRuleName, Optional.ofNullable(returnQuery), trace);
     }
 
 
+    private boolean evaluateAndRecord(EvaluationContext context, AccessRule accessRule,
+                                      AccessRuleStatistics.TargetServiceStatistics statistics) {
+        long start = System.nanoTime();
+        boolean passed = this.accessRuleService.evaluateAccessRule(context, accessRule);
+        statistics.record(accessRule, passed, System.nanoTime() - start);
+        return passed;
+    }
+
+    /**
+     * Large rule sets are evaluated in parallel when every rule is evaluated against the request body alone.
+     * User consent rules and /v3 requests keep the sequential evaluation.
+     */
+    private boolean evaluatesInParallel(String targetService, List<AccessRule> accessRules) {
+        if (!parallelAccessRuleEvaluator.appliesTo(accessRules.size())) {
+            return false;
+        }
+        if (targetService != null && targetService.startsWith("/v3")) {
+            return false;
+        }
+        return accessRules.stream().noneMatch(accessRule -> AccessRule.TypeNaming.USER_CONSENT_ACCESS == accessRule.getType());
+    }
+
     public boolean openAccessRequestIsValid(Map<String, Object> inputMap) {
 
         if (inputMap == null || inputMap.isEmpty()) {
@@ -303,15 +400,18 @@ public class AuthorizationService {
             return false;
         }
 
-        Set<AccessRule> allOpenAccessRules = openAccessRole.getPrivileges().stream()
-                .map(Privilege::getAccessRules).collect(Collectors.toSet()).stream().flatMap(Collection::stream).collect(Collectors.toSet());
+        // the open access rules are shared snapshots, the entities of the role are not modified by the evaluation. Each
+        // rule is evaluated on its own, only the sub-rules of a rule are merged
+        Set<AccessRule> allOpenAccessRules = this.accessRuleService.getInternedUnmergedRuleSet(openAccessRole.getPrivileges());
 
         boolean result = false;
         if (allOpenAccessRules.isEmpty()) {
             result = true;
             logger.info("ACCESS_LOG ___ AN OPEN ACCESS USER ___ has been granted access to application ___ NO ACCESS RULES EVALUATED");
         } else {
-            EvaluateAccessRuleResult evaluationResult = passesAccessRuleEvaluation(requestBody, allOpenAccessRules, null);
+            EvaluateAccessRuleResult evaluationResult = passesAccessRuleEvaluation(new ParsedRequestBody(requestBody),
+                    allOpenAccessRules, null,
+                    accessRuleTracePolicy.shouldTrace(null, null, false));
             result = evaluationResult.result();
             String passRuleName = evaluationResult.passRuleName();
             Set<AccessRule> failedRules = evaluationResult.failedRules();
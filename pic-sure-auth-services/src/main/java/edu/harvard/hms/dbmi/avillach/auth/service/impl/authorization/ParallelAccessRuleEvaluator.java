@@ -0,0 +1,118 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.EvaluationContext;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates the top-level access rules of a request on a dedicated fork/join pool.
+ * <p>
+ * Top-level rules are an OR relationship, the request passes by the first rule that passes. Parallel evaluation is off
+ * by default and only used for rule sets of at least <code>access.rule.parallel.threshold</code> rules. The rules are
+ * split in chunks evaluated concurrently, and the rules after the first passing rule found so far are skipped.
+ * The result is the same as the sequential evaluation in the order of the rule list: the passing rule is the first
+ * one of the list that passes, and the failed rules are all the rules before it.
+ */
+@Component
+public class ParallelAccessRuleEvaluator {
+
+    /**
+     * Result of the evaluation of a rule list
+     *
+     * @param passByRule    the first rule of the list that passed, null if none passed
+     * @param failedRules   the rules before the passing rule, or all the rules if none passed
+     * @param failureTraces compact traces of the evaluated failed rules in list order, empty if the request is not traced
+     */
+    public record Outcome(AccessRule passByRule, List<AccessRule> failedRules, List<String> failureTraces) {
+    }
+
+    private final int threshold;
+    private final ForkJoinPool pool;
+
+    @Autowired
+    public ParallelAccessRuleEvaluator(@Value("${access.rule.parallel.threshold:0}") int threshold,
+                                       @Value("${access.rule.parallel.threads:0}") int threads) {
+        this.threshold = threshold;
+        this.pool = threshold > 0 ? new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors()) : null;
+    }
+
+    /**
+     * @return true if a rule set of this size should be evaluated in parallel
+     */
+    public boolean appliesTo(int ruleCount) {
+        return pool != null && ruleCount >= threshold;
+    }
+
+    /**
+     * @param context       the context of the request, each rule is evaluated in a fork of it
+     * @param accessRules   the rules in the order used to pick the passing rule
+     * @param excludedRules rules that fail without being evaluated
+     * @param statistics    records the result and evaluation time of every evaluated rule
+     */
+    public Outcome evaluate(AccessRuleService accessRuleService, EvaluationContext context, List<AccessRule> accessRules,
+                            Set<AccessRule> excludedRules, AccessRuleStatistics.TargetServiceStatistics statistics) {
+        int size = accessRules.size();
+        AtomicInteger firstPass = new AtomicInteger(size);
+        String[] traces = context.isTraced() ? new String[size] : null;
+
+        try {
+            pool.submit(() -> IntStream.range(0, size).parallel().forEach(i -> {
+                // a rule after a passing one cannot change the result anymore
+                AccessRule accessRule = accessRules.get(i);
+                if (i > firstPass.get() || excludedRules.contains(accessRule)) {
+                    return;
+                }
+
+                EvaluationContext ruleContext = context.fork();
+                long start = System.nanoTime();
+                boolean passed = accessRuleService.evaluateAccessRule(ruleContext, accessRule);
+                statistics.record(accessRule, passed, System.nanoTime() - start);
+                if (passed) {
+                    firstPass.accumulateAndGet(i, Math::min);
+                } else if (traces != null) {
+                    traces[i] = ruleContext.getCompactEvaluationTrace();
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating access rules", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        // every rule before the first passing one has been evaluated, and has failed
+        int passIndex = firstPass.get();
+        List<AccessRule> failedRules = new ArrayList<>(accessRules.subList(0, passIndex));
+        List<String> failureTraces = new ArrayList<>();
+        if (traces != null) {
+            for (int i = 0; i < passIndex; i++) {
+                if (traces[i] != null) {
+                    failureTraces.add(traces[i]);
+                }
+            }
+        }
+        return new Outcome(passIndex < size ? accessRules.get(passIndex) : null, failedRules, failureTraces);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -9,19 +9,26 @@ import io.jsonwebtoken.security.Keys;
 import org.apache.tomcat.util.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>This class is for generating a JWT token and contains common methods for operations on JWT tokens.</p>
  * <p>For more information on JWT tokens, see <url><a href="https://github.com/hms-dbmi/jwt-creator/blob/master/src/main/java/edu/harvard/hms/dbmi/avillach/jwt/App.java">...</a><url/></p>
+ * <p>The signing key and the parser are built once, on first use. Tokens that were verified are cached by digest until
+ * their expiration, so a token sent again, e.g. by a polling UI, is not verified and parsed again.</p>
  */
 @Component
 public class JWTUtil {
@@ -36,10 +43,28 @@ public class JWTUtil {
 
     private final static ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * Built on first use, so a misconfigured secret fails the requests using it and not the startup
+     */
+    private volatile SecretKey signingKey;
+    private volatile JwtParser parser;
+
+    private record VerifiedToken(Jws<Claims> jws, long expiresAt) {
+    }
+
+    /**
+     * Verified tokens by the hex digest of the token. Only tokens with an expiration are cached, and only until then.
+     */
+    private final Map<String, VerifiedToken> verifiedTokens = new ConcurrentHashMap<>();
+    private final int maxVerifiedTokens;
+
+    @Autowired
     public JWTUtil(@Value("${application.client.secret}") String clientSecret,
-                   @Value("${application.client.secret.base64}") boolean clientSecretIsBase64) {
+                   @Value("${application.client.secret.base64}") boolean clientSecretIsBase64,
+                   @Value("${application.token.verification.cache.max.size:10000}") int maxVerifiedTokens) {
         this.clientSecret = clientSecret;
         this.clientSecretIsBase64 = clientSecretIsBase64;
+        this.maxVerifiedTokens = maxVerifiedTokens;
     }
 
     private String getDecodedClientSecret() {
@@ -50,6 +75,24 @@ public class JWTUtil {
         return clientSecret;
     }
 
+    private SecretKey getSigningKey() {
+        SecretKey key = signingKey;
+        if (key == null) {
+            key = Keys.hmacShaKeyFor(getDecodedClientSecret().getBytes(StandardCharsets.UTF_8));
+            signingKey = key;
+        }
+        return key;
+    }
+
+    private JwtParser getParser() {
+        JwtParser jwtParser = parser;
+        if (jwtParser == null) {
+            jwtParser = Jwts.parser().verifyWith(getSigningKey()).build();
+            parser = jwtParser;
+        }
+        return jwtParser;
+    }
+
     /**
      * @param id      - id
      * @param issuer  - issuer
@@ -72,9 +115,6 @@ public class JWTUtil {
         long nowMillis = System.currentTimeMillis();
         Date now = new Date(nowMillis);
 
-        String clientSecret = getDecodedClientSecret();
-        SecretKey signingKey = Keys.hmacShaKeyFor(clientSecret.getBytes(StandardCharsets.UTF_8));
-
         //Builds the JWT and serializes it to a compact, URL-safe string
         JwtBuilder builder = Jwts.builder()
                 .claims(claims)
@@ -82,7 +122,7 @@ public class JWTUtil {
                 .issuedAt(now)
                 .subject(subject)
                 .issuer(issuer)
-                .signWith(signingKey);
+                .signWith(getSigningKey());
 
         //if it has been specified, let's add the expiration
         long expMillis = nowMillis + ttlMillis;
@@ -94,12 +134,20 @@ public class JWTUtil {
     }
 
     public Jws<Claims> parseToken(String token) {
-        String clientSecret = getDecodedClientSecret();
-        SecretKey signingKey = Keys.hmacShaKeyFor(clientSecret.getBytes(StandardCharsets.UTF_8));
+        String digest = token == null ? null : HexFormat.of().formatHex(tokenDigest(token));
+        if (digest != null) {
+            VerifiedToken verified = verifiedTokens.get(digest);
+            if (verified != null) {
+                if (verified.expiresAt() > System.currentTimeMillis()) {
+                    return verified.jws();
+                }
+                verifiedTokens.remove(digest);
+            }
+        }
 
         Jws<Claims> jws;
         try {
-            jws = Jwts.parser().verifyWith(signingKey).build().parseSignedClaims(token);
+            jws = getParser().parseSignedClaims(token);
         } catch (JwtException | IllegalArgumentException e) {
             logger.error("parseToken() throws: {}, {}", e.getClass().getSimpleName(), e.getMessage());
             throw new NotAuthorizedException(e.getClass().getSimpleName() + ": " + e.getMessage());
@@ -110,9 +158,29 @@ public class JWTUtil {
             throw new NotAuthorizedException("Please contact admin to see the log");
         }
 
+        cacheVerifiedToken(digest, jws);
         return jws;
     }
 
+    /**
+     * Only called with a token that passed verification
+     */
+    private void cacheVerifiedToken(String digest, Jws<Claims> jws) {
+        Date expiration = jws.getPayload().getExpiration();
+        if (digest == null || expiration == null || maxVerifiedTokens <= 0) {
+            return;
+        }
+
+        if (verifiedTokens.size() >= maxVerifiedTokens) {
+            long now = System.currentTimeMillis();
+            verifiedTokens.values().removeIf(verified -> verified.expiresAt() <= now);
+            if (verifiedTokens.size() >= maxVerifiedTokens) {
+                verifiedTokens.clear();
+            }
+        }
+        verifiedTokens.put(digest, new VerifiedToken(jws, expiration.getTime()));
+    }
+
     public static Optional<String> getTokenFromAuthorizationHeader(String authorizationHeader) {
         if (authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
             return Optional.ofNullable(authorizationHeader);
@@ -121,6 +189,17 @@ public class JWTUtil {
         return Optional.of(authorizationHeader.substring("Bearer".length()).trim());
     }
 
+    /**
+     * @return the SHA-256 digest of the token, used to compare or index tokens without keeping them
+     */
+    public static byte[] tokenDigest(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
     public static boolean isLongTermToken(String sub) {
         return sub.startsWith(AuthNaming.LONG_TERM_TOKEN_PREFIX);
     }
@@ -0,0 +1,31 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class TransactionUtil {
+
+    private TransactionUtil() {
+    }
+
+    /**
+     * Runs the action once the current transaction is committed, right away when there is no transaction.
+     * <p>
+     * Caches derived from the database are invalidated this way: invalidated before the commit, a concurrent
+     * request could still read the rows as they were and cache them again. The action is not run when the
+     * transaction is rolled back. The actions are run in the order they were registered, an action registered by
+     * another action would never run.
+     */
+    public static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -1,6 +1,7 @@
 package edu.harvard.hms.dbmi.avillach;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.model.ApplicationPrincipal;
 import edu.harvard.hms.dbmi.avillach.auth.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.ApplicationService;
@@ -12,12 +13,20 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
 @SpringBootTest
 @ContextConfiguration(classes = {ApplicationService.class, JWTUtil.class})
@@ -33,8 +42,8 @@ public class ApplicationServiceTest {
 
     @BeforeEach
     public void init() {
-        JWTUtil jwtUtil = spy(new JWTUtil(generate256Base64Secret(), false));
-        applicationService = new ApplicationService(applicationRepository, privilegeRepository, jwtUtil);
+        JWTUtil jwtUtil = spy(new JWTUtil(generate256Base64Secret(), false, 10_000));
+        applicationService = new ApplicationService(applicationRepository, privilegeRepository, jwtUtil, 60);
     }
 
     @Test
@@ -50,6 +59,41 @@ public class ApplicationServiceTest {
         Assertions.assertTrue(token.length() > 10, "Token is too short");
     }
 
+    @Test
+    public void testUpdateApplicationsEvictsThePrincipalCachedBeforeTheCommit() throws Exception {
+        Application application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("Testing Application");
+        application.setEnable(true);
+        applicationService.cacheApplicationPrincipal(ApplicationPrincipal.of(application));
+        when(applicationRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            application.setEnable(false);
+            applicationService.updateApplications(List.of(application));
+            Assertions.assertTrue(applicationService.getCachedApplicationPrincipal(application.getUuid().toString()).isPresent());
+
+            // another request loads the application as it was before the change is committed and caches it again
+            Application stale = new Application();
+            stale.setUuid(application.getUuid());
+            stale.setName(application.getName());
+            stale.setEnable(true);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                executor.submit(() -> applicationService.cacheApplicationPrincipal(ApplicationPrincipal.of(stale))).get();
+            } finally {
+                executor.shutdown();
+            }
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        Assertions.assertEquals(Optional.empty(), applicationService.getCachedApplicationPrincipal(application.getUuid().toString()));
+    }
+
     /**
      * Do not use this method in production code. This is only for testing purposes.
      * @return a 256-bit base64 encoded secret
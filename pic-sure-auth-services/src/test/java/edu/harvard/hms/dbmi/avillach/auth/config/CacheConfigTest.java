@@ -0,0 +1,47 @@
+package edu.harvard.hms.dbmi.avillach.auth.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.CacheManager;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheConfigTest {
+
+    @Test
+    public void testSessionsExpireAtTheMaxSessionLength() {
+        CacheManager cacheManager = new CacheConfig().cacheManager(new MockEnvironment()
+                .withProperty("cache.sessions.max.size", "50"), 60_000);
+
+        Policy<Object, Object> policy = nativeCache(cacheManager, CacheConfig.SESSIONS_CACHE).policy();
+        assertEquals(50, policy.eviction().orElseThrow().getMaximum());
+        assertEquals(Duration.ofMinutes(1), policy.expireAfterWrite().orElseThrow().getExpiresAfter());
+        assertTrue(policy.expireAfterAccess().isEmpty());
+        assertTrue(policy.isRecordingStats());
+    }
+
+    @Test
+    public void testUserCachesAreBoundedAndExpireAfterAccess() {
+        CacheManager cacheManager = new CacheConfig().cacheManager(new MockEnvironment()
+                .withProperty("cache.mergedRulesCache.max.size", "20")
+                .withProperty("cache.mergedRulesCache.expire.after.access.seconds", "30"), 60_000);
+
+        Policy<Object, Object> mergedRules = nativeCache(cacheManager, "mergedRulesCache").policy();
+        assertEquals(20, mergedRules.eviction().orElseThrow().getMaximum());
+        assertEquals(Duration.ofSeconds(30), mergedRules.expireAfterAccess().orElseThrow().getExpiresAfter());
+
+        // caches without properties and caches created on demand get the defaults
+        Policy<Object, Object> mergedTemplate = nativeCache(cacheManager, "mergedTemplateCache").policy();
+        assertEquals(10_000, mergedTemplate.eviction().orElseThrow().getMaximum());
+        assertEquals(10_000, nativeCache(cacheManager, "otherCache").policy().eviction().orElseThrow().getMaximum());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cache<Object, Object> nativeCache(CacheManager cacheManager, String cacheName) {
+        return (Cache<Object, Object>) cacheManager.getCache(cacheName).getNativeCache();
+    }
+}
@@ -0,0 +1,236 @@
+package edu.harvard.hms.dbmi.avillach.auth.model;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompiledAccessRuleTest {
+
+    @Test
+    public void testRuleWithoutPathHasNoPath() {
+        AccessRule rule = createRule(null, null, null);
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertFalse(compiled.hasPath());
+        assertNull(compiled.getPath());
+    }
+
+    @Test
+    public void testPathIsStrippedAndCompiled() {
+        AccessRule rule = createRule("   $.query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS, "COUNT");
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertTrue(compiled.hasPath());
+        assertEquals("$.query.expectedResultType", compiled.getRule());
+        assertNotNull(compiled.getPath());
+    }
+
+    @Test
+    public void testInvalidPathIsReportedOnUse() {
+        AccessRule rule = createRule("$.query..", AccessRule.TypeNaming.ALL_EQUALS, "COUNT");
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertTrue(compiled.hasPath());
+        assertThrows(RuntimeException.class, compiled::getPath);
+    }
+
+    @Test
+    public void testEquals() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS, "value"));
+
+        assertEquals(0, compiled.match("value"));
+        assertEquals(-1, compiled.match("VALUE"));
+    }
+
+    @Test
+    public void testContainsIgnoreCase() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE, "PhS000001"));
+
+        assertEquals(0, compiled.match("\\_consents\\PHS000001.c1"));
+        assertEquals(-1, compiled.match("\\_consents\\phs000002.c1"));
+    }
+
+    @Test
+    public void testNotContainsIgnoreCase() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE, "SECRET"));
+
+        assertEquals(-1, compiled.match("a secret value"));
+        assertEquals(0, compiled.match("a public value"));
+    }
+
+    @Test
+    public void testRegexMatch() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.ANY_REG_MATCH, "phs\\d+\\.c\\d"));
+
+        assertEquals(0, compiled.match("phs000001.c1"));
+        assertEquals(-1, compiled.match("phs000001.c1 "));
+    }
+
+    @Test
+    public void testInvalidRegexIsReportedOnMatch() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.ALL_REG_MATCH, "phs("));
+
+        assertThrows(PatternSyntaxException.class, () -> compiled.match("phs000001"));
+    }
+
+    @Test
+    public void testMergedValuesAreOrRelationship() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_CONTAINS, "ignored");
+        rule.getMergedValues().addAll(Set.of("phs000001", "phs000002"));
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertEquals(2, compiled.getValues().size());
+        assertTrue(compiled.match("phs000001.c1") >= 0);
+        assertTrue(compiled.match("phs000002.c1") >= 0);
+        assertEquals(-1, compiled.match("ignored"));
+    }
+
+    @Test
+    public void testMergedContainsWithOverlappingValues() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ANY_CONTAINS, "ignored");
+        rule.getMergedValues().addAll(Set.of("he", "she", "his", "hers", "phs000002.c10"));
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertTrue(compiled.match("ushers") >= 0);
+        assertTrue(compiled.match("xhisx") >= 0);
+        assertTrue(compiled.match("phs000002.c10") >= 0);
+        assertEquals(-1, compiled.match("phs000002.c1"));
+        assertEquals(-1, compiled.match(""));
+        assertEquals("his", compiled.getValues().get(compiled.match("xhisx")));
+    }
+
+    @Test
+    public void testMergedContainsIgnoreCase() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_CONTAINS_OR_EMPTY_IGNORE_CASE, "ignored");
+        rule.getMergedValues().addAll(Set.of("PHS000001", "phs000002"));
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertTrue(compiled.match("\\_consents\\phs000001.c1") >= 0);
+        assertTrue(compiled.match("\\_consents\\PHS000002.c1") >= 0);
+        assertEquals(-1, compiled.match("\\_consents\\phs000003.c1"));
+    }
+
+    @Test
+    public void testMergedEquals() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS, "ignored");
+        rule.getMergedValues().addAll(Set.of("COUNT", "CROSS_COUNT", "INFO_COLUMN_LISTING"));
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertEquals("CROSS_COUNT", compiled.getValues().get(compiled.match("CROSS_COUNT")));
+        assertEquals(-1, compiled.match("count"));
+        assertEquals(-1, compiled.match("COUNTS"));
+    }
+
+    @Test
+    public void testMergedEqualsIgnoreCase() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE, "ignored");
+        rule.getMergedValues().addAll(Set.of("Count", "Cross_Count"));
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        assertEquals("Cross_Count", compiled.getValues().get(compiled.match("CROSS_COUNT")));
+        assertEquals(-1, compiled.match("COUNTS"));
+    }
+
+    @Test
+    public void testMergedValuesMatchLikeSingleValues() {
+        Random random = new Random(42);
+        int[] types = {AccessRule.TypeNaming.ALL_CONTAINS, AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE,
+                AccessRule.TypeNaming.ALL_EQUALS, AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE};
+        for (int round = 0; round < 200; round++) {
+            int type = types[round % types.length];
+            AccessRule rule = createRule("$.test", type, "ignored");
+            for (int i = 0; i < 2 + random.nextInt(10); i++) {
+                rule.getMergedValues().add(randomString(random, 1 + random.nextInt(4)));
+            }
+            CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+            for (int i = 0; i < 20; i++) {
+                String request = randomString(random, random.nextInt(12));
+                boolean expected = rule.getMergedValues().stream().anyMatch(value -> switch (type) {
+                    case AccessRule.TypeNaming.ALL_CONTAINS -> request.contains(value);
+                    case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE -> request.toLowerCase().contains(value.toLowerCase());
+                    case AccessRule.TypeNaming.ALL_EQUALS -> value.equals(request);
+                    default -> value.equalsIgnoreCase(request);
+                });
+
+                int match = compiled.match(request);
+                assertEquals(expected, match >= 0, "type " + type + " values " + rule.getMergedValues() + " request " + request);
+            }
+        }
+    }
+
+    @Test
+    public void testNullValueOnlyMatchesNull() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS, null));
+
+        assertEquals(0, compiled.match(null));
+        assertEquals(-1, compiled.match("value"));
+    }
+
+    @Test
+    public void testUnknownTypeAlwaysMatches() {
+        CompiledAccessRule compiled = CompiledAccessRule.compile(createRule("$.test", 999, "value"));
+
+        assertFalse(compiled.isSupportedType());
+        assertEquals(0, compiled.match("anything"));
+    }
+
+    @Test
+    public void testKeyChangesWithRuleDefinition() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS, "value");
+        CompiledAccessRule.Key key = CompiledAccessRule.compile(rule).getKey();
+
+        assertEquals(key, CompiledAccessRule.Key.of(rule));
+
+        rule.getMergedValues().add("other");
+        assertNotEquals(key, CompiledAccessRule.Key.of(rule));
+
+        rule.setValue("changed");
+        assertNotEquals(key, CompiledAccessRule.Key.of(rule));
+    }
+
+    @Test
+    public void testCompiledKeyIsDetachedFromRule() {
+        AccessRule rule = createRule("$.test", AccessRule.TypeNaming.ALL_EQUALS, "value");
+        rule.getMergedValues().add("value");
+        CompiledAccessRule compiled = CompiledAccessRule.compile(rule);
+
+        rule.getMergedValues().add("other");
+
+        assertEquals(1, compiled.getKey().mergedValues().size());
+        assertEquals(1, compiled.getValues().size());
+    }
+
+    private String randomString(Random random, int length) {
+        String alphabet = "abAB.";
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return value.toString();
+    }
+
+    private AccessRule createRule(String path, Integer type, String value) {
+        AccessRule rule = new AccessRule();
+        rule.setName("TestRule");
+        rule.setRule(path);
+        rule.setType(type);
+        rule.setValue(value);
+        rule.setCheckMapNode(false);
+        rule.setCheckMapKeyOnly(false);
+        return rule;
+    }
+}
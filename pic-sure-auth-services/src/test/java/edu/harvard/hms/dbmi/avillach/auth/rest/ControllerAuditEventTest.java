@@ -33,6 +33,8 @@ class ControllerAuditEventTest {
         Class<?> c = TokenController.class;
         // inspectToken(Map<String, Object> inputMap, HttpServletRequest request)
         assertAuditEvent(c, "inspectToken", new Class[]{Map.class, HttpServletRequest.class}, "ACCESS", "token.introspect");
+        // inspectTokens(List<Map<String, Object>> items, HttpServletRequest request)
+        assertAuditEvent(c, "inspectTokens", new Class[]{List.class, HttpServletRequest.class}, "ACCESS", "token.introspect.batch");
         // refreshToken(String authorizationHeader, HttpServletRequest request)
         assertAuditEvent(c, "refreshToken", new Class[]{String.class, HttpServletRequest.class}, "ACCESS", "token.refresh");
     }
@@ -103,6 +105,12 @@ class ControllerAuditEventTest {
         assertAuditEvent(c, "removeById", new Class[]{String.class, HttpServletRequest.class}, "ADMIN", "access_rule.delete");
         // getAllTypes()
         assertAuditEvent(c, "getAllTypes", new Class[]{}, "OTHER", "access_rule.types");
+        // getEvaluationStatistics()
+        assertAuditEvent(c, "getEvaluationStatistics", new Class[]{}, "OTHER", "access_rule.statistics");
+        // getDecisionCacheStatistics()
+        assertAuditEvent(c, "getDecisionCacheStatistics", new Class[]{}, "OTHER", "access_rule.decision_cache.statistics");
+        // getRuleSetMinimizations()
+        assertAuditEvent(c, "getRuleSetMinimizations", new Class[]{}, "OTHER", "access_rule.minimization.statistics");
     }
 
     @Test
@@ -182,9 +190,12 @@ class ControllerAuditEventTest {
     @Test
     void cacheController() throws Exception {
         Class<?> c = CacheController.class;
-        // getCacheNames()
-        assertAuditEvent(c, "getCacheNames", new Class[]{}, "OTHER", "cache.list");
-        // getCache(String cacheName)
-        assertAuditEvent(c, "getCache", new Class[]{String.class}, "OTHER", "cache.read");
+        // getCacheStatistics()
+        assertAuditEvent(c, "getCacheStatistics", new Class[]{}, "OTHER", "cache.list");
+        assertAuditEvent(c, "getDependencyIndexStatistics", new Class[]{}, "OTHER", "cache.dependencies.read");
+        // getCacheStatistics(String cacheName)
+        assertAuditEvent(c, "getCacheStatistics", new Class[]{String.class}, "OTHER", "cache.read");
+        // getCacheEntry(String cacheName, String key)
+        assertAuditEvent(c, "getCacheEntry", new Class[]{String.class, String.class}, "OTHER", "cache.entry.read");
     }
 }
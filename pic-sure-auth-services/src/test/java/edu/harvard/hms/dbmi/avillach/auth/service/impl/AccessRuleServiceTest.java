@@ -1,6 +1,11 @@
 package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.RuleSetMinimization;
 import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -9,12 +14,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -24,6 +33,9 @@ public class AccessRuleServiceTest {
     @MockBean
     private AccessRuleRepository accessRuleRepo;
 
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     @Autowired
     private AccessRuleService accessRuleService;
 
@@ -123,4 +135,350 @@ public class AccessRuleServiceTest {
         assertEquals(1, result.size());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testRequestEvaluation_pathIsReadOncePerRequest() {
+        AccessRule rule = new AccessRule();
+        rule.setName("AR_TEST");
+        rule.setRule("$.query.expectedResultType");
+        rule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        rule.setValue("COUNT");
+        rule.setCheckMapNode(false);
+        rule.setCheckMapKeyOnly(false);
+
+        Map<String, Object> query = new HashMap<>();
+        query.put("expectedResultType", "COUNT");
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("query", query);
+
+        EvaluationContext context = new EvaluationContext(requestBody, false);
+        assertTrue(accessRuleService.extractAndCheckRule(context, rule));
+
+        // the value extracted for the path is reused for the rest of the request
+        query.put("expectedResultType", "DATAFRAME");
+        assertTrue(accessRuleService.extractAndCheckRule(context, rule));
+
+        assertFalse(accessRuleService.extractAndCheckRule(rule, requestBody));
+    }
+
+    @Test
+    public void testRequestEvaluation_missingPathIsRemembered() {
+        AccessRule rule = new AccessRule();
+        rule.setName("AR_TEST");
+        rule.setRule("$.query.expectedResultType");
+        rule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        rule.setValue("COUNT");
+        rule.setCheckMapNode(false);
+        rule.setCheckMapKeyOnly(false);
+
+        Map<String, Object> query = new HashMap<>();
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("query", query);
+
+        EvaluationContext context = new EvaluationContext(requestBody, false);
+        assertFalse(accessRuleService.extractAndCheckRule(context, rule));
+
+        query.put("expectedResultType", "COUNT");
+        assertFalse(accessRuleService.extractAndCheckRule(context, rule));
+
+        assertTrue(accessRuleService.extractAndCheckRule(rule, requestBody));
+    }
+
+    @Test
+    public void testRequestEvaluation_sharedGateIsEvaluatedOnce() {
+        AccessRule gate = new AccessRule();
+        gate.setUuid(UUID.randomUUID());
+        gate.setName("GATE_TEST_PRESENT");
+        gate.setRule("$.query.expectedResultType");
+        gate.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        gate.setValue("COUNT");
+
+        AccessRule first = new AccessRule();
+        first.setName("AR_FIRST");
+        first.setGates(Set.of(gate));
+        first.setEvaluateOnlyByGates(true);
+
+        AccessRule second = new AccessRule();
+        second.setName("AR_SECOND");
+        second.setGates(Set.of(gate));
+        second.setEvaluateOnlyByGates(true);
+
+        Map<String, Object> requestBody = Map.of("query", Map.of("expectedResultType", "COUNT"));
+
+        EvaluationContext context = new EvaluationContext(requestBody, false);
+        assertTrue(accessRuleService.evaluateAccessRule(context, first));
+
+        // the result of the gate is reused for every rule evaluated for this request
+        gate.setValue("DATAFRAME");
+        assertTrue(accessRuleService.evaluateAccessRule(context, second));
+
+        assertFalse(accessRuleService.evaluateAccessRule(requestBody, second));
+    }
+
+    @Test
+    public void testRequestEvaluation_treeIsOnlyRecordedWhenTraced() {
+        AccessRule gate = new AccessRule();
+        gate.setName("GATE_TEST_PRESENT");
+        gate.setRule("$.query.expectedResultType");
+        gate.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        gate.setValue("COUNT");
+
+        AccessRule rule = new AccessRule();
+        rule.setName("AR_TEST");
+        rule.setGates(Set.of(gate));
+        rule.setEvaluateOnlyByGates(true);
+
+        Map<String, Object> requestBody = Map.of("query", Map.of("expectedResultType", "DATAFRAME"));
+
+        EvaluationContext untraced = new EvaluationContext(requestBody, false);
+        assertFalse(accessRuleService.evaluateAccessRule(untraced, rule));
+        assertEquals("No evaluation tree available", untraced.printEvaluationTree());
+        assertNull(untraced.getCompactEvaluationTrace());
+
+        EvaluationContext traced = new EvaluationContext(requestBody, true);
+        assertFalse(accessRuleService.evaluateAccessRule(traced, rule));
+        assertEquals("AR_TEST ✗ (Gates evaluation failed) > GATE_TEST_PRESENT ✗ (Rule evaluation failed for path: $.query.expectedResultType)",
+                traced.getCompactEvaluationTrace());
+        assertTrue(traced.printEvaluationTree().contains("[GATE|AND] GATE_TEST_PRESENT"));
+    }
+
+    @Test
+    public void testPreProcess_mergesWithoutModifyingRules() {
+        AccessRule first = createQueryTypeRule("AR_COUNT", "COUNT");
+        AccessRule second = createQueryTypeRule("AR_CROSS_COUNT", "CROSS_COUNT");
+
+        Set<AccessRule> merged = accessRuleService.preProcessARBySortedKeys(Set.of(first, second));
+
+        assertEquals(1, merged.size());
+        AccessRule mergedRule = merged.iterator().next();
+        assertNotSame(first, mergedRule);
+        assertNotSame(second, mergedRule);
+        assertEquals(Set.of("COUNT", "CROSS_COUNT"), mergedRule.getMergedValues());
+        assertTrue(mergedRule.getMergedName().startsWith("Merged|"));
+        for (AccessRule rule : List.of(first, second)) {
+            assertTrue(rule.getMergedValues().isEmpty());
+            assertEquals("", rule.getMergedName());
+        }
+
+        // the rules can be merged again in another rule set with the same result
+        AccessRule third = createQueryTypeRule("AR_DATAFRAME", "DATAFRAME");
+        AccessRule mergedAgain = accessRuleService.preProcessARBySortedKeys(Set.of(first, third)).iterator().next();
+        assertEquals(Set.of("COUNT", "DATAFRAME"), mergedAgain.getMergedValues());
+    }
+
+    @Test
+    public void testGetInternedRuleSet_sharedByPrivilegesWithTheSameRules() {
+        AccessRule count = createQueryTypeRule("AR_COUNT", "COUNT");
+        AccessRule crossCount = createQueryTypeRule("AR_CROSS_COUNT", "CROSS_COUNT");
+
+        Set<AccessRule> ruleSet = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(count, crossCount)));
+        Set<AccessRule> sameRules = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(crossCount), createPrivilege(count)));
+
+        assertSame(ruleSet, sameRules);
+        assertEquals(1, ruleSet.size());
+        assertThrows(UnsupportedOperationException.class, () -> ruleSet.add(new AccessRule()));
+        assertTrue(accessRuleService.evaluateAccessRule(Map.of("query", Map.of("expectedResultType", "CROSS_COUNT")), ruleSet.iterator().next()));
+
+        Set<AccessRule> otherRules = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(count)));
+        assertNotSame(ruleSet, otherRules);
+    }
+
+    @Test
+    public void testGetInternedRuleSet_changeToTheRulesGivesANewRuleSet() {
+        AccessRule count = createQueryTypeRule("AR_COUNT", "COUNT");
+        Privilege privilege = createPrivilege(count);
+        Set<AccessRule> ruleSet = accessRuleService.getInternedRuleSet(Set.of(privilege));
+
+        when(accessRuleRepo.save(count)).thenReturn(count);
+        accessRuleService.save(count);
+
+        Set<AccessRule> updated = accessRuleService.getInternedRuleSet(Set.of(privilege));
+        assertNotSame(ruleSet, updated);
+        assertSame(updated, accessRuleService.getInternedRuleSet(Set.of(privilege)));
+    }
+
+    @Test
+    public void testGetInternedRuleSet_changeIsAppliedOnceCommitted() {
+        AccessRule count = createQueryTypeRule("AR_COUNT", "COUNT");
+        Privilege privilege = createPrivilege(count);
+        Set<AccessRule> ruleSet = accessRuleService.getInternedRuleSet(Set.of(privilege));
+        long version = accessRuleService.getRuleSetVersion();
+        when(accessRuleRepo.findAll()).thenReturn(List.of());
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            accessRuleService.removeAccessRuleById(count.getUuid().toString());
+            // a request made before the commit keeps the rules as they were committed
+            assertSame(ruleSet, accessRuleService.getInternedRuleSet(Set.of(privilege)));
+            assertEquals(version, accessRuleService.getRuleSetVersion());
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertEquals(version + 1, accessRuleService.getRuleSetVersion());
+        assertNotSame(ruleSet, accessRuleService.getInternedRuleSet(Set.of(privilege)));
+    }
+
+    @Test
+    public void testGetInternedRuleSet_expiredCatalogIsRebuilt() {
+        AccessRuleService expiringService = new AccessRuleService(accessRuleRepo, "", "", "", "", "", "",
+                authorizationDependencyIndex, 0);
+        Privilege privilege = createPrivilege(createQueryTypeRule("AR_COUNT", "COUNT"));
+
+        Set<AccessRule> ruleSet = expiringService.getInternedRuleSet(Set.of(privilege));
+
+        assertNotSame(ruleSet, expiringService.getInternedRuleSet(Set.of(privilege)));
+        assertEquals(ruleSet, expiringService.getInternedRuleSet(Set.of(privilege)));
+    }
+
+    @Test
+    public void testGetInternedRuleSet_changeToAGateOnlyRebuildsTheRulesUsingIt() {
+        AccessRule gate = createQueryTypeRule("GATE_COUNT", "COUNT");
+        gate.setRule("$.query.gate");
+        AccessRule gated = createQueryTypeRule("AR_GATED", "COUNT");
+        gated.setGates(new HashSet<>(Set.of(gate)));
+        AccessRule unrelated = createQueryTypeRule("AR_UNRELATED", "CROSS_COUNT");
+        AccessRule shared = createQueryTypeRule("AR_SHARED", "DATAFRAME");
+        shared.setRule("$.query.other");
+        Privilege gatedPrivilege = createPrivilege(gated, shared);
+        Privilege unrelatedPrivilege = createPrivilege(unrelated, shared);
+
+        Set<AccessRule> gatedRuleSet = accessRuleService.getInternedRuleSet(Set.of(gatedPrivilege));
+        Set<AccessRule> unrelatedRuleSet = accessRuleService.getInternedRuleSet(Set.of(unrelatedPrivilege));
+        AccessRule sharedSnapshot = findByName(unrelatedRuleSet, "AR_SHARED");
+
+        gate.setValue("CROSS_COUNT");
+        when(accessRuleRepo.saveAll(List.of(gate))).thenReturn(List.of(gate));
+        accessRuleService.updateAccessRules(List.of(gate));
+
+        Set<AccessRule> rebuilt = accessRuleService.getInternedRuleSet(Set.of(gatedPrivilege));
+        assertNotSame(gatedRuleSet, rebuilt);
+        assertEquals("CROSS_COUNT", findByName(rebuilt, "AR_GATED").getGates().iterator().next().getValue());
+        assertSame(sharedSnapshot, findByName(rebuilt, "AR_SHARED"));
+        // the rule set built before the change keeps its rules
+        assertEquals("COUNT", findByName(gatedRuleSet, "AR_GATED").getGates().iterator().next().getValue());
+
+        assertSame(unrelatedRuleSet, accessRuleService.getInternedRuleSet(Set.of(unrelatedPrivilege)));
+    }
+
+    @Test
+    public void testCachedPreProcessAccessRules_minimizationIsRecordedByUser() {
+        AccessRule count = createQueryTypeRule("AR_COUNT", "COUNT");
+        AccessRule gatedCount = createQueryTypeRule("AR_GATED_COUNT", "COUNT");
+        AccessRule gate = createQueryTypeRule("GATE_COUNT", "COUNT");
+        gate.setRule("$.query.gate");
+        gatedCount.setGates(new HashSet<>(Set.of(gate)));
+        User user = new User();
+        user.setSubject("minimized-user");
+
+        Set<AccessRule> ruleSet = accessRuleService.cachedPreProcessAccessRules(user, Set.of(createPrivilege(count, gatedCount)));
+
+        assertEquals(1, ruleSet.size());
+        assertEquals("AR_COUNT", ruleSet.iterator().next().getName());
+        RuleSetMinimization minimization = accessRuleService.getRuleSetMinimizations().get("minimized-user");
+        assertEquals(2, minimization.rules());
+        assertEquals(1, minimization.subsumedRules());
+    }
+
+    @Test
+    public void testGetInternedRuleSet_rulesAreImmutableSnapshots() {
+        AccessRule gate = createQueryTypeRule("GATE_COUNT", "COUNT");
+        AccessRule count = createQueryTypeRule("AR_SUB_COUNT", "COUNT");
+        AccessRule crossCount = createQueryTypeRule("AR_SUB_CROSS_COUNT", "CROSS_COUNT");
+        AccessRule parent = new AccessRule();
+        parent.setUuid(UUID.randomUUID());
+        parent.setName("AR_PARENT");
+        parent.setRule("$.query.expectedResultType");
+        parent.setType(AccessRule.TypeNaming.IS_NOT_EMPTY);
+        parent.setGates(new HashSet<>(Set.of(gate)));
+        parent.setSubAccessRule(new HashSet<>(Set.of(count, crossCount)));
+        AccessRule other = createQueryTypeRule("AR_OTHER", "DATAFRAME");
+        other.setRule("$.query.other");
+        other.setGates(new HashSet<>(Set.of(gate)));
+
+        Set<AccessRule> ruleSet = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(parent)));
+        AccessRule snapshot = ruleSet.iterator().next();
+        assertInstanceOf(AccessRuleSnapshot.class, snapshot);
+        assertNotSame(parent, snapshot);
+        assertEquals(parent, snapshot);
+        assertEquals(1, snapshot.getMergedSubAccessRules().size());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.setValue("DATAFRAME"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.getGates().add(other));
+
+        // the snapshot of a rule is shared by the rule sets of the same version
+        Set<AccessRule> otherRuleSet = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(other)));
+        assertSame(snapshot.getGates().iterator().next(), otherRuleSet.iterator().next().getGates().iterator().next());
+
+        // the entities are not modified
+        assertNull(parent.getMergedSubAccessRules());
+        assertEquals(Set.of(count, crossCount), parent.getSubAccessRule());
+
+        Map<String, Object> requestBody = Map.of("query", Map.of("expectedResultType", "COUNT"));
+        assertTrue(accessRuleService.evaluateAccessRule(requestBody, snapshot));
+        assertFalse(accessRuleService.evaluateAccessRule(Map.of("query", Map.of("expectedResultType", "CROSS_COUNT")), snapshot));
+    }
+
+    @Test
+    public void testSave_snapshotsAreRejected() {
+        AccessRule rule = createQueryTypeRule("AR_COUNT", "COUNT");
+        AccessRule snapshot = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(rule))).iterator().next();
+
+        assertThrows(IllegalArgumentException.class, () -> accessRuleService.save(snapshot));
+        assertThrows(IllegalArgumentException.class, () -> accessRuleService.addAccessRule(List.of(snapshot)));
+        assertThrows(IllegalArgumentException.class, () -> accessRuleService.updateAccessRules(List.of(rule, snapshot)));
+        verify(accessRuleRepo, never()).save(snapshot);
+        verify(accessRuleRepo, never()).saveAll(anyList());
+    }
+
+    @Test
+    public void testGetCompiledAccessRule_snapshotsHoldTheirPlan() {
+        AccessRule count = createQueryTypeRule("AR_COUNT", "COUNT");
+        AccessRuleSnapshot snapshot = (AccessRuleSnapshot) accessRuleService.getInternedRuleSet(Set.of(createPrivilege(count))).iterator().next();
+
+        assertNotNull(snapshot.getCompiledRule());
+        assertSame(snapshot.getCompiledRule(), accessRuleService.getCompiledAccessRule(snapshot));
+        assertEquals(CompiledAccessRule.Key.of(count), snapshot.getCompiledRule().getKey());
+        // the rules that are not snapshots share the plan compiled for their definition
+        assertSame(accessRuleService.getCompiledAccessRule(count), accessRuleService.getCompiledAccessRule(count));
+    }
+
+    @Test
+    public void testFindRulesExcludedByConsents_onlyInternedRuleSetsAreIndexed() {
+        AccessRule consent = createQueryTypeRule("AR_CONSENT_phs000001_c1", "phs000001.c1");
+        consent.setRule("$.query.query.categoryFilters.\\_consents\\[*]");
+        consent.setType(AccessRule.TypeNaming.ALL_CONTAINS);
+        Map<String, Object> requestBody = Map.of("query", Map.of("query",
+                Map.of("categoryFilters", Map.of("\\_consents\\", List.of("phs000002.c1")))));
+        EvaluationContext context = new EvaluationContext(requestBody, false);
+
+        Set<AccessRule> ruleSet = accessRuleService.getInternedRuleSet(Set.of(createPrivilege(consent)));
+
+        assertEquals(ruleSet, accessRuleService.findRulesExcludedByConsents(context, ruleSet));
+        assertTrue(accessRuleService.findRulesExcludedByConsents(context, Set.of(consent)).isEmpty());
+    }
+
+    private AccessRule findByName(Set<AccessRule> ruleSet, String name) {
+        return ruleSet.stream().filter(rule -> name.equals(rule.getName())).findFirst().orElseThrow();
+    }
+
+    private Privilege createPrivilege(AccessRule... accessRules) {
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setAccessRules(new HashSet<>(Arrays.asList(accessRules)));
+        return privilege;
+    }
+
+    private AccessRule createQueryTypeRule(String name, String value) {
+        AccessRule rule = new AccessRule();
+        rule.setUuid(UUID.randomUUID());
+        rule.setName(name);
+        rule.setRule("$.query.expectedResultType");
+        rule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        rule.setValue(value);
+        rule.setCheckMapNode(false);
+        rule.setCheckMapKeyOnly(false);
+        return rule;
+    }
+
+}
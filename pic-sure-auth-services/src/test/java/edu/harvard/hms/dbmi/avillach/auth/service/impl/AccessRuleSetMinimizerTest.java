@@ -0,0 +1,137 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.AccessRuleSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.RuleSetMinimization;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class AccessRuleSetMinimizerTest {
+
+    private final AccessRuleCatalog catalog = new AccessRuleCatalog(0, Long.MAX_VALUE, accessRules -> accessRules);
+    private final AccessRuleService accessRuleService = new AccessRuleService(null, null, null, null, null, null, null,
+            mock(AuthorizationDependencyIndex.class), 60);
+
+    @Test
+    public void testDuplicateRulesAreRemoved() {
+        AccessRule count = createRule("AR_COUNT", "$.query.expectedResultType", "COUNT");
+        AccessRule sameCount = createRule("AR_SAME_COUNT", "$.query.expectedResultType", "COUNT");
+
+        AccessRuleSetMinimizer.Result result = minimize(count, sameCount);
+
+        assertEquals(1, result.accessRules().size());
+        assertEquals(new RuleSetMinimization(2, 1, 1, 0, 0, 0, 0), result.minimization());
+        assertEquals(1, result.minimization().removedRules());
+    }
+
+    @Test
+    public void testRulesWithMoreConditionsAreSubsumed() {
+        AccessRule count = createRule("AR_COUNT", "$.query.expectedResultType", "COUNT");
+        AccessRule gatedCount = createRule("AR_GATED_COUNT", "$.query.expectedResultType", "COUNT");
+        gatedCount.setGates(Set.of(createRule("GATE_CONSENT", "$.query.consent", "phs000001.c1")));
+        AccessRule dataframe = createRule("AR_DATAFRAME", "$.query.expectedResultType", "DATAFRAME");
+
+        AccessRuleSetMinimizer.Result result = minimize(count, gatedCount, dataframe);
+
+        assertEquals(Set.of("AR_COUNT", "AR_DATAFRAME"), namesOf(result.accessRules()));
+        assertEquals(1, result.minimization().subsumedRules());
+    }
+
+    @Test
+    public void testAlwaysTrueRuleRemovesTheOtherRulesButTheUserConsentRules() {
+        AccessRule allowAll = createRule("AR_ALLOW_ALL", null, null);
+        AccessRule count = createRule("AR_COUNT", "$.query.expectedResultType", "COUNT");
+        AccessRule userConsent = createRule("AR_USER_CONSENT", null, null);
+        userConsent.setType(AccessRule.TypeNaming.USER_CONSENT_ACCESS);
+
+        AccessRuleSetMinimizer.Result result = minimize(allowAll, count, userConsent);
+
+        assertEquals(Set.of("AR_ALLOW_ALL", "AR_USER_CONSENT"), namesOf(result.accessRules()));
+        assertEquals(new RuleSetMinimization(3, 2, 0, 1, 1, 0, 0), result.minimization());
+    }
+
+    @Test
+    public void testImpliedGatesAndSubRulesAreRemoved() {
+        AccessRule consentGate = createRule("GATE_CONSENT", "$.query.consent", "phs000001.c1");
+        AccessRule sameConsentGate = createRule("GATE_SAME_CONSENT", "$.query.consent", "phs000001.c1");
+        AccessRule alwaysTrueGate = createRule("GATE_ALWAYS", null, null);
+        AccessRule fields = createRule("AR_FIELDS", "$.query.fields", "\\_studies\\");
+        AccessRule sameFields = createRule("AR_SAME_FIELDS", "$.query.fields", "\\_studies\\");
+        AccessRule consentSubRule = createRule("AR_CONSENT", "$.query.consent", "phs000001.c1");
+
+        AccessRule study = createRule("AR_STUDY", "$.query.expectedResultType", "COUNT");
+        study.setGates(Set.of(consentGate, sameConsentGate, alwaysTrueGate));
+        study.setSubAccessRule(Set.of(fields, sameFields, consentSubRule));
+
+        AccessRuleSetMinimizer.Result result = minimize(study);
+
+        AccessRule minimized = result.accessRules().iterator().next();
+        assertEquals(1, minimized.getGates().size());
+        assertEquals("$.query.consent", minimized.getGates().iterator().next().getRule());
+        assertEquals(1, minimized.getMergedSubAccessRules().size());
+        assertEquals("$.query.fields", minimized.getMergedSubAccessRules().iterator().next().getRule());
+        assertEquals(3, minimized.getSubAccessRule().size());
+        assertEquals(new RuleSetMinimization(1, 1, 0, 0, 0, 2, 2), result.minimization());
+        assertThrows(UnsupportedOperationException.class, () -> minimized.setGates(null));
+
+        AccessRule original = catalog.snapshotOf(study);
+        for (Map<String, Object> requestBody : List.of(
+                request("COUNT", "phs000001.c1", "\\_studies\\"),
+                request("COUNT", "phs000002.c1", "\\_studies\\"),
+                request("COUNT", "phs000001.c1", "\\_consents\\"),
+                request("DATAFRAME", "phs000001.c1", "\\_studies\\"))) {
+            assertEquals(accessRuleService.evaluateAccessRule(requestBody, original),
+                    accessRuleService.evaluateAccessRule(requestBody, minimized));
+        }
+    }
+
+    @Test
+    public void testOrGatesAreKept() {
+        AccessRule count = createRule("AR_COUNT", "$.query.expectedResultType", "COUNT");
+        count.setGateAnyRelation(true);
+        count.setGates(Set.of(createRule("GATE_C1", "$.query.consent", "phs000001.c1"),
+                createRule("GATE_C2", "$.query.consent", "phs000002.c1")));
+        AccessRule snapshot = catalog.snapshotOf(count);
+
+        AccessRuleSetMinimizer.Result result = AccessRuleSetMinimizer.minimize(Set.of(snapshot), CompiledAccessRule::compile);
+
+        assertSame(snapshot, result.accessRules().iterator().next());
+        assertEquals(RuleSetMinimization.unchanged(1), result.minimization());
+    }
+
+    private AccessRuleSetMinimizer.Result minimize(AccessRule... accessRules) {
+        Set<AccessRule> snapshots = new HashSet<>();
+        for (AccessRule accessRule : accessRules) {
+            AccessRuleSnapshot snapshot = catalog.snapshotOf(accessRule);
+            snapshots.add(snapshot);
+        }
+        return AccessRuleSetMinimizer.minimize(snapshots, CompiledAccessRule::compile);
+    }
+
+    private static Set<String> namesOf(Set<AccessRule> accessRules) {
+        Set<String> names = new HashSet<>();
+        accessRules.forEach(accessRule -> names.add(accessRule.getName()));
+        return names;
+    }
+
+    private static Map<String, Object> request(String expectedResultType, String consent, String field) {
+        return Map.of("query", Map.of("expectedResultType", expectedResultType, "consent", consent, "fields", field));
+    }
+
+    private static AccessRule createRule(String name, String rule, String value) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule(rule);
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(value);
+        accessRule.setCheckMapNode(false);
+        accessRule.setCheckMapKeyOnly(false);
+        return accessRule;
+    }
+}
@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.model.ApplicationPrincipal;
 import edu.harvard.hms.dbmi.avillach.auth.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
@@ -182,4 +183,42 @@ public class ApplicationServiceTest {
             applicationService.refreshApplicationToken(id.toString());
         });
     }
+
+    @Test
+    public void testApplicationPrincipal_evictedByRefreshApplicationToken() {
+        UUID id = UUID.randomUUID();
+        Application application = new Application();
+        application.setUuid(id);
+        application.setName("PICSURE");
+        application.setToken("oldToken");
+        when(applicationRepo.findById(id)).thenReturn(Optional.of(application));
+        when(jwtUtil.createJwtToken(any(), any(), any(), anyString(), anyLong())).thenReturn("newToken");
+
+        applicationService.cacheApplicationPrincipal(ApplicationPrincipal.of(application));
+        Optional<ApplicationPrincipal> cached = applicationService.getCachedApplicationPrincipal(id.toString());
+        assertTrue(cached.isPresent());
+        assertTrue(cached.get().matchesToken("oldToken"));
+        assertFalse(cached.get().matchesToken("newToken"));
+        assertNull(cached.get().application().getToken());
+
+        applicationService.refreshApplicationToken(id.toString());
+        assertTrue(applicationService.getCachedApplicationPrincipal(id.toString()).isEmpty());
+    }
+
+    @Test
+    public void testApplicationPrincipal_evictedByUpdateAndDelete() {
+        UUID id = UUID.randomUUID();
+        Application application = new Application();
+        application.setUuid(id);
+        application.setToken("token");
+        when(applicationRepo.findById(id)).thenReturn(Optional.of(application));
+
+        applicationService.cacheApplicationPrincipal(ApplicationPrincipal.of(application));
+        applicationService.updateApplications(List.of(application));
+        assertTrue(applicationService.getCachedApplicationPrincipal(id.toString()).isEmpty());
+
+        applicationService.cacheApplicationPrincipal(ApplicationPrincipal.of(application));
+        applicationService.deleteApplicationById(id.toString());
+        assertTrue(applicationService.getCachedApplicationPrincipal(id.toString()).isEmpty());
+    }
 }
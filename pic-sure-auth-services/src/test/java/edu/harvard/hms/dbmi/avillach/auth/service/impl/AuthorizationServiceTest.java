@@ -5,8 +5,12 @@ import edu.harvard.hms.dbmi.avillach.auth.entity.*;
 import edu.harvard.hms.dbmi.avillach.auth.model.CustomUserDetails;
 import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserConsentsRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AccessRuleStatistics;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AccessRuleTracePolicy;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AuthorizationDecisionCache;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.AuthorizationService;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.BdcConsentBasedAccessRuleEvaluator;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization.ParallelAccessRuleEvaluator;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -22,15 +26,19 @@ import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
-@ContextConfiguration(classes = {AuthorizationService.class, AccessRuleService.class})
+@ContextConfiguration(classes = {AuthorizationService.class, AccessRuleService.class, AccessRuleTracePolicy.class, ParallelAccessRuleEvaluator.class, AccessRuleStatistics.class, AuthorizationDecisionCache.class, AuthorizationSnapshotService.class})
 public class AuthorizationServiceTest {
 
     @MockBean
     private SecurityContext securityContext;
 
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     private AuthorizationService authorizationService;
     private AccessRuleService accessRuleService;
 
@@ -54,9 +62,12 @@ public class AuthorizationServiceTest {
         MockitoAnnotations.openMocks(this);
         SecurityContextHolder.setContext(securityContext);
 
-        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false", "false", "false");
+        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false", "false", "false",
+                authorizationDependencyIndex, 60);
         authorizationService = new AuthorizationService(
-            accessRuleService, sessionService, roleService, bdcConsentBasedAccessRuleEvaluator, "fence,okta,open", userConsentsRepository
+            accessRuleService, sessionService, roleService, bdcConsentBasedAccessRuleEvaluator, "fence,okta,open", userConsentsRepository,
+            mock(AccessRuleTracePolicy.class), mock(ParallelAccessRuleEvaluator.class), new AccessRuleStatistics(false),
+            mock(AuthorizationDecisionCache.class)
         );
     }
 
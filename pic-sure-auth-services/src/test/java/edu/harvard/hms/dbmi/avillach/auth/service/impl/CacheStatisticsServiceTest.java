@@ -0,0 +1,58 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import edu.harvard.hms.dbmi.avillach.auth.config.CacheConfig;
+import edu.harvard.hms.dbmi.avillach.auth.model.CacheStatistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheStatisticsServiceTest {
+
+    private CacheManager cacheManager;
+    private CacheStatisticsService cacheStatisticsService;
+
+    @BeforeEach
+    public void setUp() {
+        cacheManager = new CacheConfig().cacheManager(new MockEnvironment(), 60_000);
+        cacheStatisticsService = new CacheStatisticsService(cacheManager);
+    }
+
+    @Test
+    public void testStatisticsCountHitsAndMisses() {
+        Cache mergedRules = cacheManager.getCache("mergedRulesCache");
+        mergedRules.get("TEST_SUBJECT", () -> Set.of("AR_TEST"));
+        mergedRules.get("TEST_SUBJECT");
+        mergedRules.get("OTHER_SUBJECT");
+
+        CacheStatistics statistics = cacheStatisticsService.getStatistics("mergedRulesCache").orElseThrow();
+        assertTrue(statistics.recordsStatistics());
+        assertEquals(1, statistics.size());
+        assertEquals(1, statistics.hitCount());
+        assertEquals(2, statistics.missCount());
+        assertEquals(1, statistics.loadCount());
+
+        assertTrue(cacheStatisticsService.getStatistics("unknownCache").isEmpty());
+        assertTrue(cacheStatisticsService.getStatistics().stream().map(CacheStatistics::name).toList()
+                .containsAll(CacheConfig.USER_CACHES));
+    }
+
+    @Test
+    public void testEntryIsReadWithoutChangingTheStatistics() {
+        cacheManager.getCache(CacheConfig.SESSIONS_CACHE).put("TEST_SUBJECT", 42L);
+
+        assertEquals(Optional.of(42L), cacheStatisticsService.getEntry(CacheConfig.SESSIONS_CACHE, "TEST_SUBJECT"));
+        assertTrue(cacheStatisticsService.getEntry(CacheConfig.SESSIONS_CACHE, "OTHER_SUBJECT").isEmpty());
+        assertTrue(cacheStatisticsService.getEntry("unknownCache", "TEST_SUBJECT").isEmpty());
+
+        CacheStatistics statistics = cacheStatisticsService.getStatistics(CacheConfig.SESSIONS_CACHE).orElseThrow();
+        assertEquals(0, statistics.hitCount());
+        assertEquals(0, statistics.missCount());
+    }
+}
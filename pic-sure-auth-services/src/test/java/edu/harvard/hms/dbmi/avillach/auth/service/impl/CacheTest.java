@@ -3,8 +3,10 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import edu.harvard.dbmi.avillach.logging.LoggingClient;
 import edu.harvard.hms.dbmi.avillach.auth.config.CustomKeyGenerator;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.entity.Role;
 import edu.harvard.hms.dbmi.avillach.auth.entity.User;
 import edu.harvard.hms.dbmi.avillach.auth.repository.*;
 import edu.harvard.hms.dbmi.avillach.auth.utils.FenceMappingUtility;
@@ -25,17 +27,24 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 @SpringBootTest
 @ExtendWith(MockitoExtension.class)
-@ContextConfiguration(classes = {UserService.class, AccessRuleService.class, CustomKeyGenerator.class, CacheEvictionService.class
+@ContextConfiguration(classes = {UserService.class, AccessRuleService.class, CustomKeyGenerator.class, CacheEvictionService.class,
+        AuthorizationDependencyIndex.class
 
 })
 @Import(CacheTest.TestCacheConfig.class)
@@ -74,6 +83,9 @@ public class CacheTest {
     @MockBean
     private FenceMappingUtility fenceMappingUtility;
 
+    @MockBean
+    private AuthorizationSnapshotService authorizationSnapshotService;
+
     @MockBean
     private LoggingClient loggingClient;
 
@@ -89,6 +101,9 @@ public class CacheTest {
     @Autowired
     private CacheManager cacheManager;
 
+    @Autowired
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     @Mock
     private User mockUser;
 
@@ -238,6 +253,92 @@ public class CacheTest {
         assertThat(mergedTemplateCache.get("test_subject")).isNull();
     }
 
+    @Test
+    public void testAccessRuleChangeEvictsOnlyTheUsersDependingOnIt() {
+        AccessRule gate = createAccessRule("GATE_COUNT");
+        AccessRule rule = createAccessRule("AR_STUDY");
+        rule.setGates(new HashSet<>(Set.of(gate)));
+        User user = createUserWithRule("test_subject", rule);
+        User otherUser = createUserWithRule("other_subject", createAccessRule("AR_OTHER_STUDY"));
+
+        accessRuleService.getAccessRulesForUserAndApp(user, mockApplication);
+        userService.mergeTemplate(user, mockApplication);
+        accessRuleService.getAccessRulesForUserAndApp(otherUser, mockApplication);
+        Cache mergedRulesCache = cacheManager.getCache("mergedRulesCache");
+        Cache mergedTemplateCache = cacheManager.getCache("mergedTemplateCache");
+        assertThat(mergedRulesCache.get("test_subject")).isNotNull();
+        assertThat(mergedTemplateCache.get("test_subject")).isNotNull();
+        assertThat(mergedRulesCache.get("other_subject")).isNotNull();
+        long version = authorizationDependencyIndex.getVersion();
+
+        // the gate is only used by the rule of test_subject
+        when(accessRuleRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+        accessRuleService.updateAccessRules(List.of(gate));
+
+        assertThat(mergedRulesCache.get("test_subject")).isNull();
+        assertThat(mergedTemplateCache.get("test_subject")).isNull();
+        assertThat(mergedRulesCache.get("other_subject")).isNotNull();
+        assertThat(authorizationDependencyIndex.getVersion()).isEqualTo(version + 1);
+    }
+
+    @Test
+    public void testAccessRuleChangeEvictsTheRulesRecomputedBeforeTheCommit() throws Exception {
+        AccessRule rule = createAccessRule("AR_STUDY");
+        User user = createUserWithRule("test_subject", rule);
+        accessRuleService.getAccessRulesForUserAndApp(user, mockApplication);
+        Cache mergedRulesCache = cacheManager.getCache("mergedRulesCache");
+        when(accessRuleRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            accessRuleService.updateAccessRules(List.of(rule));
+            assertThat(mergedRulesCache.get("test_subject")).isNotNull();
+
+            // another request evicts the user and computes the rules again before the change is committed
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                executor.submit(() -> {
+                    cacheEvictionService.evictCache(user);
+                    accessRuleService.getAccessRulesForUserAndApp(user, mockApplication);
+                }).get();
+            } finally {
+                executor.shutdown();
+            }
+            assertThat(mergedRulesCache.get("test_subject")).isNotNull();
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertThat(mergedRulesCache.get("test_subject")).isNull();
+    }
+
+    private static AccessRule createAccessRule(String name) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule("$.query.expectedResultType");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue("COUNT");
+        return accessRule;
+    }
+
+    private User createUserWithRule(String subject, AccessRule accessRule) {
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setAccessRules(new HashSet<>(Set.of(accessRule)));
+        Role role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setPrivileges(new HashSet<>(Set.of(privilege)));
+
+        User user = mock(User.class);
+        when(user.getSubject()).thenReturn(subject);
+        when(user.getRoles()).thenReturn(Set.of(role));
+        when(user.getPrivilegesByApplication(mockApplication)).thenReturn(Set.of(privilege));
+        return user;
+    }
+
     @Configuration
     @EnableCaching
     public static class TestCacheConfig {
@@ -0,0 +1,118 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.jayway.jsonpath.JsonPath;
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.model.CompiledAccessRule;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConsentRuleIndexTest {
+
+    private static final String CONSENT_PATH = "$.query.query.categoryFilters.\\_consents\\[*]";
+
+    private final AccessRule phs1c1 = createConsentRule("AR_CONSENT_phs000001_c1", "phs000001.c1");
+    private final AccessRule phs2c1 = createConsentRule("AR_CONSENT_phs000002_c1", "phs000002.c1");
+    private final AccessRule phs2c10 = createConsentRule("AR_CONSENT_phs000002_c10", "phs000002.c10");
+
+    @Test
+    public void testOnlyRulesContainingAllConsentsAreCandidates() {
+        Set<AccessRule> rules = Set.of(phs1c1, phs2c1, phs2c10);
+        ConsentRuleIndex index = ConsentRuleIndex.build(rules, CompiledAccessRule::compile);
+
+        Set<AccessRule> excluded = index.findExcludedRules(reader(requestWithConsents("phs000002.c1")));
+
+        assertEquals(2, excluded.size());
+        assertTrue(excluded.contains(phs1c1));
+        assertTrue(excluded.contains(phs2c10));
+    }
+
+    @Test
+    public void testValuesContainedInConsentAreCandidates() {
+        Set<AccessRule> rules = Set.of(phs1c1, phs2c1, phs2c10);
+        ConsentRuleIndex index = ConsentRuleIndex.build(rules, CompiledAccessRule::compile);
+
+        // ALL_CONTAINS is a substring check, phs000002.c1 is contained in phs000002.c10
+        Set<AccessRule> excluded = index.findExcludedRules(reader(requestWithConsents("phs000002.c10")));
+
+        assertEquals(1, excluded.size());
+        assertTrue(excluded.contains(phs1c1));
+    }
+
+    @Test
+    public void testMergedValuesAreIndexed() {
+        AccessRule merged = createConsentRule("AR_CONSENT_phs000001_c1", "phs000001.c1");
+        merged.getMergedValues().addAll(List.of("phs000001.c1", "phs000003.c2"));
+        ConsentRuleIndex index = ConsentRuleIndex.build(Set.of(merged, phs2c1), CompiledAccessRule::compile);
+
+        Set<AccessRule> excluded = index.findExcludedRules(reader(requestWithConsents("phs000001.c1", "phs000003.c2")));
+
+        assertEquals(1, excluded.size());
+        assertTrue(excluded.contains(phs2c1));
+    }
+
+    @Test
+    public void testEveryConsentMustBeAllowed() {
+        ConsentRuleIndex index = ConsentRuleIndex.build(Set.of(phs1c1, phs2c1), CompiledAccessRule::compile);
+
+        Set<AccessRule> excluded = index.findExcludedRules(reader(requestWithConsents("phs000001.c1", "phs000002.c1")));
+
+        assertEquals(2, excluded.size());
+    }
+
+    @Test
+    public void testMissingOrEmptyConsentsExcludeAllIndexedRules() {
+        ConsentRuleIndex index = ConsentRuleIndex.build(Set.of(phs1c1, phs2c1), CompiledAccessRule::compile);
+
+        assertEquals(2, index.findExcludedRules(reader(requestWithConsents())).size());
+        assertEquals(2, index.findExcludedRules(reader(Map.of("query", Map.of("query", Map.of())))).size());
+    }
+
+    @Test
+    public void testRulesOfOtherShapesAreNotIndexed() {
+        AccessRule equalsRule = createConsentRule("AR_ALLOW_COUNT", "COUNT");
+        equalsRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        AccessRule gateOnly = createConsentRule("AR_GATES", "phs000009.c1");
+        gateOnly.setEvaluateOnlyByGates(true);
+        AccessRule mapNode = createConsentRule("AR_MAP", "phs000009.c1");
+        mapNode.setCheckMapNode(true);
+
+        ConsentRuleIndex index = ConsentRuleIndex.build(Set.of(equalsRule, gateOnly, mapNode), CompiledAccessRule::compile);
+
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void testIndexIsBuiltOncePerInternedRuleSet() {
+        InternedRuleSet rules = new InternedRuleSet(Set.of(phs1c1));
+        ConsentRuleIndex index = rules.getConsentRuleIndex(CompiledAccessRule::compile);
+
+        assertFalse(index.isEmpty());
+        assertSame(index, rules.getConsentRuleIndex(CompiledAccessRule::compile));
+        assertNotSame(index, new InternedRuleSet(Set.of(phs1c1)).getConsentRuleIndex(CompiledAccessRule::compile));
+    }
+
+    private ConsentRuleIndex.PathReader reader(Object requestBody) {
+        return compiledRule -> JsonPath.parse(requestBody).read(compiledRule.getPath());
+    }
+
+    private Map<String, Object> requestWithConsents(String... consents) {
+        Map<String, Object> categoryFilters = Map.of("\\_consents\\", List.of(consents));
+        return Map.of("query", Map.of("query", Map.of("categoryFilters", categoryFilters)));
+    }
+
+    private AccessRule createConsentRule(String name, String value) {
+        AccessRule rule = new AccessRule();
+        rule.setName(name);
+        rule.setRule(CONSENT_PATH);
+        rule.setType(AccessRule.TypeNaming.ALL_CONTAINS);
+        rule.setValue(value);
+        rule.setCheckMapNode(false);
+        rule.setCheckMapKeyOnly(false);
+        rule.setEvaluateOnlyByGates(false);
+        rule.setGateAnyRelation(false);
+        return rule;
+    }
+}
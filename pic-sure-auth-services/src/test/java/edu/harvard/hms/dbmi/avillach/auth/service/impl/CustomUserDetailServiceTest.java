@@ -22,10 +22,10 @@ import java.util.Optional;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 @SpringBootTest
-@ContextConfiguration(classes = {CustomUserDetailService.class})
+@ContextConfiguration(classes = {CustomUserDetailService.class, AuthorizationSnapshotService.class})
 public class CustomUserDetailServiceTest {
 
     @MockBean
@@ -37,6 +37,9 @@ public class CustomUserDetailServiceTest {
     @Autowired
     private CustomUserDetailService customUserDetailService;
 
+    @Autowired
+    private AuthorizationSnapshotService authorizationSnapshotService;
+
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.openMocks(this);
@@ -91,4 +94,72 @@ public class CustomUserDetailServiceTest {
         assertThrows(UsernameNotFoundException.class, () ->
                 customUserDetailService.loadUserByUsername("nonexistent@example.com"));
     }
+
+    @Test
+    public void loadUserByUsername_withUser_usesCachedSnapshot() {
+        String username = "cached@example.com";
+        Privilege privilege = new Privilege();
+        privilege.setUuid(java.util.UUID.randomUUID());
+        privilege.setName("testPrivilege");
+        Role role = new Role();
+        role.setUuid(java.util.UUID.randomUUID());
+        role.setName("testRole");
+        role.setPrivileges(Set.of(privilege));
+        User user = new User();
+        user.setUuid(java.util.UUID.randomUUID());
+        user.setSubject(username);
+        user.setEmail(username);
+        user.setActive(true);
+        user.setRoles(Set.of(role));
+        when(userService.findBySubject(username)).thenReturn(user);
+
+        customUserDetailService.loadUserByUsername(username);
+        CustomUserDetails userDetails = (CustomUserDetails) customUserDetailService.loadUserByUsername(username);
+
+        // the second load is served by the snapshot, the user is only loaded when it is needed
+        verify(userService, times(1)).findBySubject(username);
+        assertEquals(username, userDetails.getUsername());
+        assertTrue(userDetails.getSnapshot().active());
+        assertEquals(Set.of("testRole"), userDetails.getSnapshot().roleNames());
+        assertEquals("testPrivilege", userDetails.getAuthorities().iterator().next().getAuthority());
+        assertSame(user, userDetails.getUser());
+        verify(userService, times(2)).findBySubject(username);
+
+        authorizationSnapshotService.evict(username);
+        customUserDetailService.loadUserByUsername(username);
+        verify(userService, times(3)).findBySubject(username);
+    }
+
+    @Test
+    public void loadUserByUsername_withUser_snapshotLoadedBeforeAnEvictionIsNotCached() {
+        String username = "revoked@example.com";
+        User user = new User();
+        user.setUuid(java.util.UUID.randomUUID());
+        user.setSubject(username);
+        user.setEmail(username);
+        user.setActive(true);
+        user.setRoles(Set.of());
+        // an admin deactivates the user while the request is loading it
+        when(userService.findBySubject(username)).thenAnswer(invocation -> {
+            authorizationSnapshotService.evict(username);
+            return user;
+        });
+
+        customUserDetailService.loadUserByUsername(username);
+        assertNull(authorizationSnapshotService.get(username));
+
+        // the same when every user is evicted
+        when(userService.findBySubject(username)).thenAnswer(invocation -> {
+            authorizationSnapshotService.evictAll();
+            return user;
+        });
+        customUserDetailService.loadUserByUsername(username);
+        assertNull(authorizationSnapshotService.get(username));
+
+        // a load that is not concurrent with an eviction is cached
+        reset(userService);
+        when(userService.findBySubject(username)).thenReturn(user);
+        customUserDetailService.loadUserByUsername(username);
+        assertNotNull(authorizationSnapshotService.get(username));
+    }
 }
@@ -0,0 +1,46 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParsedRequestBodyTest {
+
+    @Test
+    public void testCanonicalJsonDoesNotDependOnKeyOrder() throws JsonProcessingException {
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put("fields", List.of("\\demographics\\SEX\\"));
+        query.put("expectedResultType", "COUNT");
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("query", query);
+        requestBody.put("Target Service", "/query/sync");
+
+        Map<String, Object> reorderedQuery = new LinkedHashMap<>();
+        reorderedQuery.put("expectedResultType", "COUNT");
+        reorderedQuery.put("fields", List.of("\\demographics\\SEX\\"));
+        Map<String, Object> reorderedRequestBody = new LinkedHashMap<>();
+        reorderedRequestBody.put("Target Service", "/query/sync");
+        reorderedRequestBody.put("query", reorderedQuery);
+
+        ParsedRequestBody request = new ParsedRequestBody(requestBody);
+        assertEquals(new ParsedRequestBody(reorderedRequestBody).getCanonicalJson(), request.getCanonicalJson());
+        assertSame(request.getCanonicalJson(), request.getCanonicalJson());
+        assertEquals("/query/sync", request.getTargetService());
+    }
+
+    @Test
+    public void testDocumentIsSharedByTheEvaluationContexts() {
+        ParsedRequestBody request = new ParsedRequestBody(Map.of("query", Map.of("expectedResultType", "COUNT")));
+        EvaluationContext context = new EvaluationContext(request, false);
+
+        assertSame(request, context.fork().getRequest());
+        assertSame(request.getDocument(), request.getDocument());
+        assertEquals("COUNT", request.getDocument().read("$.query.expectedResultType"));
+        assertNull(new ParsedRequestBody(Map.of("Target Service", 1)).getTargetService());
+    }
+}
@@ -41,6 +41,12 @@ public class PrivilegeServiceTest {
     @MockBean
     private AccessRuleService accessRuleService;
 
+    @MockBean
+    private AuthorizationSnapshotService authorizationSnapshotService;
+
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     @Autowired
     private PrivilegeService privilegeService;
 
@@ -57,6 +57,12 @@ public class RoleServiceTest {
     @MockBean
     private LoggingClient loggingClient;
 
+    @MockBean
+    private AuthorizationSnapshotService authorizationSnapshotService;
+
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     @Autowired
     private RoleService roleService;
 
@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.service.impl;
 
 import edu.harvard.hms.dbmi.avillach.auth.entity.TermsOfService;
 import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
 import edu.harvard.hms.dbmi.avillach.auth.repository.TermsOfServiceRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserRepository;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,13 +13,15 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ContextConfiguration;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 @SpringBootTest
 @ContextConfiguration(classes = {TOSService.class})
@@ -203,4 +206,51 @@ public class TOSServiceTest {
         assertFalse(result);
     }
 
+    @Test
+    public void testHasUserAcceptedLatest_SnapshotDoesNotQueryTheUser() {
+        TermsOfService tos = new TermsOfService();
+        tos.setDateUpdated(new Date(1_000));
+        tos.setContent("Latest TOS content");
+        when(termsOfServiceRepo.findTopByOrderByDateUpdatedDesc()).thenReturn(Optional.of(tos));
+
+        assertTrue(tosService.hasAcceptedLatest(createSnapshot(new Date(2_000))));
+        assertTrue(tosService.hasAcceptedLatest(createSnapshot(new Date(1_000))));
+        assertFalse(tosService.hasAcceptedLatest(createSnapshot(new Date(500))));
+        assertFalse(tosService.hasAcceptedLatest(createSnapshot(null)));
+
+        // the latest terms of service are read once and kept in memory
+        verify(termsOfServiceRepo, times(1)).findTopByOrderByDateUpdatedDesc();
+        verifyNoInteractions(userRepo);
+    }
+
+    @Test
+    public void testRefreshLatest_SeesTermsUpdatedOnAnotherNode() {
+        TermsOfService tos = new TermsOfService();
+        tos.setDateUpdated(new Date(1_000));
+        tos.setContent("first");
+        when(termsOfServiceRepo.findTopByOrderByDateUpdatedDesc()).thenReturn(Optional.of(tos));
+        AuthorizationSnapshot snapshot = createSnapshot(new Date(2_000));
+
+        assertTrue(tosService.hasAcceptedLatest(snapshot));
+        long version = tosService.getLatestTermsOfService().version();
+
+        tosService.refreshLatest();
+        assertEquals(version, tosService.getLatestTermsOfService().version());
+
+        TermsOfService updated = new TermsOfService();
+        updated.setDateUpdated(new Date(3_000));
+        updated.setContent("second");
+        when(termsOfServiceRepo.findTopByOrderByDateUpdatedDesc()).thenReturn(Optional.of(updated));
+        tosService.refreshLatest();
+
+        assertEquals(version + 1, tosService.getLatestTermsOfService().version());
+        assertEquals("second", tosService.getLatest());
+        assertFalse(tosService.hasAcceptedLatest(snapshot));
+    }
+
+    private AuthorizationSnapshot createSnapshot(Date acceptedTOS) {
+        return new AuthorizationSnapshot(UUID.randomUUID(), "user-id", "user@example.com", true, Set.of(), Map.of(), Set.of(), true,
+                acceptedTOS == null ? null : acceptedTOS.toInstant());
+    }
+
 }
@@ -24,10 +24,15 @@ import org.springframework.test.context.ContextConfiguration;
 
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -63,8 +68,8 @@ public class TokenServiceTest {
         SecurityContextHolder.setContext(securityContext);
         when(securityContext.getAuthentication()).thenReturn(authentication);
         when(sessionService.isSessionExpired(any(String.class))).thenReturn(false);
-        jwtUtil = new JWTUtil(generate256Base64Secret(), true);
-        tokenService = new TokenService(authorizationService, userRepository, 1000L * 60 * 60, jwtUtil, sessionService, userService);
+        jwtUtil = new JWTUtil(generate256Base64Secret(), true, 10_000);
+        tokenService = new TokenService(authorizationService, userRepository, 1000L * 60 * 60, jwtUtil, sessionService, userService, 5, 30, 2);
     }
 
     @Test
@@ -325,6 +330,51 @@ public class TokenServiceTest {
         assertEquals("User doesn't have enough privileges.", response.get("message"));
     }
 
+    @Test
+    public void testInspectTokens_keepsOrderAndLoadsEachUserOnce() {
+        Application application = createTestApplication();
+        application.setPrivileges(Set.of(createTestPrivilege()));
+        configureApplicationSecurityContext(application);
+
+        User user = createTestUser();
+        when(userRepository.findBySubject(user.getSubject())).thenReturn(user);
+        when(authorizationService.isAuthorized(any(Application.class), any(), any(User.class), anyBoolean(), anyBoolean()))
+                .thenAnswer(invocation -> {
+                    Map<?, ?> request = (Map<?, ?>) invocation.getArgument(1);
+                    return new EvaluateAccessRuleResult(Boolean.TRUE.equals(request.get("allowed")), Set.of(), null, Optional.empty());
+                });
+
+        String token = jwtUtil.createJwtToken("whatever", "edu.harvard.hms.dbmi.psama",
+                new HashMap<>(Map.of("sub", user.getSubject())), user.getSubject(), testTokenExpiration);
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            items.add(new HashMap<>(Map.of("token", token, "request", Map.of("allowed", i % 2 == 0))));
+        }
+        items.add(new HashMap<>(Map.of("token", "invalid")));
+
+        List<Map<String, Object>> responses = tokenService.inspectTokens(items, false);
+
+        assertEquals(items.size(), responses.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 2 == 0, responses.get(i).get("active"), "item " + i);
+            // the items are not modified, the token is removed from a copy
+            assertEquals(token, items.get(i).get("token"));
+        }
+        assertFalse((Boolean) responses.get(20).get("active"));
+        verify(userRepository, times(1)).findBySubject(user.getSubject());
+    }
+
+    @Test
+    public void testInspectTokens_rejectsLargeBatches() {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 31; i++) {
+            items.add(new HashMap<>(Map.of("token", "invalid")));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> tokenService.inspectTokens(items, false));
+        verify(userRepository, never()).findBySubject(any());
+    }
+
     @Test
     public void testRefreshToken_isExpired() throws InterruptedException {
         User user = createTestUser();
@@ -383,6 +433,50 @@ public class TokenServiceTest {
         assertNotNull(((ValidRefreshToken) response).expirationDate());
     }
 
+    @Test
+    public void testRefreshToken_concurrentRefreshesOfTheSameTokenAreCoalesced() throws Exception {
+        User user = createTestUser();
+        String token = jwtUtil.createJwtToken("whatever", "edu.harvard.hms.dbmi.psama",
+                new HashMap<>(Map.of("sub", user.getSubject())), user.getSubject(), testTokenExpiration);
+        CountDownLatch loading = new CountDownLatch(1);
+        when(userRepository.findBySubject(user.getSubject())).thenAnswer(invocation -> {
+            loading.await(5, TimeUnit.SECONDS);
+            return user;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<RefreshToken>> refreshes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                refreshes.add(executor.submit(() -> tokenService.refreshToken("Bearer " + token)));
+            }
+            Thread.sleep(200);
+            loading.countDown();
+
+            String refreshedToken = ((ValidRefreshToken) refreshes.getFirst().get()).token();
+            for (Future<RefreshToken> refresh : refreshes) {
+                assertEquals(refreshedToken, ((ValidRefreshToken) refresh.get()).token());
+            }
+            // the refreshed token is reused during the grace period
+            assertEquals(refreshedToken, ((ValidRefreshToken) tokenService.refreshToken("Bearer " + token)).token());
+            verify(userRepository, times(1)).findBySubject(user.getSubject());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRefreshToken_failedRefreshIsNotReused() {
+        User user = createTestUser();
+        String token = jwtUtil.createJwtToken("whatever", "edu.harvard.hms.dbmi.psama",
+                new HashMap<>(Map.of("sub", user.getSubject())), user.getSubject(), testTokenExpiration);
+
+        assertTrue(tokenService.refreshToken("Bearer " + token) instanceof InvalidRefreshToken);
+
+        when(userRepository.findBySubject(user.getSubject())).thenReturn(user);
+        assertTrue(tokenService.refreshToken("Bearer " + token) instanceof ValidRefreshToken);
+    }
+
     @Test
     public void testRefreshToken_whereUserNotExists() {
         User user = createTestUser();
@@ -67,6 +67,11 @@ public class UserServiceTest {
     private UserConsentsRepository userConsentsRepository;
     @MockBean
     private FenceMappingUtility fenceMappingUtility;
+    @MockBean
+    private AuthorizationSnapshotService authorizationSnapshotService;
+
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
 
     @BeforeEach
     public void setUp() {
@@ -76,7 +81,7 @@ public class UserServiceTest {
         SecurityContextHolder.setContext(securityContext);
         when(securityContext.getAuthentication()).thenReturn(authentication);
 
-        jwtUtil = new JWTUtil(generate256Base64Secret(), true);
+        jwtUtil = new JWTUtil(generate256Base64Secret(), true, 10_000);
         String applicationUUID = UUID.randomUUID().toString();
         userService = new UserService(
                 basicMailService,
@@ -93,7 +98,9 @@ public class UserServiceTest {
                 mockJwtUtil,
                 false,
                 "ADMIN,SUPER_ADMIN",
-                null);
+                null,
+                authorizationSnapshotService,
+                authorizationDependencyIndex);
     }
 
     @Test
@@ -0,0 +1,107 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessRuleStatisticsTest {
+
+    @Test
+    public void testRulesThatPassCheaplyAreOrderedFirst() {
+        AccessRuleStatistics statistics = new AccessRuleStatistics(true);
+        AccessRule expensive = createRule("AR_EXPENSIVE");
+        AccessRule failing = createRule("AR_FAILING");
+        AccessRule onlyInfo = createRule("AR_ONLY_INFO");
+        Set<AccessRule> accessRules = new LinkedHashSet<>(List.of(expensive, failing, onlyInfo));
+
+        AccessRuleStatistics.TargetServiceStatistics info = statistics.forTargetService("/info");
+        for (int i = 0; i < 10; i++) {
+            info.record(expensive, true, 1_000_000);
+            info.record(failing, false, 200_000);
+            info.record(onlyInfo, true, 1_000);
+        }
+
+        assertEquals(List.of(onlyInfo, expensive, failing), info.order(accessRules));
+        // other target services have their own statistics
+        assertEquals(List.of(expensive, failing, onlyInfo), statistics.forTargetService("/query").order(accessRules));
+    }
+
+    @Test
+    public void testUnknownRulesKeepTheirOrder() {
+        AccessRuleStatistics statistics = new AccessRuleStatistics(true);
+        AccessRule known = createRule("AR_KNOWN");
+        AccessRule first = createRule("AR_FIRST");
+        AccessRule second = createRule("AR_SECOND");
+
+        AccessRuleStatistics.TargetServiceStatistics query = statistics.forTargetService("/query");
+        query.record(known, false, 1_000_000);
+
+        assertEquals(List.of(first, second, known), query.order(new LinkedHashSet<>(List.of(first, known, second))));
+    }
+
+    @Test
+    public void testUserConsentRulesKeepTheirPosition() {
+        AccessRuleStatistics statistics = new AccessRuleStatistics(true);
+        AccessRule slow = createRule("AR_SLOW");
+        AccessRule userConsent = createRule("AR_USER_CONSENT");
+        userConsent.setType(AccessRule.TypeNaming.USER_CONSENT_ACCESS);
+        AccessRule fast = createRule("AR_FAST");
+        AccessRule faster = createRule("AR_FASTER");
+
+        AccessRuleStatistics.TargetServiceStatistics query = statistics.forTargetService("/query");
+        query.record(slow, false, 1_000_000);
+        query.record(userConsent, true, 1_000);
+        query.record(fast, true, 10_000);
+        query.record(faster, true, 1_000);
+
+        // the rules after the consent rule are not moved before it
+        assertEquals(List.of(slow, userConsent, faster, fast),
+                query.order(new LinkedHashSet<>(List.of(slow, userConsent, fast, faster))));
+    }
+
+    @Test
+    public void testDisabledStatisticsKeepTheOrder() {
+        AccessRuleStatistics statistics = new AccessRuleStatistics(false);
+        AccessRule slow = createRule("AR_SLOW");
+        AccessRule fast = createRule("AR_FAST");
+
+        AccessRuleStatistics.TargetServiceStatistics query = statistics.forTargetService("/query");
+        query.record(slow, false, 1_000_000);
+        query.record(fast, true, 1_000);
+
+        assertEquals(List.of(slow, fast), query.order(new LinkedHashSet<>(List.of(slow, fast))));
+        assertTrue(statistics.getStatistics().get("/query").isEmpty());
+    }
+
+    @Test
+    public void testStatisticsAreExposedByTargetService() {
+        AccessRuleStatistics statistics = new AccessRuleStatistics(true);
+        AccessRule rule = createRule("AR_ONLY_SEARCH");
+        statistics.forTargetService("/search").record(rule, true, 2_000);
+        statistics.forTargetService("/search").record(rule, false, 4_000);
+        statistics.forTargetService(null).record(rule, false, 1_000);
+
+        Map<String, List<AccessRuleStatistics.RuleStatistics>> exposed = statistics.getStatistics();
+        assertEquals(Set.of("/search", AccessRuleStatistics.DEFAULT_TARGET_SERVICE), exposed.keySet());
+        AccessRuleStatistics.RuleStatistics search = exposed.get("/search").getFirst();
+        assertEquals("AR_ONLY_SEARCH", search.rule());
+        assertEquals(2, search.evaluations());
+        assertEquals(1, search.passes());
+        assertEquals(0.5, search.passRate());
+        assertEquals(3_000, search.averageNanos());
+    }
+
+    private AccessRule createRule(String name) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        return accessRule;
+    }
+}
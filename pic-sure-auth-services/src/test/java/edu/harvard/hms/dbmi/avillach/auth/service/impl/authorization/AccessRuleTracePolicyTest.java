@@ -0,0 +1,56 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessRuleTracePolicyTest {
+
+    @Test
+    public void testDisabledByDefault() {
+        AccessRuleTracePolicy policy = new AccessRuleTracePolicy(0, "", "");
+
+        assertFalse(policy.shouldTrace(createApplication("PICSURE"), createUser("subject"), true));
+    }
+
+    @Test
+    public void testHeaderIsOnlyHonouredForTrustedApplications() {
+        AccessRuleTracePolicy policy = new AccessRuleTracePolicy(0, "", "PICSURE, JUPYTERHUB");
+
+        assertTrue(policy.shouldTrace(createApplication("JUPYTERHUB"), createUser("subject"), true));
+        assertFalse(policy.shouldTrace(createApplication("JUPYTERHUB"), createUser("subject"), false));
+        assertFalse(policy.shouldTrace(createApplication("OTHER"), createUser("subject"), true));
+    }
+
+    @Test
+    public void testSubjectIsAlwaysTraced() {
+        AccessRuleTracePolicy policy = new AccessRuleTracePolicy(0, "fence|traced", "");
+
+        assertTrue(policy.shouldTrace(createApplication("PICSURE"), createUser("fence|traced"), false));
+        assertFalse(policy.shouldTrace(createApplication("PICSURE"), createUser("fence|other"), false));
+        assertFalse(policy.shouldTrace(createApplication("PICSURE"), null, false));
+    }
+
+    @Test
+    public void testSampleRate() {
+        AccessRuleTracePolicy always = new AccessRuleTracePolicy(1, "", "");
+        AccessRuleTracePolicy never = new AccessRuleTracePolicy(0, "", "");
+
+        assertTrue(always.shouldTrace(null, null, false));
+        assertFalse(never.shouldTrace(null, null, false));
+    }
+
+    private Application createApplication(String name) {
+        Application application = new Application();
+        application.setName(name);
+        return application;
+    }
+
+    private User createUser(String subject) {
+        User user = new User();
+        user.setSubject(subject);
+        return user;
+    }
+}
@@ -0,0 +1,95 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.model.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.model.EvaluateAccessRuleResult;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationSnapshotService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.ParsedRequestBody;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuthorizationDecisionCacheTest {
+
+    private AuthorizationSnapshotService authorizationSnapshotService;
+    private AuthorizationDecisionCache decisionCache;
+    private final User user = createTestUser();
+    private final Application application = createTestApplication();
+    private final EvaluateAccessRuleResult granted = new EvaluateAccessRuleResult(true, Set.of(), "AR_TEST", Optional.empty());
+
+    @BeforeEach
+    public void setUp() {
+        authorizationSnapshotService = new AuthorizationSnapshotService(60, 100);
+        decisionCache = new AuthorizationDecisionCache(true, 60, 100, authorizationSnapshotService);
+        // the snapshot is cached when the user is loaded
+        authorizationSnapshotService.put(AuthorizationSnapshot.of(user), authorizationSnapshotService.generation());
+    }
+
+    @Test
+    public void testEqualRequestsShareTheDecision() {
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("Target Service", "/query");
+        request.put("query", Map.of("expectedResultType", "COUNT"));
+        AuthorizationDecisionCache.Lookup miss = decisionCache.lookup(user, application, new ParsedRequestBody(request), 0);
+        assertNull(miss.result());
+        decisionCache.put(miss, granted);
+
+        // the same request with its keys in another order
+        Map<String, Object> sameRequest = new LinkedHashMap<>();
+        sameRequest.put("query", Map.of("expectedResultType", "COUNT"));
+        sameRequest.put("Target Service", "/query");
+        assertSame(granted, decisionCache.lookup(user, application, new ParsedRequestBody(sameRequest), 0).result());
+
+        Map<String, Object> otherRequest = Map.of("Target Service", "/query", "query", Map.of("expectedResultType", "DATAFRAME"));
+        assertNull(decisionCache.lookup(user, application, new ParsedRequestBody(otherRequest), 0).result());
+
+        AuthorizationDecisionCache.Statistics statistics = decisionCache.getStatistics();
+        assertEquals(1, statistics.hits());
+        assertEquals(2, statistics.misses());
+        assertEquals(1, statistics.size());
+    }
+
+    @Test
+    public void testChangesToTheUserOrTheRulesInvalidateTheDecision() {
+        Map<String, Object> request = Map.of("Target Service", "/query");
+        decisionCache.put(decisionCache.lookup(user, application, new ParsedRequestBody(request), 0), granted);
+        assertSame(granted, decisionCache.lookup(user, application, new ParsedRequestBody(request), 0).result());
+
+        // another version of the rules
+        assertNull(decisionCache.lookup(user, application, new ParsedRequestBody(request), 1).result());
+
+        // a change to the user evicts its snapshot, the decision is not used with the snapshot loaded again
+        authorizationSnapshotService.evict(user.getSubject());
+        assertNull(decisionCache.lookup(user, application, new ParsedRequestBody(request), 0));
+        authorizationSnapshotService.put(AuthorizationSnapshot.of(user), authorizationSnapshotService.generation());
+        assertNull(decisionCache.lookup(user, application, new ParsedRequestBody(request), 0).result());
+    }
+
+    @Test
+    public void testDisabledCacheDoesNotLookUp() {
+        AuthorizationDecisionCache disabled = new AuthorizationDecisionCache(false, 60, 100, authorizationSnapshotService);
+        assertNull(disabled.lookup(user, application, new ParsedRequestBody(Map.of()), 0));
+        assertFalse(disabled.getStatistics().enabled());
+    }
+
+    private User createTestUser() {
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setSubject("TEST_SUBJECT");
+        user.setEmail("test@email.com");
+        user.setRoles(new HashSet<>());
+        user.setActive(true);
+        return user;
+    }
+
+    private Application createTestApplication() {
+        Application application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("TEST_APPLICATION");
+        return application;
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
 import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationDependencyIndex;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -53,6 +54,9 @@ public class AuthorizationServiceByUseCasesTest {
     @MockBean
     private AccessRuleRepository accessRuleRepository;
 
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     @Autowired
     private AccessRuleService accessRuleService;
 
@@ -483,7 +487,8 @@ public class AuthorizationServiceByUseCasesTest {
     @BeforeEach
     public void setUp() {
         AccessRuleRepository accessRuleRepository = Mockito.mock(AccessRuleRepository.class);
-        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false","false", "false");
+        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false","false", "false",
+                authorizationDependencyIndex, 60);
     }
 
     @Test
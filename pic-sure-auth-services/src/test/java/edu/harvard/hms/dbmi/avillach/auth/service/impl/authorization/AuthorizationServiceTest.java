@@ -6,6 +6,8 @@ import edu.harvard.hms.dbmi.avillach.auth.model.CustomUserDetails;
 import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.repository.UserConsentsRepository;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationDependencyIndex;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationSnapshotService;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.RoleService;
 import edu.harvard.hms.dbmi.avillach.auth.service.impl.SessionService;
 import org.junit.jupiter.api.BeforeAll;
@@ -26,12 +28,15 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 @SpringBootTest
-@ContextConfiguration(classes = {AuthorizationService.class, AccessRuleService.class})
+@ContextConfiguration(classes = {AuthorizationService.class, AccessRuleService.class, AccessRuleTracePolicy.class, ParallelAccessRuleEvaluator.class, AccessRuleStatistics.class, AuthorizationDecisionCache.class, AuthorizationSnapshotService.class})
 public class AuthorizationServiceTest {
 
     @MockBean
     private SecurityContext securityContext;
 
+    @MockBean
+    private AuthorizationDependencyIndex authorizationDependencyIndex;
+
     private AuthorizationService authorizationService;
 
     private AccessRuleService accessRuleService;
@@ -213,9 +218,12 @@ public class AuthorizationServiceTest {
         SecurityContextHolder.setContext(securityContext);
 
         when(sessionService.isSessionExpired(any(String.class))).thenReturn(false);
-        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false", "false", "false");
+        accessRuleService = new AccessRuleService(accessRuleRepository, "false", "false", "false", "false", "false", "false",
+                authorizationDependencyIndex, 60);
         authorizationService = new AuthorizationService(
-            accessRuleService, sessionService, roleService, bdcConsentBasedAccessRuleEvaluator, "fence,okta", userConsentsRepository
+            accessRuleService, sessionService, roleService, bdcConsentBasedAccessRuleEvaluator, "fence,okta", userConsentsRepository,
+            mock(AccessRuleTracePolicy.class), mock(ParallelAccessRuleEvaluator.class), new AccessRuleStatistics(false),
+            mock(AuthorizationDecisionCache.class)
         );
     }
 
@@ -264,6 +272,78 @@ public class AuthorizationServiceTest {
         assertFalse(result);
     }
 
+    @Test
+    public void testOpenAccessRequestIsValid_rulesOfTheRoleAreNotModified() {
+        AccessRule count = new AccessRule();
+        count.setUuid(UUID.randomUUID());
+        count.setName("AR_SUB_COUNT");
+        count.setRule("$.query.expectedResultType");
+        count.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        count.setValue("COUNT");
+        AccessRule parent = new AccessRule();
+        parent.setUuid(UUID.randomUUID());
+        parent.setName("AR_OPEN_ACCESS");
+        parent.setRule("$.query");
+        parent.setType(AccessRule.TypeNaming.IS_NOT_EMPTY);
+        parent.setSubAccessRule(new HashSet<>(Set.of(count)));
+
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setAccessRules(Set.of(parent));
+        Role openAccessRole = new Role();
+        openAccessRole.setPrivileges(Set.of(privilege));
+        when(roleService.getRoleByName(RoleService.MANAGED_AUTH_ACCESS_ROLE_NAME)).thenReturn(new Role());
+        when(roleService.getRoleByName(RoleService.MANAGED_OPEN_ACCESS_ROLE_NAME)).thenReturn(openAccessRole);
+
+        assertTrue(authorizationService.openAccessRequestIsValid(Map.of("request", Map.of("query", Map.of("expectedResultType", "COUNT")))));
+        assertFalse(authorizationService.openAccessRequestIsValid(Map.of("request", Map.of("query", Map.of("expectedResultType", "DATAFRAME")))));
+
+        // the rules are evaluated as snapshots, the entities of the role are not modified
+        assertNull(parent.getMergedSubAccessRules());
+        assertEquals(Set.of(count), parent.getSubAccessRule());
+    }
+
+    @Test
+    public void testOpenAccessRequestIsValid_rulesSharingAKeyAreNotMerged() {
+        AccessRule count = createOpenAccessRule("AR_OPEN_COUNT", "COUNT", "\\demographics\\SEX\\");
+        AccessRule dataframe = createOpenAccessRule("AR_OPEN_DATAFRAME", "DATAFRAME", "\\demographics\\AGE\\");
+
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setAccessRules(Set.of(count, dataframe));
+        Role openAccessRole = new Role();
+        openAccessRole.setPrivileges(Set.of(privilege));
+        when(roleService.getRoleByName(RoleService.MANAGED_AUTH_ACCESS_ROLE_NAME)).thenReturn(new Role());
+        when(roleService.getRoleByName(RoleService.MANAGED_OPEN_ACCESS_ROLE_NAME)).thenReturn(openAccessRole);
+
+        assertTrue(authorizationService.openAccessRequestIsValid(openAccessRequest("COUNT", "\\demographics\\SEX\\")));
+        assertTrue(authorizationService.openAccessRequestIsValid(openAccessRequest("DATAFRAME", "\\demographics\\AGE\\")));
+        // merged, the rules would allow the result type of one with the field of the other
+        assertFalse(authorizationService.openAccessRequestIsValid(openAccessRequest("COUNT", "\\demographics\\AGE\\")));
+        assertFalse(authorizationService.openAccessRequestIsValid(openAccessRequest("DATAFRAME", "\\demographics\\SEX\\")));
+    }
+
+    private static AccessRule createOpenAccessRule(String name, String expectedResultType, String field) {
+        AccessRule fieldRule = new AccessRule();
+        fieldRule.setUuid(UUID.randomUUID());
+        fieldRule.setName(name + "_FIELD");
+        fieldRule.setRule("$.query.field");
+        fieldRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        fieldRule.setValue(field);
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule("$.query.expectedResultType");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(expectedResultType);
+        accessRule.setSubAccessRule(new HashSet<>(Set.of(fieldRule)));
+        return accessRule;
+    }
+
+    private static Map<String, Object> openAccessRequest(String expectedResultType, String field) {
+        return Map.of("request", Map.of("query", Map.of("expectedResultType", expectedResultType, "field", field)));
+    }
+
     @Test
     public void testIsAuthorized_AccessRuleFailed_strict() {
         Application application = createTestApplication();
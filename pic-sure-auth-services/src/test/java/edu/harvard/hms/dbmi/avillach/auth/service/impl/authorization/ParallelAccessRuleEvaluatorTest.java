@@ -0,0 +1,99 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.impl.authorization;
+
+import edu.harvard.hms.dbmi.avillach.auth.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.repository.AccessRuleRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AccessRuleService;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.AuthorizationDependencyIndex;
+import edu.harvard.hms.dbmi.avillach.auth.service.impl.EvaluationContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class ParallelAccessRuleEvaluatorTest {
+
+    private AccessRuleService accessRuleService;
+    private ParallelAccessRuleEvaluator evaluator;
+    private final AccessRuleStatistics.TargetServiceStatistics statistics = new AccessRuleStatistics(false).forTargetService(null);
+
+    @BeforeEach
+    public void setUp() {
+        accessRuleService = new AccessRuleService(mock(AccessRuleRepository.class), "false", "false", "false", "false", "false", "false",
+                mock(AuthorizationDependencyIndex.class), 60);
+        evaluator = new ParallelAccessRuleEvaluator(2, 4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        evaluator.shutdown();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertFalse(new ParallelAccessRuleEvaluator(0, 0).appliesTo(10_000));
+        assertFalse(evaluator.appliesTo(1));
+        assertTrue(evaluator.appliesTo(2));
+    }
+
+    @Test
+    public void testFirstPassingRuleInListOrderIsReported() {
+        Random random = new Random(42);
+        for (int run = 0; run < 50; run++) {
+            List<AccessRule> accessRules = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                accessRules.add(createRule("AR_" + i, random.nextInt(20) == 0 ? "COUNT" : "DATAFRAME"));
+            }
+            Set<AccessRule> excludedRules = Set.of(accessRules.get(random.nextInt(accessRules.size())));
+            Map<String, Object> requestBody = Map.of("query", Map.of("expectedResultType", "COUNT"));
+
+            ParallelAccessRuleEvaluator.Outcome outcome = evaluator.evaluate(accessRuleService,
+                    new EvaluationContext(requestBody, false), accessRules, excludedRules, statistics);
+
+            int expectedPass = -1;
+            for (int i = 0; i < accessRules.size() && expectedPass < 0; i++) {
+                AccessRule accessRule = accessRules.get(i);
+                if (!excludedRules.contains(accessRule) && accessRuleService.evaluateAccessRule(requestBody, accessRule)) {
+                    expectedPass = i;
+                }
+            }
+
+            if (expectedPass < 0) {
+                assertNull(outcome.passByRule());
+                assertEquals(accessRules, outcome.failedRules());
+            } else {
+                assertSame(accessRules.get(expectedPass), outcome.passByRule());
+                assertEquals(accessRules.subList(0, expectedPass), outcome.failedRules());
+            }
+        }
+    }
+
+    @Test
+    public void testFailureTracesAreInListOrder() {
+        List<AccessRule> accessRules = List.of(createRule("AR_FIRST", "DATAFRAME"), createRule("AR_EXCLUDED", "COUNT"),
+                createRule("AR_SECOND", "CROSS_COUNT"));
+        Map<String, Object> requestBody = Map.of("query", Map.of("expectedResultType", "COUNT"));
+
+        ParallelAccessRuleEvaluator.Outcome outcome = evaluator.evaluate(accessRuleService,
+                new EvaluationContext(requestBody, true), accessRules, Set.of(accessRules.get(1)), statistics);
+
+        assertNull(outcome.passByRule());
+        assertEquals(accessRules, outcome.failedRules());
+        assertEquals(2, outcome.failureTraces().size());
+        assertTrue(outcome.failureTraces().get(0).startsWith("AR_FIRST ✗"));
+        assertTrue(outcome.failureTraces().get(1).startsWith("AR_SECOND ✗"));
+    }
+
+    private AccessRule createRule(String name, String value) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule("$.query.expectedResultType");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(value);
+        return accessRule;
+    }
+}
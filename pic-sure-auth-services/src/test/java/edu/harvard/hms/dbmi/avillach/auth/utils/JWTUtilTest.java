@@ -0,0 +1,58 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import edu.harvard.hms.dbmi.avillach.auth.exceptions.NotAuthorizedException;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JWTUtilTest {
+
+    private JWTUtil jwtUtil;
+
+    @BeforeEach
+    public void setUp() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        jwtUtil = new JWTUtil(Base64.getEncoder().encodeToString(secret), true, 10_000);
+    }
+
+    @Test
+    public void testVerifiedTokenIsCached() {
+        String token = jwtUtil.createJwtToken("id", "issuer", new HashMap<>(), "subject", 60_000);
+
+        Jws<Claims> first = jwtUtil.parseToken(token);
+        Jws<Claims> second = jwtUtil.parseToken(token);
+
+        assertEquals("subject", first.getPayload().getSubject());
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testInvalidTokenIsNeverCached() {
+        String token = jwtUtil.createJwtToken("id", "issuer", new HashMap<>(), "subject", 60_000);
+        String tampered = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+
+        assertThrows(NotAuthorizedException.class, () -> jwtUtil.parseToken(tampered));
+        assertThrows(NotAuthorizedException.class, () -> jwtUtil.parseToken(tampered));
+        assertEquals("subject", jwtUtil.parseToken(token).getPayload().getSubject());
+    }
+
+    @Test
+    public void testTokenSignedWithAnotherSecretIsRejected() {
+        byte[] otherSecret = new byte[32];
+        new SecureRandom().nextBytes(otherSecret);
+        JWTUtil other = new JWTUtil(Base64.getEncoder().encodeToString(otherSecret), true, 10_000);
+        String token = other.createJwtToken("id", "issuer", new HashMap<>(), "subject", 60_000);
+        other.parseToken(token);
+
+        // the cache of one instance never makes another instance accept a token
+        assertThrows(NotAuthorizedException.class, () -> jwtUtil.parseToken(token));
+    }
+}